@@ -4,9 +4,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
 import de.medizininformatikinitiative.flare.model.mapping.TermCodeNode;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import de.medizininformatikinitiative.flare.service.CacheProperties;
+import de.medizininformatikinitiative.flare.service.DiskCache;
+import de.medizininformatikinitiative.flare.service.RequestScheduler;
+import de.medizininformatikinitiative.flare.service.SubExpressionCache;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.codec.json.Jackson2JsonDecoder;
 import org.springframework.http.codec.json.Jackson2JsonEncoder;
@@ -16,6 +23,7 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Clock;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -23,18 +31,22 @@ import java.util.stream.Collectors;
 import static java.util.function.Function.identity;
 
 @SpringBootApplication
+@EnableConfigurationProperties(CacheProperties.class)
 public class FlareApplication {
 
     private static final int TWO_MEGA_BYTE = 2 * 1024 * 1024;
+    private static final long ONE_MEGA_BYTE = 1024 * 1024;
 
     public static void main(String[] args) {
         SpringApplication.run(FlareApplication.class, args);
     }
 
     @Bean
-    public WebClient dataStoreClient(@Value("${app.dataStore.baseUrl}") String baseUrl, ObjectMapper mapper) {
+    public WebClient dataStoreClient(@Value("${app.dataStore.baseUrl}") String baseUrl, ObjectMapper mapper,
+                                     RequestScheduler scheduler) {
         return WebClient.builder()
                 .baseUrl(baseUrl)
+                .filter(scheduler.filter())
                 .defaultHeader("Accept", "application/fhir+json")
                 .codecs(configurer -> {
                     var codecs = configurer.defaultCodecs();
@@ -54,6 +66,24 @@ public class FlareApplication {
         return MappingContext.of(mappings, conceptTree);
     }
 
+    @Bean
+    public PatientIdDictionary patientIdDictionary() {
+        return new PatientIdDictionary();
+    }
+
+    @Bean
+    public SubExpressionCache subExpressionCache(CacheProperties properties) {
+        return new SubExpressionCache(properties.subExpressionMemSizeMib(), properties.expiryTime());
+    }
+
+    @Bean
+    @ConditionalOnProperty("app.cache.disk.path")
+    public DiskCache diskCache(CacheProperties properties, PatientIdDictionary dictionary) throws Exception {
+        var disk = properties.disk();
+        return DiskCache.open(Path.of(disk.path()), disk.sizeMib() * ONE_MEGA_BYTE, disk.validity(), dictionary,
+                Clock.systemUTC());
+    }
+
     private static String slurp(String name) throws Exception {
         return Files.readString(resourcePath(name));
     }
@@ -1,26 +1,16 @@
 package de.medizininformatikinitiative.flare;
 
-import reactor.core.publisher.Mono;
-
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface Util {
 
-    static <T> List<T> add(List<T> xs, T x) {
-        LinkedList<T> rs = new LinkedList<>(xs);
-        rs.add(x);
-        return List.copyOf(rs);
-    }
-
-    static <T> List<List<T>> add(List<List<T>> xs, List<T> x) {
-        LinkedList<List<T>> rs = new LinkedList<>(xs);
-        rs.add(x);
-        return List.copyOf(rs);
-    }
-
     /**
      * In Clojure this is:
      * <pre>
@@ -40,57 +30,75 @@ public interface Util {
      * </pre>
      */
     static <T> List<List<T>> cartesianProduct(List<List<T>> matrix) {
-        var result = List.of(List.<T>of());
-        for (var rows : matrix) {
-            result = cartesianProductHelper1(result, rows);
-        }
-        return result;
+        return lazyCartesianProduct(matrix).toList();
     }
 
-    private static <T> List<List<T>> cartesianProductHelper1(List<List<T>> result, List<T> rows) {
-        var newResult = List.<List<T>>of();
-        for (var resultRows : result) {
-            newResult = cartesianProductHelper2(newResult, resultRows, rows);
+    /**
+     * Returns the cartesian product of {@code matrix} like {@link #cartesianProduct(List)}, but creates each
+     * combination only when it is consumed.
+     *
+     * @param matrix the rows to combine
+     * @return a stream of all combinations of one element of each row
+     */
+    static <T> Stream<List<T>> lazyCartesianProduct(List<List<T>> matrix) {
+        var rows = List.copyOf(matrix);
+        if (rows.stream().anyMatch(List::isEmpty)) {
+            return Stream.of();
         }
-        return newResult;
-    }
+        var iterator = new Iterator<List<T>>() {
+            private final int[] indices = new int[rows.size()];
+            private boolean hasNext = true;
 
-    private static <T> List<List<T>> cartesianProductHelper2(List<List<T>> newResult, List<T> resultRows, List<T> rows) {
-        for (var x : rows) {
-            newResult = add(newResult, add(resultRows, x));
-        }
-        return newResult;
-    }
+            @Override
+            public boolean hasNext() {
+                return hasNext;
+            }
 
-    static <T> List<T> concat(List<T> as, List<T> bs) {
-        LinkedList<T> rs = new LinkedList<>(as);
-        rs.addAll(bs);
-        return List.copyOf(rs);
-    }
-
-    static <T> Mono<List<List<T>>> add(Mono<List<List<T>>> monoR, Mono<List<T>> monoXs) {
-        return monoR.flatMap(r -> monoXs.map(xs -> Util.add(r, xs)));
-    }
+            @Override
+            public List<T> next() {
+                if (!hasNext) {
+                    throw new NoSuchElementException();
+                }
+                var combination = new ArrayList<T>(indices.length);
+                for (int i = 0; i < indices.length; i++) {
+                    combination.add(rows.get(i).get(indices[i]));
+                }
+                advance();
+                return List.copyOf(combination);
+            }
 
-    static <T> Mono<List<T>> concat(Mono<List<T>> mA, Mono<List<T>> mB) {
-        return mA.flatMap(a -> mB.map(b -> Util.concat(a, b)));
+            private void advance() {
+                for (int i = indices.length - 1; i >= 0; i--) {
+                    if (++indices[i] < rows.get(i).size()) {
+                        return;
+                    }
+                    indices[i] = 0;
+                }
+                hasNext = false;
+            }
+        };
+        var size = cartesianProductSize(rows);
+        var characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+        return StreamSupport.stream(size == Long.MAX_VALUE
+                ? Spliterators.spliteratorUnknownSize(iterator, characteristics)
+                : Spliterators.spliterator(iterator, size, characteristics), false);
     }
 
-    static Set<String> intersection(Set<String> a, Set<String> b) {
-        var ret = new HashSet<>(a);
-        ret.retainAll(b);
-        return Set.copyOf(ret);
-    }
-
-    static Set<String> union(Set<String> a, Set<String> b) {
-        var ret = new HashSet<>(a);
-        ret.addAll(b);
-        return Set.copyOf(ret);
-    }
-
-    static Set<String> difference(Set<String> a, Set<String> b) {
-        var ret = new HashSet<>(a);
-        ret.removeAll(b);
-        return Set.copyOf(ret);
+    /**
+     * Returns the number of combinations in the cartesian product of {@code matrix} without creating them.
+     *
+     * @param matrix the rows to combine
+     * @return the number of combinations, {@link Long#MAX_VALUE} on overflow
+     */
+    static <T> long cartesianProductSize(List<List<T>> matrix) {
+        long size = 1;
+        for (var rows : matrix) {
+            try {
+                size = Math.multiplyExact(size, rows.size());
+            } catch (ArithmeticException e) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return size;
     }
 }
@@ -6,7 +6,7 @@ import java.util.List;
 import java.util.Optional;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
-public record Bundle(List<Entry> entry, List<Link> link) {
+public record Bundle(Integer total, List<Entry> entry, List<Link> link) {
 
     public Bundle {
         entry = entry == null ? List.of() : List.copyOf(entry);
@@ -0,0 +1,10 @@
+package de.medizininformatikinitiative.flare.model.fhir;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * A coding of a resource, both parts of which can be missing.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record Coding(String system, String code) {
+}
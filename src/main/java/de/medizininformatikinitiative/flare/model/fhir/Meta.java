@@ -0,0 +1,7 @@
+package de.medizininformatikinitiative.flare.model.fhir;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record Meta(String lastUpdated) {
+}
@@ -17,6 +17,40 @@ public record Query(String type, QueryParams params) {
         return new Query(type, QueryParams.EMPTY);
     }
 
+    /**
+     * Parses a query in the form {@link #toString()} renders it.
+     *
+     * @param s the string to parse
+     * @return the query
+     * @throws IllegalArgumentException if one of the params has no value
+     */
+    public static Query parse(String s) {
+        int i = s.indexOf('?');
+        if (i < 0) {
+            return ofType(s);
+        }
+        var params = QueryParams.EMPTY;
+        for (String param : s.substring(i + 1).split("&")) {
+            int j = param.indexOf('=');
+            if (j < 0) {
+                throw new IllegalArgumentException("invalid query param: " + param);
+            }
+            params = params.appendParam(param.substring(0, j), param.substring(j + 1));
+        }
+        return new Query(s.substring(0, i), params);
+    }
+
+    /**
+     * Returns the canonical form of this query, so that queries which only differ in the order or the formatting of
+     * their params are equal.
+     *
+     * @return the canonical form of this query
+     * @see QueryParams#canonical()
+     */
+    public Query canonical() {
+        return new Query(type, params.canonical());
+    }
+
     @Override
     public String toString() {
         return params.toString().isEmpty() ? type : type + "?" + params;
@@ -3,9 +3,12 @@ package de.medizininformatikinitiative.flare.model.fhir;
 import de.medizininformatikinitiative.flare.model.sq.Comparator;
 import de.medizininformatikinitiative.flare.model.sq.TermCode;
 
+import java.io.ByteArrayOutputStream;
 import java.math.BigDecimal;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -18,6 +21,11 @@ public record QueryParams(List<Param> params) {
 
     public static QueryParams EMPTY = new QueryParams(List.of());
 
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Pattern QUANTITY = Pattern.compile(
+            "(eq|ne|gt|lt|ge|le|sa|eb|ap)?(-?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?)(\\|.*)?");
+
     public QueryParams {
         params = List.copyOf(params);
     }
@@ -30,6 +38,10 @@ public record QueryParams(List<Param> params) {
         return EMPTY.appendParam(name, termCode);
     }
 
+    public static QueryParams of(String name, List<TermCode> termCodes) {
+        return EMPTY.appendParam(name, termCodes);
+    }
+
     /**
      * Appends a param with {@code name} and {@code value}.
      *
@@ -38,23 +50,37 @@ public record QueryParams(List<Param> params) {
      * @return the {@code QueryParams} resulting in appending the param
      */
     public QueryParams appendParam(String name, String value) {
-        var sb = new LinkedList<>(this.params);
-        sb.add(new Param(name, value));
-        return new QueryParams(sb);
+        var params = this.params.toArray(new Param[this.params.size() + 1]);
+        params[params.length - 1] = new Param(name, value);
+        return new QueryParams(List.of(params));
     }
 
     /**
      * Appends a param with {@code name} and a token generated from {@code termCode}.
      * <p>
      * The token is build by joining the {@link TermCode#system() system} and the {@link TermCode#code() code} from
-     * {@code termCode} with a {@code |} character.
+     * {@code termCode} with a {@code |} character. Characters with special meaning in FHIR search values are escaped
+     * in both the system and the code.
      *
      * @param name     the name of the query parameter
      * @param termCode the {@link TermCode} to use as value of the query parameter
      * @return the {@code QueryParams} resulting in appending the param
      */
     public QueryParams appendParam(String name, TermCode termCode) {
-        return appendParam(name, termCode.system() + "|" + termCode.code());
+        return appendParam(name, token(termCode));
+    }
+
+    /**
+     * Appends a param with {@code name} and the tokens generated from {@code termCodes} separated by commas, so that
+     * resources matching any of the {@code termCodes} are found.
+     *
+     * @param name      the name of the query parameter
+     * @param termCodes the {@link TermCode TermCodes} to use as values of the query parameter
+     * @return the {@code QueryParams} resulting in appending the param
+     * @see #appendParam(String, TermCode)
+     */
+    public QueryParams appendParam(String name, List<TermCode> termCodes) {
+        return appendParam(name, termCodes.stream().map(QueryParams::token).collect(Collectors.joining(",")));
     }
 
     /**
@@ -77,9 +103,152 @@ public record QueryParams(List<Param> params) {
      * @return the {@code QueryParams} resulting in appending the params
      */
     public QueryParams appendParams(QueryParams params) {
-        var sb = new LinkedList<>(this.params);
-        sb.addAll(params.params);
-        return new QueryParams(sb);
+        if (params.params.isEmpty()) {
+            return this;
+        } else if (this.params.isEmpty()) {
+            return params;
+        }
+        var all = this.params.toArray(new Param[this.params.size() + params.params.size()]);
+        for (int i = 0; i < params.params.size(); i++) {
+            all[this.params.size() + i] = params.params.get(i);
+        }
+        return new QueryParams(List.of(all));
+    }
+
+    /**
+     * Returns the canonical form of these params, so that params which only differ in ways irrelevant to the FHIR
+     * server are equal.
+     * <p>
+     * The canonical form sorts the params by name and value and removes duplicates. The comma separated values of a
+     * param are sorted and deduplicated as well. The default prefix {@code eq} of quantity values is removed. Their
+     * decimals are kept as written, because FHIR servers derive the precision of the search from them.
+     *
+     * @return the canonical form of these params
+     */
+    public QueryParams canonical() {
+        return new QueryParams(params.stream()
+                .map(Param::canonical)
+                .distinct()
+                .sorted(java.util.Comparator.comparing(Param::name).thenComparing(Param::value))
+                .toList());
+    }
+
+    /**
+     * Returns the values of all params with {@code name}.
+     *
+     * @param name the name of the query parameter
+     * @return the values of all params with {@code name} in order
+     */
+    public List<String> values(String name) {
+        return params.stream().filter(param -> param.name.equals(name)).map(Param::value).toList();
+    }
+
+    /**
+     * Removes all params with {@code name}.
+     *
+     * @param name the name of the query parameter
+     * @return the {@code QueryParams} without params with {@code name}
+     */
+    public QueryParams remove(String name) {
+        return new QueryParams(params.stream().filter(param -> !param.name.equals(name)).toList());
+    }
+
+    /**
+     * Splits {@code value} at all commas which aren't escaped.
+     *
+     * @param value the value of a query parameter
+     * @return the single values, which are still escaped
+     */
+    public static List<String> splitValues(String value) {
+        var values = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '\\') {
+                i++;
+            } else if (value.charAt(i) == ',') {
+                values.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        values.add(value.substring(start));
+        return values;
+    }
+
+    private static String token(TermCode termCode) {
+        return escape(termCode.system()) + "|" + escape(termCode.code());
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace(",", "\\,").replace("|", "\\|").replace("$", "\\$");
+    }
+
+    /**
+     * Encodes these params as body of a form POST, followed by the already {@code encoded} params.
+     * <p>
+     * Names and values are written in UTF-8 without intermediate strings. Only the characters {@code %}, {@code &},
+     * {@code +} and {@code #}, which would change the meaning of the body or of a URL, are percent-encoded, so that the
+     * encoded params stay readable and are understood by FHIR servers in both a request body and a URL.
+     *
+     * @param encoded params encoded by this method, which are appended
+     * @return the encoded params
+     */
+    public byte[] encode(byte[] encoded) {
+        var out = new ByteArrayOutputStream(64 + encoded.length);
+        for (int i = 0; i < params.size(); i++) {
+            var param = params.get(i);
+            if (i > 0) {
+                out.write('&');
+            }
+            encode(param.name, out);
+            out.write('=');
+            encode(param.value, out);
+        }
+        if (encoded.length > 0 && !params.isEmpty()) {
+            out.write('&');
+        }
+        out.write(encoded, 0, encoded.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes these params as body of a form POST.
+     *
+     * @return the encoded params
+     * @see #encode(byte[])
+     */
+    public byte[] encode() {
+        return encode(new byte[0]);
+    }
+
+    private static void encode(String s, ByteArrayOutputStream out) {
+        for (int i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            if (c == '%' || c == '&' || c == '+' || c == '#') {
+                out.write('%');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else {
+                var codePoint = s.codePointAt(i);
+                if (Character.isSurrogate(c) && !Character.isSupplementaryCodePoint(codePoint)) {
+                    out.write('?');
+                } else if (codePoint < 0x800) {
+                    out.write(0xC0 | codePoint >> 6);
+                    out.write(0x80 | codePoint & 0x3F);
+                } else if (codePoint < 0x10000) {
+                    out.write(0xE0 | codePoint >> 12);
+                    out.write(0x80 | codePoint >> 6 & 0x3F);
+                    out.write(0x80 | codePoint & 0x3F);
+                } else {
+                    out.write(0xF0 | codePoint >> 18);
+                    out.write(0x80 | codePoint >> 12 & 0x3F);
+                    out.write(0x80 | codePoint >> 6 & 0x3F);
+                    out.write(0x80 | codePoint & 0x3F);
+                    i++;
+                }
+            }
+        }
     }
 
     @Override
@@ -89,6 +258,23 @@ public record QueryParams(List<Param> params) {
 
     private record Param(String name, String value) {
 
+        private Param canonical() {
+            return new Param(name, splitValues(value).stream()
+                    .map(Param::canonicalValue)
+                    .distinct()
+                    .sorted()
+                    .collect(Collectors.joining(",")));
+        }
+
+        /**
+         * Removes the default prefix {@code eq} of {@code value} if it is a quantity. The decimal is kept as written,
+         * because {@code 5} and {@code 5.0} or {@code 1E+1} and {@code 10} search for different ranges.
+         */
+        private static String canonicalValue(String value) {
+            var matcher = QUANTITY.matcher(value);
+            return matcher.matches() && "eq".equals(matcher.group(1)) ? value.substring(2) : value;
+        }
+
         @Override
         public String toString() {
             return name + "=" + value;
@@ -2,7 +2,7 @@ package de.medizininformatikinitiative.flare.model.mapping;
 
 import de.medizininformatikinitiative.flare.model.sq.TermCode;
 
-public class AttributeMappingNotFoundException extends Exception {
+public class AttributeMappingNotFoundException extends ExpansionException {
 
     public AttributeMappingNotFoundException(TermCode mappingCode, TermCode attributeCode) {
         super("Attribute mapping for code `%s` in mapping with code `%s` was  not found."
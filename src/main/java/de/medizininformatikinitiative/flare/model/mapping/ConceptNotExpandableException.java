@@ -2,7 +2,7 @@ package de.medizininformatikinitiative.flare.model.mapping;
 
 import de.medizininformatikinitiative.flare.model.sq.Concept;
 
-public class ConceptNotExpandableException extends Exception {
+public class ConceptNotExpandableException extends ExpansionException {
 
     public ConceptNotExpandableException(Concept concept) {
         super("The concept `%s` is not expandable.".formatted(concept));
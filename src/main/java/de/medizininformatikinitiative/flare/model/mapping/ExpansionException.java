@@ -0,0 +1,11 @@
+package de.medizininformatikinitiative.flare.model.mapping;
+
+/**
+ * The common super class of all errors occurring while a criterion is expanded.
+ */
+public abstract class ExpansionException extends Exception {
+
+    protected ExpansionException(String message) {
+        super(message);
+    }
+}
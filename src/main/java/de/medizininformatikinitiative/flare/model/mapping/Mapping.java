@@ -100,8 +100,15 @@ public final class Mapping {
     }
 
     public Mono<AttributeMapping> findAttributeMapping(TermCode code) {
+        return Mono.fromCallable(() -> attributeMapping(code));
+    }
+
+    public AttributeMapping attributeMapping(TermCode code) throws AttributeMappingNotFoundException {
         AttributeMapping mapping = attributeMappings.get(code);
-        return mapping == null ? Mono.error(new AttributeMappingNotFoundException(key, code)) : Mono.just(mapping);
+        if (mapping == null) {
+            throw new AttributeMappingNotFoundException(key, code);
+        }
+        return mapping;
     }
 
     private record ValueFilterMapping(FilterType type, String searchParameter) implements FilterMapping {
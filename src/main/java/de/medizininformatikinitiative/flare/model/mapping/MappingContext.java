@@ -6,6 +6,7 @@ import reactor.core.publisher.Mono;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static java.util.Objects.requireNonNull;
 
@@ -17,11 +18,11 @@ import static java.util.Objects.requireNonNull;
 public class MappingContext {
 
     private final Map<TermCode, Mapping> mappings;
-    private final TermCodeNode conceptTree;
+    private final TermCodeIndex conceptIndex;
 
     private MappingContext(Map<TermCode, Mapping> mappings, TermCodeNode conceptTree) {
         this.mappings = Map.copyOf(mappings);
-        this.conceptTree = requireNonNull(conceptTree);
+        this.conceptIndex = TermCodeIndex.of(conceptTree);
     }
 
     /**
@@ -42,8 +43,31 @@ public class MappingContext {
      * @return either the Mapping or {@code Optional#empty() nothing}
      */
     public Mono<Mapping> findMapping(TermCode key) {
+        return Mono.fromCallable(() -> mapping(key));
+    }
+
+    /**
+     * Returns the {@link Mapping} with the given {@code key}.
+     *
+     * @param key the TermCode of the mapping
+     * @return the Mapping
+     * @throws MappingNotFoundException if there is no mapping with the given {@code key}
+     */
+    public Mapping mapping(TermCode key) throws MappingNotFoundException {
         var mapping = mappings.get(requireNonNull(key));
-        return mapping == null ? Mono.error(new MappingNotFoundException(key)) : Mono.just(mapping);
+        if (mapping == null) {
+            throw new MappingNotFoundException(key);
+        }
+        return mapping;
+    }
+
+    /**
+     * Returns the keys of all mappings.
+     *
+     * @return the keys of all mappings
+     */
+    public Set<TermCode> mappingKeys() {
+        return mappings.keySet();
     }
 
     /**
@@ -53,7 +77,24 @@ public class MappingContext {
      * @return the mono of term codes
      */
     public Mono<List<TermCode>> expandConcept(Concept concept) {
-        var termCodes = concept.termCodes().stream().flatMap(conceptTree::expand).toList();
-        return termCodes.isEmpty() ? Mono.error(new ConceptNotExpandableException(concept)) : Mono.just(termCodes);
+        return Mono.fromCallable(() -> termCodes(concept));
+    }
+
+    /**
+     * Expands {@code concept} into {@link TermCode term codes}.
+     *
+     * @param concept the concept to expand
+     * @return the term codes
+     * @throws ConceptNotExpandableException if {@code concept} expands into no term codes
+     */
+    public List<TermCode> termCodes(Concept concept) throws ConceptNotExpandableException {
+        var conceptTermCodes = concept.termCodes();
+        var termCodes = conceptTermCodes.size() == 1
+                ? conceptIndex.expand(conceptTermCodes.get(0))
+                : conceptTermCodes.stream().flatMap(termCode -> conceptIndex.expand(termCode).stream()).toList();
+        if (termCodes.isEmpty()) {
+            throw new ConceptNotExpandableException(concept);
+        }
+        return termCodes;
     }
 }
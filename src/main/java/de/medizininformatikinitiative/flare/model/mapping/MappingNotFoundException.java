@@ -2,7 +2,7 @@ package de.medizininformatikinitiative.flare.model.mapping;
 
 import de.medizininformatikinitiative.flare.model.sq.TermCode;
 
-public class MappingNotFoundException extends Exception {
+public class MappingNotFoundException extends ExpansionException {
 
     public MappingNotFoundException(TermCode termCode) {
         super("Mapping for code `%s` not found.".formatted(termCode));
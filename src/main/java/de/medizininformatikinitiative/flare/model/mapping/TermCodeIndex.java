@@ -0,0 +1,97 @@
+package de.medizininformatikinitiative.flare.model.mapping;
+
+import de.medizininformatikinitiative.flare.model.sq.TermCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A flattened index of a {@link TermCodeNode concept tree} which expands term codes without walking the tree.
+ * <p>
+ * The term codes of the tree are stored in pre-order in one array, so that the subtree of each node occupies the
+ * interval of the array starting at the node itself. Term codes occurring under several parents have one interval per
+ * occurrence. Occurrences within the subtree of another occurrence of the same term code are dropped, because they are
+ * already part of its interval.
+ * <p>
+ * {@link #expand(TermCode) Expansion} returns the same term codes in the same order as
+ * {@link TermCodeNode#expand(TermCode)}.
+ */
+final class TermCodeIndex {
+
+    private final List<TermCode> termCodes;
+    private final Map<TermCode, int[]> intervals;
+
+    private TermCodeIndex(List<TermCode> termCodes, Map<TermCode, int[]> intervals) {
+        this.termCodes = termCodes;
+        this.intervals = intervals;
+    }
+
+    /**
+     * Builds the index of {@code conceptTree}.
+     *
+     * @param conceptTree the tree of concepts to index
+     * @return the index
+     */
+    static TermCodeIndex of(TermCodeNode conceptTree) {
+        var termCodes = new ArrayList<TermCode>();
+        var occurrences = new HashMap<TermCode, List<int[]>>();
+        add(requireNonNull(conceptTree), termCodes, occurrences);
+
+        var intervals = new HashMap<TermCode, int[]>(occurrences.size() * 4 / 3 + 1);
+        occurrences.forEach((termCode, list) -> intervals.put(termCode, outermost(list)));
+        return new TermCodeIndex(Collections.unmodifiableList(Arrays.asList(termCodes.toArray(TermCode[]::new))),
+                intervals);
+    }
+
+    private static void add(TermCodeNode node, List<TermCode> termCodes, Map<TermCode, List<int[]>> occurrences) {
+        var interval = new int[]{termCodes.size(), 0};
+        occurrences.computeIfAbsent(node.termCode(), k -> new ArrayList<>(1)).add(interval);
+        termCodes.add(node.termCode());
+        for (TermCodeNode child : node.children()) {
+            add(child, termCodes, occurrences);
+        }
+        interval[1] = termCodes.size();
+    }
+
+    /**
+     * Returns the intervals of {@code occurrences}, which are ordered by start, without the nested ones as flat array
+     * of start and end pairs.
+     */
+    private static int[] outermost(List<int[]> occurrences) {
+        var result = new int[occurrences.size() * 2];
+        var n = 0;
+        for (int[] interval : occurrences) {
+            if (n == 0 || interval[0] >= result[n - 1]) {
+                result[n++] = interval[0];
+                result[n++] = interval[1];
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Returns {@code termCode} and all its descendants of all of its occurrences.
+     *
+     * @param termCode the term code to expand
+     * @return the expanded term codes or an empty list if {@code termCode} isn't part of the tree
+     */
+    List<TermCode> expand(TermCode termCode) {
+        var interval = intervals.get(requireNonNull(termCode));
+        if (interval == null) {
+            return List.of();
+        } else if (interval.length == 2) {
+            return termCodes.subList(interval[0], interval[1]);
+        }
+        var result = new ArrayList<TermCode>();
+        for (int i = 0; i < interval.length; i += 2) {
+            result.addAll(termCodes.subList(interval[i], interval[i + 1]));
+        }
+        return result;
+    }
+}
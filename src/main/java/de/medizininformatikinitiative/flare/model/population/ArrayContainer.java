@@ -0,0 +1,136 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A container of at most {@link #MAX_ARRAY_SIZE} values, stored as sorted array.
+ */
+final class ArrayContainer implements Container {
+
+    final char[] values;
+
+    ArrayContainer(char[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public int cardinality() {
+        return values.length;
+    }
+
+    @Override
+    public boolean contains(char value) {
+        return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    @Override
+    public Container and(Container other) {
+        if (other instanceof BitmapContainer bitmap) {
+            var result = new char[values.length];
+            int n = 0;
+            for (char value : values) {
+                if (bitmap.contains(value)) {
+                    result[n++] = value;
+                }
+            }
+            return new ArrayContainer(Arrays.copyOf(result, n));
+        }
+        var b = ((ArrayContainer) other).values;
+        var result = new char[Math.min(values.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < values.length && j < b.length) {
+            if (values[i] < b[j]) {
+                i++;
+            } else if (values[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = values[i];
+                i++;
+                j++;
+            }
+        }
+        return new ArrayContainer(Arrays.copyOf(result, n));
+    }
+
+    @Override
+    public Container or(Container other) {
+        if (other instanceof BitmapContainer bitmap) {
+            return bitmap.or(this);
+        }
+        var b = ((ArrayContainer) other).values;
+        var result = new char[values.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < values.length && j < b.length) {
+            if (values[i] < b[j]) {
+                result[n++] = values[i++];
+            } else if (values[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = values[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < values.length) {
+            result[n++] = values[i++];
+        }
+        while (j < b.length) {
+            result[n++] = b[j++];
+        }
+        return Container.of(result, 0, n);
+    }
+
+    @Override
+    public Container andNot(Container other) {
+        if (other instanceof BitmapContainer bitmap) {
+            var result = new char[values.length];
+            int n = 0;
+            for (char value : values) {
+                if (!bitmap.contains(value)) {
+                    result[n++] = value;
+                }
+            }
+            return new ArrayContainer(Arrays.copyOf(result, n));
+        }
+        var b = ((ArrayContainer) other).values;
+        var result = new char[values.length];
+        int i = 0, j = 0, n = 0;
+        while (i < values.length && j < b.length) {
+            if (values[i] < b[j]) {
+                result[n++] = values[i++];
+            } else if (values[i] > b[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        while (i < values.length) {
+            result[n++] = values[i++];
+        }
+        return new ArrayContainer(Arrays.copyOf(result, n));
+    }
+
+    @Override
+    public void forEach(int high, IntConsumer consumer) {
+        for (char value : values) {
+            consumer.accept(high | value);
+        }
+    }
+
+    @Override
+    public long memorySize() {
+        return 16 + 16 + 2L * values.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof ArrayContainer that && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+}
@@ -0,0 +1,136 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A container of more than {@link #MAX_ARRAY_SIZE} values, stored as bitmap of 2^16 bits.
+ */
+final class BitmapContainer implements Container {
+
+    static final int WORDS = 1024;
+
+    final long[] words;
+    final int cardinality;
+
+    BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Returns the container appropriate for {@code words} having {@code cardinality} set bits.
+     */
+    static Container of(long[] words, int cardinality) {
+        if (cardinality > MAX_ARRAY_SIZE) {
+            return new BitmapContainer(words, cardinality);
+        }
+        var values = new char[cardinality];
+        int n = 0;
+        for (int i = 0; i < WORDS; i++) {
+            long word = words[i];
+            while (word != 0) {
+                values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values);
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public boolean contains(char value) {
+        return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    public Container and(Container other) {
+        if (other instanceof ArrayContainer array) {
+            return array.and(this);
+        }
+        var b = ((BitmapContainer) other).words;
+        var result = new long[WORDS];
+        int cardinality = 0;
+        for (int i = 0; i < WORDS; i++) {
+            result[i] = words[i] & b[i];
+            cardinality += Long.bitCount(result[i]);
+        }
+        return of(result, cardinality);
+    }
+
+    @Override
+    public Container or(Container other) {
+        var result = words.clone();
+        if (other instanceof ArrayContainer array) {
+            int cardinality = this.cardinality;
+            for (char value : array.values) {
+                long bit = 1L << value;
+                if ((result[value >>> 6] & bit) == 0) {
+                    result[value >>> 6] |= bit;
+                    cardinality++;
+                }
+            }
+            return new BitmapContainer(result, cardinality);
+        }
+        var b = ((BitmapContainer) other).words;
+        int cardinality = 0;
+        for (int i = 0; i < WORDS; i++) {
+            result[i] |= b[i];
+            cardinality += Long.bitCount(result[i]);
+        }
+        return new BitmapContainer(result, cardinality);
+    }
+
+    @Override
+    public Container andNot(Container other) {
+        var result = words.clone();
+        if (other instanceof ArrayContainer array) {
+            int cardinality = this.cardinality;
+            for (char value : array.values) {
+                long bit = 1L << value;
+                if ((result[value >>> 6] & bit) != 0) {
+                    result[value >>> 6] &= ~bit;
+                    cardinality--;
+                }
+            }
+            return of(result, cardinality);
+        }
+        var b = ((BitmapContainer) other).words;
+        int cardinality = 0;
+        for (int i = 0; i < WORDS; i++) {
+            result[i] &= ~b[i];
+            cardinality += Long.bitCount(result[i]);
+        }
+        return of(result, cardinality);
+    }
+
+    @Override
+    public void forEach(int high, IntConsumer consumer) {
+        for (int i = 0; i < WORDS; i++) {
+            long word = words[i];
+            while (word != 0) {
+                consumer.accept(high | ((i << 6) + Long.numberOfTrailingZeros(word)));
+                word &= word - 1;
+            }
+        }
+    }
+
+    @Override
+    public long memorySize() {
+        return 24 + 16 + 8L * WORDS;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof BitmapContainer that && Arrays.equals(words, that.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
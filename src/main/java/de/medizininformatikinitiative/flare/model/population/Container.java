@@ -0,0 +1,55 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A chunk of a {@link Population population} holding the lower 16 bits of all ids which share the same upper 16 bits.
+ * <p>
+ * Containers are immutable. Sparse chunks are represented by an {@link ArrayContainer array container} and dense
+ * chunks by a {@link BitmapContainer bitmap container}. All operations return the container type appropriate for the
+ * cardinality of their result, so that equal sets always have equal representations.
+ */
+sealed interface Container permits ArrayContainer, BitmapContainer {
+
+    /**
+     * The maximum cardinality of an {@link ArrayContainer array container}. Above that, a
+     * {@link BitmapContainer bitmap container} of 8 KiB is smaller.
+     */
+    int MAX_ARRAY_SIZE = 4096;
+
+    /**
+     * Returns a container holding all values of the sorted, distinct {@code values} from index {@code from}
+     * (inclusive) to {@code to} (exclusive).
+     */
+    static Container of(char[] values, int from, int to) {
+        if (to - from <= MAX_ARRAY_SIZE) {
+            return new ArrayContainer(Arrays.copyOfRange(values, from, to));
+        }
+        var words = new long[BitmapContainer.WORDS];
+        for (int i = from; i < to; i++) {
+            words[values[i] >>> 6] |= 1L << values[i];
+        }
+        return new BitmapContainer(words, to - from);
+    }
+
+    int cardinality();
+
+    boolean contains(char value);
+
+    Container and(Container other);
+
+    Container or(Container other);
+
+    Container andNot(Container other);
+
+    /**
+     * Calls {@code consumer} with all values in ascending order, combined with {@code high} as upper 16 bits.
+     */
+    void forEach(int high, IntConsumer consumer);
+
+    /**
+     * Returns an estimate of the number of bytes this container occupies on the heap.
+     */
+    long memorySize();
+}
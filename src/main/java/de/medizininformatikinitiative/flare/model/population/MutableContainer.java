@@ -0,0 +1,120 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+
+import static de.medizininformatikinitiative.flare.model.population.BitmapContainer.WORDS;
+
+/**
+ * A mutable counterpart of a {@link Container container} used by the {@link PopulationAccumulator accumulator}.
+ * <p>
+ * A mutable container is sparse, holding its values in a sorted array, or dense, holding its values in a bitmap.
+ * Intersections shrink sparse containers in place and unions turn them into dense containers first, so that both
+ * operations never allocate more than one array per chunk.
+ */
+final class MutableContainer {
+
+    private char[] values;
+    private long[] words;
+    private int cardinality;
+
+    private MutableContainer(char[] values, long[] words, int cardinality) {
+        this.values = values;
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    static MutableContainer copyOf(Container container) {
+        if (container instanceof ArrayContainer array) {
+            return new MutableContainer(array.values.clone(), null, array.values.length);
+        }
+        var bitmap = (BitmapContainer) container;
+        return new MutableContainer(null, bitmap.words.clone(), bitmap.cardinality);
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    void and(Container other) {
+        if (values != null) {
+            cardinality = other instanceof BitmapContainer bitmap
+                    ? retain(values, cardinality, bitmap)
+                    : retain(values, cardinality, ((ArrayContainer) other).values);
+        } else if (other instanceof ArrayContainer array) {
+            values = array.values.clone();
+            cardinality = retain(values, values.length, new BitmapContainer(words, cardinality));
+            words = null;
+        } else {
+            var b = ((BitmapContainer) other).words;
+            int cardinality = 0;
+            for (int i = 0; i < WORDS; i++) {
+                words[i] &= b[i];
+                cardinality += Long.bitCount(words[i]);
+            }
+            this.cardinality = cardinality;
+        }
+    }
+
+    void or(Container other) {
+        if (words == null) {
+            words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+        if (other instanceof ArrayContainer array) {
+            for (char value : array.values) {
+                long bit = 1L << value;
+                if ((words[value >>> 6] & bit) == 0) {
+                    words[value >>> 6] |= bit;
+                    cardinality++;
+                }
+            }
+        } else {
+            var b = ((BitmapContainer) other).words;
+            int cardinality = 0;
+            for (int i = 0; i < WORDS; i++) {
+                words[i] |= b[i];
+                cardinality += Long.bitCount(words[i]);
+            }
+            this.cardinality = cardinality;
+        }
+    }
+
+    /**
+     * Returns an immutable container of the current values. This mutable container must not be used afterwards.
+     */
+    Container freeze() {
+        if (values != null) {
+            return new ArrayContainer(cardinality == values.length ? values : Arrays.copyOf(values, cardinality));
+        }
+        return BitmapContainer.of(words, cardinality);
+    }
+
+    private static int retain(char[] values, int size, BitmapContainer bitmap) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (bitmap.contains(values[i])) {
+                values[n++] = values[i];
+            }
+        }
+        return n;
+    }
+
+    private static int retain(char[] values, int size, char[] other) {
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.length) {
+            if (values[i] < other[j]) {
+                i++;
+            } else if (values[i] > other[j]) {
+                j++;
+            } else {
+                values[n++] = values[i];
+                i++;
+                j++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,72 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A dictionary that assigns dense, non-negative integers to patient ids.
+ * <p>
+ * Each patient id keeps its integer for the lifetime of the dictionary, so that {@link Population populations} of
+ * different searches can be combined. The dictionary is thread-safe.
+ */
+public class PatientIdDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private String[] patientIds = new String[1024];
+    private int size;
+
+    /**
+     * Returns the integer assigned to {@code patientId}, assigning the next free integer if {@code patientId} is
+     * encoded for the first time.
+     *
+     * @param patientId the patient id to encode
+     * @return the integer assigned to {@code patientId}
+     */
+    public int encode(String patientId) {
+        var id = ids.get(patientId);
+        return id == null ? ids.computeIfAbsent(patientId, this::append) : id;
+    }
+
+    private synchronized int append(String patientId) {
+        if (size == patientIds.length) {
+            patientIds = Arrays.copyOf(patientIds, size * 2);
+        }
+        patientIds[size] = patientId;
+        return size++;
+    }
+
+    /**
+     * Returns the patient id {@code id} was assigned to.
+     *
+     * @param id the integer to decode
+     * @return the patient id {@code id} was assigned to
+     * @throws IllegalArgumentException if {@code id} was never assigned
+     */
+    public synchronized String decode(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("unknown patient id: " + id);
+        }
+        return patientIds[id];
+    }
+
+    /**
+     * Returns the patient ids of all patients in {@code population}.
+     *
+     * @param population a population of integers assigned by this dictionary
+     * @return the patient ids of all patients in {@code population}
+     */
+    public synchronized Set<String> decode(Population population) {
+        return population.stream().mapToObj(id -> patientIds[id]).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Returns the number of patient ids in this dictionary.
+     *
+     * @return the number of patient ids in this dictionary
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,271 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable set of patients, each represented by the id a {@link PatientIdDictionary dictionary} assigned to it.
+ * <p>
+ * Populations are compressed bitmaps following the Roaring layout. The ids are partitioned by their upper 16 bits into
+ * chunks. Each chunk is stored in a container which is either a sorted array of the lower 16 bits, if the chunk is
+ * sparse, or a bitmap of 2^16 bits, if the chunk is dense. Set operations work chunk by chunk and on dense chunks word
+ * by word, without ever boxing an id.
+ */
+public final class Population {
+
+    public static final Population EMPTY = new Population(new char[0], new Container[0]);
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int size;
+
+    private Population(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int size = 0;
+        for (Container container : containers) {
+            size += container.cardinality();
+        }
+        this.size = size;
+    }
+
+    /**
+     * Returns a population of the given {@code ids}.
+     *
+     * @param ids the ids of the patients in any order and possibly with duplicates
+     * @return the population of the given {@code ids}
+     * @throws IllegalArgumentException if one of the ids is negative
+     */
+    public static Population of(int... ids) {
+        var builder = new Builder();
+        for (int id : ids) {
+            builder.add(id);
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the number of patients in this population.
+     *
+     * @return the number of patients in this population
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int id) {
+        int i = Arrays.binarySearch(keys, (char) (id >>> 16));
+        return id >= 0 && i >= 0 && containers[i].contains((char) id);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this population occupies on the heap.
+     *
+     * @return an estimate of the number of bytes this population occupies on the heap
+     */
+    public long memorySize() {
+        long size = 24 + 16 + 2L * keys.length + 16 + 4L * containers.length;
+        for (Container container : containers) {
+            size += container.memorySize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the population of patients which are both in this and in the {@code other} population.
+     *
+     * @param other the other population
+     * @return the intersection of this and the {@code other} population
+     */
+    public Population and(Population other) {
+        var keys = new char[Math.min(this.keys.length, other.keys.length)];
+        var containers = new Container[keys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                var container = this.containers[i].and(other.containers[j]);
+                if (container.cardinality() > 0) {
+                    keys[n] = this.keys[i];
+                    containers[n++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return of(keys, containers, n);
+    }
+
+    /**
+     * Returns the population of patients which are in this or in the {@code other} population.
+     *
+     * @param other the other population
+     * @return the union of this and the {@code other} population
+     */
+    public Population or(Population other) {
+        var keys = new char[this.keys.length + other.keys.length];
+        var containers = new Container[keys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++];
+            } else if (this.keys[i] > other.keys[j]) {
+                keys[n] = other.keys[j];
+                containers[n++] = other.containers[j++];
+            } else {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++].or(other.containers[j++]);
+            }
+        }
+        for (; i < this.keys.length; i++, n++) {
+            keys[n] = this.keys[i];
+            containers[n] = this.containers[i];
+        }
+        for (; j < other.keys.length; j++, n++) {
+            keys[n] = other.keys[j];
+            containers[n] = other.containers[j];
+        }
+        return of(keys, containers, n);
+    }
+
+    /**
+     * Returns the population of patients which are in this but not in the {@code other} population.
+     *
+     * @param other the other population
+     * @return the difference of this and the {@code other} population
+     */
+    public Population andNot(Population other) {
+        var keys = new char[this.keys.length];
+        var containers = new Container[keys.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < this.keys[i]) {
+                j++;
+            }
+            var container = j < other.keys.length && other.keys[j] == this.keys[i]
+                    ? this.containers[i].andNot(other.containers[j])
+                    : this.containers[i];
+            if (container.cardinality() > 0) {
+                keys[n] = this.keys[i];
+                containers[n++] = container;
+            }
+        }
+        return of(keys, containers, n);
+    }
+
+    /**
+     * Calls {@code consumer} with all ids of this population in ascending order.
+     *
+     * @param consumer the consumer to call
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            containers[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    /**
+     * Returns the ids of this population in ascending order.
+     *
+     * @return a stream of the ids of this population
+     */
+    public IntStream stream() {
+        var builder = IntStream.builder();
+        forEach(builder);
+        return builder.build();
+    }
+
+    char[] keys() {
+        return keys;
+    }
+
+    Container[] containers() {
+        return containers;
+    }
+
+    static Population of(char[] keys, Container[] containers, int n) {
+        return n == 0 ? EMPTY : new Population(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof Population that && Arrays.equals(keys, that.keys) &&
+                Arrays.equals(containers, that.containers);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(keys) + Arrays.hashCode(containers);
+    }
+
+    @Override
+    public String toString() {
+        return "Population[size=" + size + "]";
+    }
+
+    /**
+     * A builder collecting ids in any order before turning them into a {@link Population population}.
+     * <p>
+     * Builders are not thread-safe.
+     */
+    public static final class Builder {
+
+        private int[] ids = new int[16];
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds {@code id} to the population under construction.
+         *
+         * @param id the id to add
+         * @return this builder
+         * @throws IllegalArgumentException if {@code id} is negative
+         */
+        public Builder add(int id) {
+            if (id < 0) {
+                throw new IllegalArgumentException("negative id: " + id);
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+            return this;
+        }
+
+        public Population build() {
+            Arrays.sort(ids, 0, size);
+            var keys = new char[size];
+            var containers = new Container[size];
+            var values = new char[Math.min(size, 1 << 16)];
+            int n = 0, i = 0;
+            while (i < size) {
+                char key = (char) (ids[i] >>> 16);
+                int count = 0;
+                for (; i < size && ids[i] >>> 16 == key; i++) {
+                    char value = (char) ids[i];
+                    if (count == 0 || values[count - 1] != value) {
+                        values[count++] = value;
+                    }
+                }
+                keys[n] = key;
+                containers[n++] = Container.of(values, 0, count);
+            }
+            return of(keys, containers, n);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A mutable population used to reduce many {@link Population populations} into one.
+ * <p>
+ * Reducing with the immutable set operations of {@link Population} allocates a new population for every operand.
+ * The accumulator instead copies its first operand once, combines all further operands into that copy in place and
+ * only {@link #freeze() freezes} the result at the end. Use {@link #intersection(Collection) intersection} and
+ * {@link #union(Collection) union} to reduce whole groups of populations.
+ * <p>
+ * Accumulators are not thread-safe.
+ */
+public final class PopulationAccumulator {
+
+    private char[] keys;
+    private MutableContainer[] containers;
+    private int n;
+
+    private PopulationAccumulator(Population population) {
+        keys = population.keys().clone();
+        containers = Arrays.stream(population.containers()).map(MutableContainer::copyOf)
+                .toArray(MutableContainer[]::new);
+        n = keys.length;
+    }
+
+    /**
+     * Returns an accumulator starting with the patients of {@code population}.
+     *
+     * @param population the population to start with
+     * @return the accumulator
+     */
+    public static PopulationAccumulator copyOf(Population population) {
+        return new PopulationAccumulator(population);
+    }
+
+    /**
+     * Returns the intersection of all {@code populations}.
+     * <p>
+     * The intersection starts with the smallest population, so that the accumulator never holds more patients than
+     * the smallest population has, and stops as soon as it becomes empty.
+     *
+     * @param populations the populations to intersect
+     * @return the intersection of all {@code populations}
+     * @throws IllegalArgumentException if {@code populations} is empty
+     */
+    public static Population intersection(Collection<Population> populations) {
+        var sorted = sortedBySize(populations);
+        if (sorted.size() == 1) {
+            return sorted.get(0);
+        }
+        var accumulator = copyOf(sorted.get(0));
+        for (int i = 1; i < sorted.size() && !accumulator.isEmpty(); i++) {
+            accumulator.and(sorted.get(i));
+        }
+        return accumulator.freeze();
+    }
+
+    /**
+     * Returns the union of all {@code populations}.
+     * <p>
+     * The union starts with the largest population, so that the fewest chunks have to be added to the accumulator.
+     *
+     * @param populations the populations to unite
+     * @return the union of all {@code populations}
+     * @throws IllegalArgumentException if {@code populations} is empty
+     */
+    public static Population union(Collection<Population> populations) {
+        var sorted = sortedBySize(populations);
+        if (sorted.size() == 1) {
+            return sorted.get(0);
+        }
+        var accumulator = copyOf(sorted.get(sorted.size() - 1));
+        for (int i = sorted.size() - 2; i >= 0; i--) {
+            accumulator.or(sorted.get(i));
+        }
+        return accumulator.freeze();
+    }
+
+    private static List<Population> sortedBySize(Collection<Population> populations) {
+        if (populations.isEmpty()) {
+            throw new IllegalArgumentException("no populations");
+        }
+        return populations.stream().sorted(Comparator.comparingInt(Population::size)).toList();
+    }
+
+    public boolean isEmpty() {
+        return n == 0;
+    }
+
+    /**
+     * Removes all patients which are not in {@code other}.
+     *
+     * @param other the population to intersect with
+     * @return this accumulator
+     */
+    public PopulationAccumulator and(Population other) {
+        var otherKeys = other.keys();
+        var otherContainers = other.containers();
+        int j = 0, m = 0;
+        for (int i = 0; i < n; i++) {
+            while (j < otherKeys.length && otherKeys[j] < keys[i]) {
+                j++;
+            }
+            if (j < otherKeys.length && otherKeys[j] == keys[i]) {
+                containers[i].and(otherContainers[j]);
+                if (containers[i].cardinality() > 0) {
+                    keys[m] = keys[i];
+                    containers[m++] = containers[i];
+                }
+            }
+        }
+        Arrays.fill(containers, m, n, null);
+        n = m;
+        return this;
+    }
+
+    /**
+     * Adds all patients of {@code other}.
+     *
+     * @param other the population to unite with
+     * @return this accumulator
+     */
+    public PopulationAccumulator or(Population other) {
+        var otherKeys = other.keys();
+        var otherContainers = other.containers();
+        var keys = new char[n + otherKeys.length];
+        var containers = new MutableContainer[keys.length];
+        int i = 0, j = 0, m = 0;
+        while (i < n || j < otherKeys.length) {
+            if (j == otherKeys.length || i < n && this.keys[i] < otherKeys[j]) {
+                keys[m] = this.keys[i];
+                containers[m++] = this.containers[i++];
+            } else if (i == n || this.keys[i] > otherKeys[j]) {
+                keys[m] = otherKeys[j];
+                containers[m++] = MutableContainer.copyOf(otherContainers[j++]);
+            } else {
+                this.containers[i].or(otherContainers[j++]);
+                keys[m] = this.keys[i];
+                containers[m++] = this.containers[i++];
+            }
+        }
+        this.keys = keys;
+        this.containers = containers;
+        n = m;
+        return this;
+    }
+
+    /**
+     * Returns an immutable population of all patients accumulated. This accumulator must not be used afterwards.
+     *
+     * @return the population of all patients accumulated
+     */
+    public Population freeze() {
+        var containers = new Container[n];
+        for (int i = 0; i < n; i++) {
+            containers[i] = this.containers[i].freeze();
+        }
+        return Population.of(keys, containers, n);
+    }
+}
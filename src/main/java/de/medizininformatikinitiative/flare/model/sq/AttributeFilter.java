@@ -2,9 +2,9 @@ package de.medizininformatikinitiative.flare.model.sq;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.JsonNode;
+import de.medizininformatikinitiative.flare.model.mapping.AttributeMappingNotFoundException;
 import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
-import reactor.core.publisher.Mono;
 
 import java.util.List;
 
@@ -38,7 +38,8 @@ public record AttributeFilter(TermCode code, FilterPart filterPart) implements F
         return new AttributeFilter(code, FilterPart.fromJsonNode(node));
     }
 
-    public Mono<List<ExpandedFilter>> expand(Mapping mapping) {
-        return mapping.findAttributeMapping(code).flatMap(filterPart::expand);
+    @Override
+    public List<ExpandedFilter> expandedFilters(Mapping mapping) throws AttributeMappingNotFoundException {
+        return filterPart.expandedFilters(mapping.attributeMapping(code));
     }
 }
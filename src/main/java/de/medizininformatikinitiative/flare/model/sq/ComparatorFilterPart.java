@@ -3,7 +3,6 @@ package de.medizininformatikinitiative.flare.model.sq;
 import de.medizininformatikinitiative.flare.model.mapping.FilterMapping;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedComparatorFilter;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
-import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
 import java.util.List;
@@ -41,7 +40,7 @@ public record ComparatorFilterPart(Comparator comparator, BigDecimal value, Term
     }
 
     @Override
-    public Mono<List<ExpandedFilter>> expand(FilterMapping filterMapping) {
-        return Mono.just(List.of(new ExpandedComparatorFilter(filterMapping.searchParameter(), comparator, value, unit)));
+    public List<ExpandedFilter> expandedFilters(FilterMapping filterMapping) {
+        return List.of(new ExpandedComparatorFilter(filterMapping.searchParameter(), comparator, value, unit));
     }
 }
@@ -4,7 +4,6 @@ import de.medizininformatikinitiative.flare.model.mapping.FilterMapping;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedCodeFilter;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedConceptFilter;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
-import reactor.core.publisher.Mono;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -33,13 +32,13 @@ public record ConceptFilterPart(List<TermCode> concepts) implements FilterPart {
     }
 
     @Override
-    public Mono<List<ExpandedFilter>> expand(FilterMapping filterMapping) {
-        return Mono.just(concepts.stream()
+    public List<ExpandedFilter> expandedFilters(FilterMapping filterMapping) {
+        return concepts.stream()
                 .map(concept -> switch (filterMapping.type()) {
                     case CODE -> (ExpandedFilter) new ExpandedCodeFilter(filterMapping.searchParameter(),
                             concept.code());
                     case CODING -> new ExpandedConceptFilter(filterMapping.searchParameter(), concept);
                 })
-                .toList());
+                .toList();
     }
 }
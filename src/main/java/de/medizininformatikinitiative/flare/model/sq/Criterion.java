@@ -5,6 +5,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import de.medizininformatikinitiative.flare.Util;
+import de.medizininformatikinitiative.flare.model.mapping.ExpansionException;
 import de.medizininformatikinitiative.flare.model.mapping.FixedCriterion;
 import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
@@ -12,6 +13,8 @@ import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedCriterion;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
 import reactor.core.publisher.Mono;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -70,31 +73,77 @@ public record Criterion(Concept concept, List<Filter> filters, TimeRestriction t
      * @return a mono of expanded criteria
      */
     public Mono<List<ExpandedCriterion>> expand(MappingContext mappingContext) {
-        return mappingContext.expandConcept(concept)
-                .flatMap(termCodes -> termCodes.stream()
-                        .map(termCode -> expandTermCode(mappingContext, termCode))
-                        .reduce(Mono.just(List.of()), Util::concat));
+        return expand(mappingContext, Integer.MAX_VALUE);
     }
 
-    private Mono<List<ExpandedCriterion>> expandTermCode(MappingContext mappingContext, TermCode termCode) {
-        return mappingContext.findMapping(termCode)
-                .flatMap(mapping -> expandFilters(mapping)
-                        .map(Util::cartesianProduct)
-                        .map(expandedFilterMatrix -> expandedFilterMatrix.isEmpty()
-                                ? List.of(expandedCriterion(mapping, termCode))
-                                : expandedFilterMatrix.stream()
-                                .map(expandedFilters -> expandedCriterion(mapping, termCode, expandedFilters))
-                                .toList()));
+    /**
+     * Expands this criterion into a {@link Mono mono} of {@link ExpandedCriterion expanded criteria}.
+     * <p>
+     * Each combination of the expanded filters results in one expanded criterion. The number of combinations is
+     * checked before any of them is created, so that criteria expanding into more than {@code maxFanOut} expanded
+     * criteria fail early with a {@link FanOutExceededException}.
+     *
+     * @param mappingContext contains the mappings needed to create the expanded criteria
+     * @param maxFanOut      the maximum number of expanded criteria
+     * @return a mono of expanded criteria
+     */
+    public Mono<List<ExpandedCriterion>> expand(MappingContext mappingContext, int maxFanOut) {
+        return Mono.fromCallable(() -> expandedCriteria(mappingContext, maxFanOut));
     }
 
-    private Mono<List<List<ExpandedFilter>>> expandFilters(Mapping mapping) {
-        return filters.stream()
-                .map(filter -> filter.expand(mapping))
-                .reduce(Mono.just(fixedCriterionFilters(mapping)), Util::add, Util::concat);
+    /**
+     * Expands this criterion like {@link #expand(MappingContext, int)}, but returns the expanded criteria directly.
+     * <p>
+     * Expansion only consists of lookups in {@code mappingContext}, so that this avoids the overhead of assembling
+     * monos.
+     *
+     * @param mappingContext contains the mappings needed to create the expanded criteria
+     * @param maxFanOut      the maximum number of expanded criteria
+     * @return the expanded criteria
+     * @throws ExpansionException if a mapping is missing or the criterion expands into more than {@code maxFanOut}
+     *                            expanded criteria
+     */
+    public List<ExpandedCriterion> expandedCriteria(MappingContext mappingContext, int maxFanOut)
+            throws ExpansionException {
+        var termCodes = mappingContext.termCodes(concept);
+        var expandedCriteria = new ArrayList<ExpandedCriterion>();
+        for (TermCode termCode : termCodes) {
+            expandTermCode(mappingContext.mapping(termCode), termCode, maxFanOut, expandedCriteria);
+        }
+        return Collections.unmodifiableList(expandedCriteria);
     }
 
-    private List<List<ExpandedFilter>> fixedCriterionFilters(Mapping mapping) {
-        return mapping.fixedCriteria().stream().map(FixedCriterion::expand).toList();
+    /**
+     * Adds the expanded criteria of {@code termCode} to {@code expandedCriteria}, checking the number of combinations
+     * of its expanded filters before any of them is created.
+     */
+    private void expandTermCode(Mapping mapping, TermCode termCode, int maxFanOut,
+                                List<ExpandedCriterion> expandedCriteria) throws ExpansionException {
+        var expandedFilterMatrix = expandFilters(mapping);
+        var size = Util.cartesianProductSize(expandedFilterMatrix);
+        if (Math.max(size, 1) > maxFanOut - expandedCriteria.size()) {
+            var total = size == Long.MAX_VALUE ? size : expandedCriteria.size() + size;
+            throw new FanOutExceededException(this, total, maxFanOut);
+        }
+        if (size == 0) {
+            expandedCriteria.add(expandedCriterion(mapping, termCode));
+        } else {
+            Util.lazyCartesianProduct(expandedFilterMatrix)
+                    .forEach(expandedFilters -> expandedCriteria.add(expandedCriterion(mapping, termCode,
+                            expandedFilters)));
+        }
+    }
+
+    private List<List<ExpandedFilter>> expandFilters(Mapping mapping) throws ExpansionException {
+        var fixedCriteria = mapping.fixedCriteria();
+        var expandedFilterMatrix = new ArrayList<List<ExpandedFilter>>(fixedCriteria.size() + filters.size());
+        for (FixedCriterion fixedCriterion : fixedCriteria) {
+            expandedFilterMatrix.add(fixedCriterion.expand());
+        }
+        for (Filter filter : filters) {
+            expandedFilterMatrix.add(filter.expandedFilters(mapping));
+        }
+        return expandedFilterMatrix;
     }
 
     private static ExpandedCriterion expandedCriterion(Mapping mapping, TermCode termCode) {
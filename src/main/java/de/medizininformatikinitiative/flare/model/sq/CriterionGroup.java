@@ -1,16 +1,20 @@
 package de.medizininformatikinitiative.flare.model.sq;
 
-import de.medizininformatikinitiative.flare.Util;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import de.medizininformatikinitiative.flare.model.population.PopulationAccumulator;
 import de.medizininformatikinitiative.flare.model.translate.Expression;
 import de.medizininformatikinitiative.flare.model.translate.Operator;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Function;
 
+import static java.util.function.Predicate.not;
+
 /**
  * A group of {@link Criterion criterion} providing operations to execute and translate them.
  *
@@ -50,18 +54,46 @@ public record CriterionGroup<T>(List<T> criteria) {
 
     /**
      * Executes all {@code criteria} of this group using the {@code executor} and performs a set
-     * {@link Util#intersection(Set, Set) intersection} on the results.
+     * {@link PopulationAccumulator#intersection(Collection) intersection} on the results.
+     * <p>
+     * As soon as one of the results is empty, the executions of all other criteria are cancelled, because the
+     * intersection will be empty anyway.
      */
-    public Mono<Set<String>> executeAndIntersection(Function<T, Publisher<? extends Set<String>>> executor) {
-        return Flux.fromIterable(criteria).flatMap(executor).reduce(Util::intersection);
+    public Mono<Population> executeAndIntersection(Function<T, Publisher<Population>> executor) {
+        return Flux.fromIterable(criteria).flatMap(executor).takeUntil(Population::isEmpty).collectList()
+                .filter(not(List::isEmpty))
+                .map(PopulationAccumulator::intersection);
     }
 
     /**
      * Executes all {@code criteria} of this group using the {@code executor} and performs a set
-     * {@link Util#union(Set, Set) union} on the results.
+     * {@link PopulationAccumulator#union(Collection) union} on the results.
      */
-    public Mono<Set<String>> executeAndUnion(Function<T, Publisher<? extends Set<String>>> executor) {
-        return Flux.fromIterable(criteria).flatMap(executor).reduce(Util::union);
+    public Mono<Population> executeAndUnion(Function<T, Publisher<Population>> executor) {
+        return Flux.fromIterable(criteria).flatMap(executor).collectList()
+                .filter(not(List::isEmpty))
+                .map(PopulationAccumulator::union);
+    }
+
+    /**
+     * Executes the {@code criteria} of this group one after another in ascending order of the cardinality estimated by
+     * the {@code estimator} and performs a set {@link Population#and(Population) intersection} on the results.
+     * <p>
+     * Criteria with an unknown cardinality should be estimated as {@link Long#MAX_VALUE}, so that they are executed
+     * last. As soon as the intersection becomes empty, the execution of the current criterion is cancelled and the
+     * remaining criteria aren't executed at all.
+     */
+    public Mono<Population> executeOrderedAndIntersection(Function<T, Mono<Long>> estimator,
+                                                          Function<T, Mono<Population>> executor) {
+        return Flux.fromIterable(criteria)
+                .flatMapSequential(criterion -> estimator.apply(criterion)
+                        .map(cardinality -> new Estimated<>(criterion, cardinality)))
+                .sort(Comparator.comparingLong(Estimated::cardinality))
+                .concatMap(estimated -> executor.apply(estimated.criterion()))
+                .scan(Population::and)
+                .takeUntil(Population::isEmpty)
+                .takeLast(1)
+                .next();
     }
 
     /**
@@ -87,4 +119,7 @@ public record CriterionGroup<T>(List<T> criteria) {
     public Mono<Operator> translateAndConcat(Function<T, Mono<Operator>> translator) {
         return Flux.fromIterable(criteria).flatMap(translator).reduce(Operator::concat);
     }
+
+    private record Estimated<T>(T criterion, long cardinality) {
+    }
 }
@@ -0,0 +1,11 @@
+package de.medizininformatikinitiative.flare.model.sq;
+
+import de.medizininformatikinitiative.flare.model.mapping.ExpansionException;
+
+public class FanOutExceededException extends ExpansionException {
+
+    public FanOutExceededException(Criterion criterion, long size, int maxFanOut) {
+        super("The criterion with concept `%s` expands into %d criteria, more than the maximum of %d."
+                .formatted(criterion.concept(), size, maxFanOut));
+    }
+}
@@ -1,5 +1,6 @@
 package de.medizininformatikinitiative.flare.model.sq;
 
+import de.medizininformatikinitiative.flare.model.mapping.ExpansionException;
 import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
 import reactor.core.publisher.Mono;
@@ -17,5 +18,16 @@ public interface Filter {
      * @param mapping the mapping to use for expansion
      * @return possibly multiple expanded filters
      */
-    Mono<List<ExpandedFilter>> expand(Mapping mapping);
+    default Mono<List<ExpandedFilter>> expand(Mapping mapping) {
+        return Mono.fromCallable(() -> expandedFilters(mapping));
+    }
+
+    /**
+     * Expands this filter like {@link #expand(Mapping)}, but returns the expanded filters directly.
+     *
+     * @param mapping the mapping to use for expansion
+     * @return possibly multiple expanded filters
+     * @throws ExpansionException if {@code mapping} has no mapping for this filter
+     */
+    List<ExpandedFilter> expandedFilters(Mapping mapping) throws ExpansionException;
 }
@@ -61,5 +61,21 @@ public interface FilterPart {
         return new TermCode(system, unit.get("code").asText(), unit.get("display").asText());
     }
 
-    Mono<List<ExpandedFilter>> expand(FilterMapping filterMapping);
+    /**
+     * Expands this filter part into one or more {@link ExpandedFilter expanded filters} using {@code filterMapping}.
+     *
+     * @param filterMapping the mapping of the filter this part belongs to
+     * @return a mono of the expanded filters
+     */
+    default Mono<List<ExpandedFilter>> expand(FilterMapping filterMapping) {
+        return Mono.just(expandedFilters(filterMapping));
+    }
+
+    /**
+     * Expands this filter part like {@link #expand(FilterMapping)}, but returns the expanded filters directly.
+     *
+     * @param filterMapping the mapping of the filter this part belongs to
+     * @return the expanded filters
+     */
+    List<ExpandedFilter> expandedFilters(FilterMapping filterMapping);
 }
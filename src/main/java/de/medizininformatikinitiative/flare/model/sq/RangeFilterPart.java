@@ -3,7 +3,6 @@ package de.medizininformatikinitiative.flare.model.sq;
 import de.medizininformatikinitiative.flare.model.mapping.FilterMapping;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedRangeFilter;
-import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
 import java.util.List;
@@ -26,7 +25,7 @@ public record RangeFilterPart(BigDecimal lowerBound, BigDecimal upperBound, Term
     }
 
     @Override
-    public Mono<List<ExpandedFilter>> expand(FilterMapping filterMapping) {
-        return Mono.just(List.of(new ExpandedRangeFilter(filterMapping.searchParameter(), lowerBound, upperBound, unit)));
+    public List<ExpandedFilter> expandedFilters(FilterMapping filterMapping) {
+        return List.of(new ExpandedRangeFilter(filterMapping.searchParameter(), lowerBound, upperBound, unit));
     }
 }
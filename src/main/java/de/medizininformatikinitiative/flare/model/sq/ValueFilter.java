@@ -5,7 +5,6 @@ import com.fasterxml.jackson.databind.JsonNode;
 import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.mapping.ValueMappingNotFoundException;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter;
-import reactor.core.publisher.Mono;
 
 import java.util.List;
 
@@ -38,9 +37,8 @@ public record ValueFilter(FilterPart filterPart) implements Filter {
     }
 
     @Override
-    public Mono<List<ExpandedFilter>> expand(Mapping mapping) {
-        return mapping.valueFilterMapping()
-                .map(filterPart::expand)
-                .orElseGet(() -> Mono.error(new ValueMappingNotFoundException(mapping.key())));
+    public List<ExpandedFilter> expandedFilters(Mapping mapping) throws ValueMappingNotFoundException {
+        return filterPart.expandedFilters(mapping.valueFilterMapping()
+                .orElseThrow(() -> new ValueMappingNotFoundException(mapping.key())));
     }
 }
@@ -6,11 +6,19 @@ import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.sq.Criterion;
 import de.medizininformatikinitiative.flare.model.sq.TermCode;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedFilter.toParams;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.mapping;
+import static java.util.stream.Collectors.toCollection;
 
 /**
  * A criterion that is already expanded from a {@link Criterion} of the structured query.
@@ -46,4 +54,62 @@ public record ExpandedCriterion(String resourceType, String searchParameter, Ter
     public Query toQuery() {
         return new Query(resourceType, QueryParams.of(searchParameter, code).appendParams(toParams(filters)));
     }
+
+    /**
+     * Translates {@code criteria} into queries, fusing all criteria which only differ in their {@link #code() code}
+     * into one query that searches for all their codes at once.
+     * <p>
+     * The params of a fused query don't get longer than {@code maxParamsLength} characters. Longer queries are split
+     * into several ones, unless a single criterion already exceeds the limit.
+     *
+     * @param criteria        the criteria to translate
+     * @param maxParamsLength the maximum length of the params of a fused query
+     * @return the list of queries which together find the same resources as the criteria
+     */
+    public static List<Query> toQueries(List<ExpandedCriterion> criteria, int maxParamsLength) {
+        return criteria.stream()
+                .collect(groupingBy(FusionKey::of, LinkedHashMap::new,
+                        mapping(ExpandedCriterion::code, toCollection(LinkedHashSet::new))))
+                .entrySet().stream()
+                .flatMap(entry -> entry.getKey().toQueries(entry.getValue(), maxParamsLength))
+                .toList();
+    }
+
+    /**
+     * Everything but the code of an expanded criterion.
+     */
+    private record FusionKey(String resourceType, String searchParameter, List<ExpandedFilter> filters) {
+
+        static FusionKey of(ExpandedCriterion criterion) {
+            return new FusionKey(criterion.resourceType, criterion.searchParameter, criterion.filters);
+        }
+
+        Stream<Query> toQueries(Collection<TermCode> codes, int maxParamsLength) {
+            var filterParams = toParams(filters);
+            var fixedLength = searchParameter.length() + 1 +
+                    (filters.isEmpty() ? 0 : filterParams.toString().length() + 1);
+            var queries = new ArrayList<Query>();
+            var chunk = new ArrayList<TermCode>();
+            var length = fixedLength;
+            for (TermCode code : codes) {
+                var tokenLength = QueryParams.of(searchParameter, code).toString().length() -
+                        searchParameter.length() - 1;
+                if (!chunk.isEmpty() && length + 1 + tokenLength > maxParamsLength) {
+                    queries.add(query(chunk, filterParams));
+                    chunk = new ArrayList<>();
+                    length = fixedLength;
+                }
+                length += (chunk.isEmpty() ? 0 : 1) + tokenLength;
+                chunk.add(code);
+            }
+            if (!chunk.isEmpty()) {
+                queries.add(query(chunk, filterParams));
+            }
+            return queries.stream();
+        }
+
+        private Query query(List<TermCode> codes, QueryParams filterParams) {
+            return new Query(resourceType, QueryParams.of(searchParameter, codes).appendParams(filterParams));
+        }
+    }
 }
@@ -1,10 +1,14 @@
 package de.medizininformatikinitiative.flare.rest;
 
 import de.medizininformatikinitiative.flare.model.sq.StructuredQuery;
+import de.medizininformatikinitiative.flare.service.Deadline;
+import de.medizininformatikinitiative.flare.service.DeadlineExceededException;
 import de.medizininformatikinitiative.flare.service.StructuredQueryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.server.RouterFunction;
@@ -12,11 +16,14 @@ import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.Objects;
+import java.util.Optional;
 
 import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
 import static org.springframework.web.reactive.function.server.RequestPredicates.accept;
 import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+import static org.springframework.web.reactive.function.server.ServerResponse.badRequest;
 import static org.springframework.web.reactive.function.server.ServerResponse.ok;
 
 @Component
@@ -24,12 +31,20 @@ public class QueryController {
 
     private static final MediaType MEDIA_TYPE_SQ = MediaType.valueOf("application/sq+json");
 
+    /**
+     * The header a client can use to shorten the timeout of an execution, in seconds.
+     */
+    static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
     private static final Logger logger = LoggerFactory.getLogger(QueryController.class);
 
     private final StructuredQueryService queryService;
+    private final Duration timeout;
 
-    public QueryController(StructuredQueryService queryService) {
+    public QueryController(StructuredQueryService queryService,
+                           @Value("${app.execution.timeout}") Duration timeout) {
         this.queryService = Objects.requireNonNull(queryService);
+        this.timeout = Objects.requireNonNull(timeout);
     }
 
     @Bean
@@ -38,11 +53,46 @@ public class QueryController {
                 .andRoute(POST("query/translate").and(accept(MEDIA_TYPE_SQ)), this::translate);
     }
 
+    /**
+     * Executes the structured query in the body of {@code request} with a {@link Deadline deadline} after the timeout
+     * given in the {@value #TIMEOUT_HEADER} header, which can't exceed the configured timeout.
+     * <p>
+     * Responds with {@code 504 Gateway Timeout} if the deadline expires before the query is executed.
+     */
     public Mono<ServerResponse> execute(ServerRequest request) {
         logger.debug("Execute query");
+        var timeout = timeout(request);
+        if (timeout.isEmpty()) {
+            return badRequest().bodyValue("Invalid %s header `%s`.".formatted(TIMEOUT_HEADER,
+                    request.headers().firstHeader(TIMEOUT_HEADER)));
+        }
+        var deadline = Deadline.in(timeout.get());
         return request.bodyToMono(StructuredQuery.class)
                 .flatMap(queryService::execute)
-                .flatMap(count -> ok().bodyValue(count));
+                .contextWrite(deadline.context())
+                .flatMap(count -> ok().bodyValue(count))
+                .onErrorResume(DeadlineExceededException.class, e -> {
+                    logger.debug("Query execution timed out: {}", e.getMessage());
+                    return ServerResponse.status(HttpStatus.GATEWAY_TIMEOUT).bodyValue(e.getMessage());
+                });
+    }
+
+    /**
+     * Returns the timeout of {@code request} or {@link Optional#empty() empty} if its {@value #TIMEOUT_HEADER} header
+     * is invalid.
+     */
+    private Optional<Duration> timeout(ServerRequest request) {
+        var value = request.headers().firstHeader(TIMEOUT_HEADER);
+        if (value == null) {
+            return Optional.of(timeout);
+        }
+        try {
+            var seconds = Long.parseLong(value.trim());
+            return seconds > 0 ? Optional.of(timeout.compareTo(Duration.ofSeconds(seconds)) < 0 ? timeout
+                    : Duration.ofSeconds(seconds)) : Optional.empty();
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
     }
 
     public Mono<ServerResponse> translate(ServerRequest request) {
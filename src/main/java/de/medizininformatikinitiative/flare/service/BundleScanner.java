@@ -0,0 +1,215 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import de.medizininformatikinitiative.flare.model.fhir.Coding;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Scans a search result Bundle for the patient IDs of its resources and its next link without decoding the Bundle.
+ * <p>
+ * The scanner is fed with the buffers of the response body as they arrive. Only the strings at
+ * {@code entry[].resource.{id,subject.reference,patient.reference}} and the {@code relation} and {@code url} of
+ * {@code link[]} are materialized. All other tokens are skipped, so no objects are built per entry and the page never
+ * has to be held in memory as a whole. The next link is reported as soon as its link object ends, which is usually
+ * long before the entries were scanned, so that the next page can be requested early.
+ * <p>
+ * The patient ID of a resource is taken from its {@code patient} reference, its {@code subject} reference or its
+ * {@code id}, in this order, as {@link de.medizininformatikinitiative.flare.model.fhir.Resource#patientId()} does.
+ * <p>
+ * Scanners {@link #createWithCodings(BiConsumer, Consumer) created with codings} also materialize
+ * {@code entry[].resource.code.coding[].{system,code}} and report them together with the patient ID of each resource.
+ */
+final class BundleScanner implements Closeable {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+    private final ByteBufferFeeder feeder;
+    private final BiConsumer<String, List<Coding>> resources;
+    private final boolean scanCodings;
+    private final Consumer<String> nextLinks;
+
+    private String id;
+    private String subject;
+    private String patient;
+    private final List<Coding> codings = new ArrayList<>();
+    private String codingSystem;
+    private String codingCode;
+    private String relation;
+    private String url;
+    private String nextLink;
+
+    private BundleScanner(JsonParser parser, BiConsumer<String, List<Coding>> resources, boolean scanCodings,
+                          Consumer<String> nextLinks) {
+        this.parser = parser;
+        this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+        this.resources = resources;
+        this.scanCodings = scanCodings;
+        this.nextLinks = nextLinks;
+    }
+
+    /**
+     * Creates a scanner reporting the patient ID of each resource to {@code patientIds} and the URL of the next link to
+     * {@code nextLinks}.
+     *
+     * @param patientIds the consumer of the patient IDs
+     * @param nextLinks  the consumer of the next link URL
+     * @return a new scanner
+     * @throws IOException if the parser can't be created
+     */
+    static BundleScanner create(Consumer<String> patientIds, Consumer<String> nextLinks) throws IOException {
+        Objects.requireNonNull(patientIds);
+        return new BundleScanner(FACTORY.createNonBlockingByteBufferParser(),
+                (patientId, codings) -> patientIds.accept(patientId), false, Objects.requireNonNull(nextLinks));
+    }
+
+    /**
+     * Creates a scanner reporting the patient ID and the codings of the {@code code} element of each resource to
+     * {@code resources} and the URL of the next link to {@code nextLinks}.
+     *
+     * @param resources the consumer of the patient IDs and codings
+     * @param nextLinks the consumer of the next link URL
+     * @return a new scanner
+     * @throws IOException if the parser can't be created
+     */
+    static BundleScanner createWithCodings(BiConsumer<String, List<Coding>> resources, Consumer<String> nextLinks)
+            throws IOException {
+        return new BundleScanner(FACTORY.createNonBlockingByteBufferParser(), Objects.requireNonNull(resources), true,
+                Objects.requireNonNull(nextLinks));
+    }
+
+    /**
+     * Scans the readable bytes of {@code buffer}. The buffer isn't needed anymore after this method returns.
+     *
+     * @param buffer the next part of the Bundle
+     * @throws IOException if the Bundle isn't valid JSON
+     */
+    void feed(DataBuffer buffer) throws IOException {
+        try (var iterator = buffer.readableByteBuffers()) {
+            while (iterator.hasNext()) {
+                feeder.feedInput(iterator.next());
+                scan();
+            }
+        }
+    }
+
+    /**
+     * Signals the end of the Bundle.
+     *
+     * @return the URL of the next link of the Bundle or {@link Optional#empty() empty} if there is none
+     * @throws IOException if the Bundle is incomplete
+     */
+    Optional<String> end() throws IOException {
+        feeder.endOfInput();
+        scan();
+        return Optional.ofNullable(nextLink);
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    private void scan() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            if (token == JsonToken.VALUE_STRING) {
+                onString(parser.getParsingContext());
+            } else if (token == JsonToken.END_OBJECT) {
+                onEndObject(parser.getParsingContext());
+            }
+        }
+    }
+
+    private void onString(JsonStreamContext context) throws IOException {
+        var name = context.getCurrentName();
+        if ("id".equals(name) && isResource(context)) {
+            id = parser.getText();
+        } else if ("reference".equals(name) && context.inObject() && isResource(context.getParent())) {
+            switch (context.getParent().getCurrentName()) {
+                case "subject" -> subject = parser.getText();
+                case "patient" -> patient = parser.getText();
+                default -> {
+                }
+            }
+        } else if (scanCodings && ("system".equals(name) || "code".equals(name)) && isCoding(context)) {
+            if ("system".equals(name)) {
+                codingSystem = parser.getText();
+            } else {
+                codingCode = parser.getText();
+            }
+        } else if ("relation".equals(name) && isLink(context)) {
+            relation = parser.getText();
+        } else if ("url".equals(name) && isLink(context)) {
+            url = parser.getText();
+        }
+    }
+
+    /**
+     * The context is the parent of the object just ended.
+     */
+    private void onEndObject(JsonStreamContext context) {
+        if ("resource".equals(context.getCurrentName()) && isEntry(context)) {
+            var reference = patient != null ? patient : subject;
+            var patientId = reference != null ? reference.substring(reference.indexOf('/') + 1) : id;
+            if (patientId != null) {
+                resources.accept(patientId, codings.isEmpty() ? List.of() : List.copyOf(codings));
+            }
+            id = subject = patient = null;
+            codings.clear();
+        } else if (scanCodings && isCodingArray(context)) {
+            codings.add(new Coding(codingSystem, codingCode));
+            codingSystem = codingCode = null;
+        } else if (context.inArray() && isRootField(context, "link")) {
+            if ("next".equals(relation) && url != null && nextLink == null) {
+                nextLink = url;
+                nextLinks.accept(url);
+            }
+            relation = url = null;
+        }
+    }
+
+    private static boolean isResource(JsonStreamContext context) {
+        return context.inObject() && "resource".equals(context.getParent().getCurrentName())
+                && isEntry(context.getParent());
+    }
+
+    private static boolean isEntry(JsonStreamContext context) {
+        return context.inObject() && context.getParent().inArray() && isRootField(context.getParent(), "entry");
+    }
+
+    private static boolean isCoding(JsonStreamContext context) {
+        return context.inObject() && isCodingArray(context.getParent());
+    }
+
+    /**
+     * Returns true if {@code context} is the array at {@code resource.code.coding}.
+     */
+    private static boolean isCodingArray(JsonStreamContext context) {
+        var code = context.getParent();
+        return context.inArray() && code.inObject() && "coding".equals(code.getCurrentName())
+                && "code".equals(code.getParent().getCurrentName()) && isResource(code.getParent());
+    }
+
+    private static boolean isLink(JsonStreamContext context) {
+        return context.inObject() && context.getParent().inArray() && isRootField(context.getParent(), "link");
+    }
+
+    private static boolean isRootField(JsonStreamContext context, String name) {
+        var parent = context.getParent();
+        return parent.inObject() && parent.getParent().inRoot() && name.equals(parent.getCurrentName());
+    }
+}
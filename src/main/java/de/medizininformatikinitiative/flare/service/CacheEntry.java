@@ -0,0 +1,18 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.population.Population;
+
+import java.time.Duration;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A cached population together with its {@link FetchCost fetch cost}.
+ */
+record CacheEntry(Population population, Duration fetchTime) {
+
+    CacheEntry {
+        requireNonNull(population);
+        requireNonNull(fetchTime);
+    }
+}
@@ -0,0 +1,69 @@
+package de.medizininformatikinitiative.flare.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Configuration of the population cache of the {@link CachingFhirQueryService} under {@code app.cache}.
+ *
+ * @param memSizeMib              the memory budget of all populations of resource types without own budget in MiB
+ * @param subExpressionMemSizeMib the memory budget of the {@link SubExpressionCache sub-expression cache} in MiB
+ * @param expiryTime              the time after which populations expire
+ * @param refreshTime             the time after which populations are refreshed on access
+ * @param minFetchTime            populations which were fetched faster than that are not cached at all
+ * @param expensiveFetchTime      populations which took at least that long to fetch are considered expensive
+ * @param expensiveExpiryTime     the time after which expensive populations expire
+ * @param resourceTypes           separate budgets and expiry times of resource types which need them
+ * @param disk                    the configuration of the {@link DiskCache disk cache} or {@code null} if
+ *                                populations should only be cached in memory
+ */
+@ConfigurationProperties("app.cache")
+public record CacheProperties(@DefaultValue("1024") long memSizeMib,
+                              @DefaultValue("256") long subExpressionMemSizeMib,
+                              @DefaultValue("PT1H") Duration expiryTime,
+                              @DefaultValue("PT10M") Duration refreshTime,
+                              @DefaultValue("PT0S") Duration minFetchTime,
+                              @DefaultValue("PT10S") Duration expensiveFetchTime,
+                              @DefaultValue("PT4H") Duration expensiveExpiryTime,
+                              Map<String, ResourceType> resourceTypes,
+                              Disk disk) {
+
+    public CacheProperties {
+        requireNonNull(expiryTime);
+        requireNonNull(refreshTime);
+        requireNonNull(minFetchTime);
+        requireNonNull(expensiveFetchTime);
+        requireNonNull(expensiveExpiryTime);
+        resourceTypes = resourceTypes == null ? Map.of() : Map.copyOf(resourceTypes);
+    }
+
+    /**
+     * The configuration of a resource type with its own budget.
+     *
+     * @param memSizeMib the memory budget of all populations of the resource type in MiB
+     * @param expiryTime the time after which populations of the resource type expire or {@code null} if the general
+     *                   expiry time should be used
+     */
+    public record ResourceType(long memSizeMib, Duration expiryTime) {
+    }
+
+    /**
+     * The configuration of the {@link DiskCache disk cache}.
+     *
+     * @param path     the path of the segment file
+     * @param sizeMib  the size of the segment file in MiB
+     * @param validity the time after which populations written to disk are ignored
+     */
+    public record Disk(String path, @DefaultValue("1024") long sizeMib, @DefaultValue("PT4H") Duration validity) {
+
+        public Disk {
+            requireNonNull(path);
+            requireNonNull(validity);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
+import de.medizininformatikinitiative.flare.model.sq.Concept;
+import de.medizininformatikinitiative.flare.model.sq.Criterion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.util.function.Function.identity;
+
+/**
+ * Warms up the cache of the {@link CachingFhirQueryService} after the application is ready.
+ * <p>
+ * The warm-up executes the most frequent queries of a recorded query log first, followed by the queries of all mapping
+ * keys, which are the unfiltered queries most criteria are built upon. The application refuses traffic until the
+ * configured fraction of all queries is done, so that the first users after a restart don't pay for the cold cache.
+ * <p>
+ * The query log is a text file with one query per line, as rendered by {@link Query#toString()}. The debug log of the
+ * {@link DataStore} can be used as is.
+ */
+@Component
+public class CacheWarmUp {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheWarmUp.class);
+
+    private static final String LOG_PREFIX = "execute search: ";
+    private static final Pattern RESOURCE_TYPE = Pattern.compile("[A-Z][A-Za-z]*");
+
+    private final FhirQueryService fhirQueryService;
+    private final Translator translator;
+    private final MappingContext mappingContext;
+    private final ApplicationEventPublisher publisher;
+    private final boolean enabled;
+    private final int concurrency;
+    private final double readyFraction;
+    private final String queryLog;
+    private final int queryLogTopN;
+    private volatile boolean ready;
+
+    public CacheWarmUp(@Qualifier("cachingFhirQueryService") FhirQueryService fhirQueryService,
+                       Translator translator, MappingContext mappingContext, ApplicationEventPublisher publisher,
+                       @Value("${app.warmUp.enabled}") boolean enabled,
+                       @Value("${app.warmUp.concurrency}") int concurrency,
+                       @Value("${app.warmUp.readyFraction}") double readyFraction,
+                       @Value("${app.warmUp.queryLog}") String queryLog,
+                       @Value("${app.warmUp.queryLogTopN}") int queryLogTopN) {
+        this.fhirQueryService = Objects.requireNonNull(fhirQueryService);
+        this.translator = Objects.requireNonNull(translator);
+        this.mappingContext = Objects.requireNonNull(mappingContext);
+        this.publisher = Objects.requireNonNull(publisher);
+        if (readyFraction < 0 || readyFraction > 1) {
+            throw new IllegalArgumentException("invalid warm-up ready fraction: " + readyFraction);
+        }
+        this.enabled = enabled;
+        this.concurrency = concurrency;
+        this.readyFraction = readyFraction;
+        this.queryLog = Objects.requireNonNull(queryLog);
+        this.queryLogTopN = queryLogTopN;
+        ready = !enabled;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (enabled) {
+            run().subscribe();
+        }
+    }
+
+    /**
+     * Refuses traffic as long as the warm-up isn't ready.
+     */
+    @EventListener
+    public void onReadinessChange(AvailabilityChangeEvent<ReadinessState> event) {
+        if (event.getState() == ReadinessState.ACCEPTING_TRAFFIC && !ready) {
+            AvailabilityChangeEvent.publish(publisher, this, ReadinessState.REFUSING_TRAFFIC);
+        }
+    }
+
+    /**
+     * Executes all warm-up queries, accepting traffic as soon as the ready fraction of them is done.
+     * <p>
+     * If the warm-up fails as a whole, traffic is accepted right away, because a cold cache is still better than no
+     * service at all.
+     *
+     * @return a mono completing after all queries are done
+     */
+    Mono<Void> run() {
+        return queries().collectList().<Void>flatMap(queries -> {
+            int readyCount = (int) Math.ceil(readyFraction * queries.size());
+            var done = new AtomicInteger();
+            logger.info("Start warm-up of {} queries. Ready after {} queries.", queries.size(), readyCount);
+            if (readyCount == 0) {
+                markReady();
+            }
+            return Flux.fromIterable(queries)
+                    .flatMap(query -> fhirQueryService.execute(query)
+                            .then()
+                            .onErrorResume(e -> {
+                                logger.warn("Skip warm-up of query `{}` because of: {}", query, e.getMessage());
+                                return Mono.empty();
+                            })
+                            .doFinally(signal -> {
+                                if (done.incrementAndGet() == readyCount) {
+                                    markReady();
+                                }
+                            }), concurrency)
+                    .then()
+                    .doOnSuccess(v -> logger.info("Finished warm-up of {} queries.", queries.size()));
+        }).onErrorResume(e -> {
+            logger.error("Abort warm-up because of: {}", e.getMessage());
+            markReady();
+            return Mono.empty();
+        });
+    }
+
+    private synchronized void markReady() {
+        if (!ready) {
+            ready = true;
+            AvailabilityChangeEvent.publish(publisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+
+    /**
+     * Returns the top queries of the query log followed by the queries of all mapping keys without duplicates.
+     *
+     * @return a flux of all warm-up queries
+     */
+    Flux<Query> queries() {
+        return Flux.concat(logQueries(), mappingQueries()).distinct();
+    }
+
+    private Flux<Query> logQueries() {
+        if (queryLog.isEmpty()) {
+            return Flux.empty();
+        }
+        return Mono.fromCallable(() -> topQueries(Path.of(queryLog)))
+                .onErrorResume(IOException.class, e -> {
+                    logger.warn("Skip query log `{}` because of: {}", queryLog, e.getMessage());
+                    return Mono.just(List.of());
+                })
+                .flatMapIterable(identity());
+    }
+
+    private List<Query> topQueries(Path path) throws IOException {
+        try (var lines = Files.lines(path)) {
+            return lines.flatMap(CacheWarmUp::parseLine)
+                    .collect(Collectors.groupingBy(identity(), Collectors.counting()))
+                    .entrySet().stream()
+                    .sorted(Map.Entry.<Query, Long>comparingByValue().reversed())
+                    .limit(queryLogTopN)
+                    .map(Map.Entry::getKey)
+                    .toList();
+        }
+    }
+
+    private static Stream<Query> parseLine(String line) {
+        var i = line.lastIndexOf(LOG_PREFIX);
+        var s = (i < 0 ? line : line.substring(i + LOG_PREFIX.length())).strip();
+        try {
+            return s.isEmpty() ? Stream.empty() : Stream.of(Query.parse(s))
+                    .filter(query -> RESOURCE_TYPE.matcher(query.type()).matches());
+        } catch (IllegalArgumentException e) {
+            logger.debug("Skip invalid query log line `{}`", line);
+            return Stream.empty();
+        }
+    }
+
+    private Flux<Query> mappingQueries() {
+        return Flux.fromIterable(mappingContext.mappingKeys())
+                .concatMap(key -> translator.toQuery(Criterion.of(Concept.of(key)))
+                        .onErrorResume(e -> {
+                            logger.debug("Skip warm-up of mapping key {} because of: {}", key, e.getMessage());
+                            return Mono.empty();
+                        }))
+                .flatMapIterable(identity());
+    }
+}
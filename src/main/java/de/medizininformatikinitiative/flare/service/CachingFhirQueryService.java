@@ -1,29 +1,320 @@
 package de.medizininformatikinitiative.flare.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
 
 import java.time.Duration;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+/**
+ * A {@link FhirQueryService} caching the populations of another one.
+ * <p>
+ * Populations are weighted by their estimated memory size, so that the cache is bounded by a memory budget instead of
+ * a number of entries. Resource types can have their own budget, so that populations of one resource type can't
+ * displace the populations of all others.
+ * <p>
+ * The {@link FetchCost fetch cost} of a population, which is the sum of the latencies of all exchanges with the FHIR
+ * server made to fetch it, without the time they waited to be sent, decides about admission, expiry and eviction.
+ * Populations fetched faster than {@link CacheProperties#minFetchTime() minFetchTime} are not admitted at all. They are
+ * handed out to the callers waiting for them and removed without notifying the
+ * {@link #addRemovalListener(Consumer) removal listeners}. Populations which took at least
+ * {@link CacheProperties#expensiveFetchTime() expensiveFetchTime} are kept for
+ * {@link CacheProperties#expensiveExpiryTime() expensiveExpiryTime}. Cheaper populations weigh up to
+ * {@value #MAX_COST_FACTOR} times their memory size, the cheaper the more, so that they are evicted in favour of
+ * expensive ones while the memory budget still holds.
+ * <p>
+ * If a {@link DiskCache disk cache} is configured, populations missing in memory are looked up on disk before they are
+ * fetched and all admitted populations are written to disk, so that the cache survives restarts. Refreshes always
+ * fetch.
+ * <p>
+ * Loads are executed with the Reactor context of the caller that triggered them, so that the underlying service can
+ * see on whose behalf it runs. Refreshes run with an empty context. A load is cancelled as soon as all callers waiting
+ * for it are cancelled.
+ * Loads failing with a {@link DeadlineExceededException} are never cached. Callers joining such a load of another
+ * caller whose {@link Deadline deadline} expired retry it, as long as their own deadline isn't expired.
+ * <p>
+ * All queries are reduced to their {@link Query#canonical() canonical form} before the cache is accessed, so that
+ * queries differing only in the order or formatting of their params share an entry. To quantify the effect, the hit
+ * ratio is measured for the canonical keys used and, using a shadow set of the raw keys seen, for the raw keys which
+ * would be used without canonicalization. Both are reported as {@code flare.cache.hit.ratio} tagged with
+ * {@code key=canonical} and {@code key=raw}.
+ */
 @Service
 public class CachingFhirQueryService implements FhirQueryService {
 
-    private final AsyncLoadingCache<Query, Set<String>> cache;
+    private static final long MIB = 1024 * 1024;
 
-    public CachingFhirQueryService(@Qualifier("dataStore") FhirQueryService fhirQueryService) {
-        cache = Caffeine.newBuilder()
+    /**
+     * The estimated number of bytes a cache entry occupies besides its population and the parameters of its query.
+     */
+    private static final long ENTRY_OVERHEAD = 128;
+
+    /**
+     * The factor by which the weight of populations fetched without cost is increased.
+     */
+    private static final int MAX_COST_FACTOR = 4;
+
+    private final FhirQueryService fhirQueryService;
+    private final CacheProperties properties;
+    private final Optional<DiskCache> diskCache;
+    private final AsyncLoadingCache<Query, CacheEntry> cache;
+    private final Map<String, AsyncLoadingCache<Query, CacheEntry>> resourceTypeCaches;
+    private final AsyncCache<Query, Integer> counts;
+    private final List<Consumer<Query>> removalListeners = new CopyOnWriteArrayList<>();
+    private final Loader loader = new Loader();
+    private final SharedLoads sharedLoads = new SharedLoads();
+
+    /**
+     * The sizes of all populations loaded so far. Sizes are kept much longer than the populations themselves, because
+     * they are only used as estimates.
+     */
+    private final Cache<Query, Integer> sizes;
+
+    /**
+     * The raw queries seen recently, used to measure the hit ratio without canonicalization.
+     */
+    private final Cache<Query, Boolean> rawKeys;
+    private final HitRatio canonicalHitRatio;
+    private final HitRatio rawHitRatio;
+
+    public CachingFhirQueryService(@Qualifier("dataStore") FhirQueryService fhirQueryService,
+                                   CacheProperties properties, Optional<DiskCache> diskCache,
+                                   MeterRegistry meterRegistry) {
+        this.fhirQueryService = fhirQueryService;
+        this.properties = properties;
+        this.diskCache = diskCache;
+        sizes = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .build();
+        rawKeys = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(properties.expiryTime())
+                .build();
+        canonicalHitRatio = new HitRatio(meterRegistry, "canonical");
+        rawHitRatio = new HitRatio(meterRegistry, "raw");
+        cache = buildCache(properties.memSizeMib(), properties.expiryTime());
+        resourceTypeCaches = properties.resourceTypes().entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> buildCache(e.getValue().memSizeMib(),
+                        e.getValue().expiryTime() == null ? properties.expiryTime() : e.getValue().expiryTime())));
+        counts = Caffeine.newBuilder()
                 .maximumSize(10_000)
-                .expireAfterWrite(Duration.ofMinutes(60))
-                .refreshAfterWrite(Duration.ofMinutes(10))
-                .buildAsync((query, executor) -> fhirQueryService.execute(query));
+                .expireAfterWrite(properties.expiryTime())
+                .buildAsync();
+    }
+
+    private AsyncLoadingCache<Query, CacheEntry> buildCache(long memSizeMib, Duration expiryTime) {
+        return Caffeine.newBuilder()
+                .maximumWeight(memSizeMib * MIB)
+                .weigher(this::weight)
+                .expireAfter(new CostExpiry(expiryTime))
+                .refreshAfterWrite(properties.refreshTime())
+                .<Query, CacheEntry>removalListener((query, entry, cause) -> {
+                    if (entry != null && admitted(entry)) {
+                        removalListeners.forEach(listener -> listener.accept(query));
+                    }
+                })
+                .buildAsync(loader);
+    }
+
+    int weight(Query query, CacheEntry entry) {
+        var bytes = ENTRY_OVERHEAD + 2L * query.toString().length() + entry.population().memorySize();
+        return (int) Math.min(bytes * costFactor(entry), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the factor by which the weight of {@code entry} is increased, which falls linearly from
+     * {@link #MAX_COST_FACTOR} for entries fetched without cost to one for expensive entries.
+     */
+    private double costFactor(CacheEntry entry) {
+        var expensiveFetchTime = properties.expensiveFetchTime().toNanos();
+        if (expensiveFetchTime == 0) {
+            return 1;
+        }
+        var cost = Math.min(1, (double) entry.fetchTime().toNanos() / expensiveFetchTime);
+        return MAX_COST_FACTOR - (MAX_COST_FACTOR - 1) * cost;
+    }
+
+    private AsyncLoadingCache<Query, CacheEntry> cacheFor(Query query) {
+        return resourceTypeCaches.getOrDefault(query.type(), cache);
+    }
+
+    public Mono<Population> execute(Query query) {
+        var key = query.canonical();
+        var typeCache = cacheFor(key);
+        return Mono.deferContextual(context -> {
+            canonicalHitRatio.record(typeCache.getIfPresent(key) != null);
+            rawHitRatio.record(rawKeys.asMap().put(query, Boolean.TRUE) != null);
+            return sharedLoads.get(() -> typeCache.get(key, (k, executor) -> loader.load(k, executor, context)))
+                    .doOnNext(entry -> {
+                        if (!admitted(entry)) {
+                            typeCache.synchronous().asMap().remove(key, entry);
+                        }
+                    })
+                    .retryWhen(Deadline.retryExpiredElsewhere(context));
+        }).map(CacheEntry::population);
+    }
+
+    /**
+     * Counts the resources matching {@code query}, using the size of an already cached population if available.
+     */
+    public Mono<Integer> count(Query query) {
+        var key = query.canonical();
+        return Mono.deferContextual(context -> {
+            var entry = cacheFor(key).getIfPresent(key);
+            return sharedLoads.get(() -> entry == null
+                            ? counts.get(key, (k, executor) -> fhirQueryService.count(k)
+                            .doOnNext(count -> sizes.put(k, count))
+                            .contextWrite(context)
+                            .toFuture())
+                            : entry.thenApply(e -> e.population().size()))
+                    .retryWhen(Deadline.retryExpiredElsewhere(context));
+        });
+    }
+
+    @Override
+    public OptionalInt estimateSize(Query query) {
+        var size = sizes.getIfPresent(query.canonical());
+        return size == null ? OptionalInt.empty() : OptionalInt.of(size);
+    }
+
+    @Override
+    public void addRemovalListener(Consumer<Query> listener) {
+        removalListeners.add(listener);
     }
 
-    public CompletableFuture<Set<String>> execute(Query query) {
-        return cache.get(query);
+    private boolean admitted(CacheEntry entry) {
+        return entry.fetchTime().compareTo(properties.minFetchTime()) >= 0;
+    }
+
+    /**
+     * Counts hits and misses of cache lookups and reports their ratio.
+     */
+    private static class HitRatio {
+
+        private final Counter hits;
+        private final Counter misses;
+
+        private HitRatio(MeterRegistry registry, String key) {
+            hits = Counter.builder("flare.cache.requests").tag("key", key).tag("result", "hit").register(registry);
+            misses = Counter.builder("flare.cache.requests").tag("key", key).tag("result", "miss").register(registry);
+            Gauge.builder("flare.cache.hit.ratio", this, HitRatio::ratio).tag("key", key).register(registry);
+        }
+
+        private void record(boolean hit) {
+            (hit ? hits : misses).increment();
+        }
+
+        private double ratio() {
+            var total = hits.count() + misses.count();
+            return total == 0 ? Double.NaN : hits.count() / total;
+        }
+    }
+
+    /**
+     * Loads entries from the disk cache, if present, and fetches them otherwise. Reloads always fetch, because the
+     * disk cache can't hold newer entries than the memory cache.
+     */
+    private class Loader implements AsyncCacheLoader<Query, CacheEntry> {
+
+        @Override
+        public CompletableFuture<CacheEntry> asyncLoad(Query query, Executor executor) {
+            return load(query, executor, Context.empty());
+        }
+
+        private CompletableFuture<CacheEntry> load(Query query, Executor executor, ContextView context) {
+            return diskCache.map(disk -> Mono.fromCallable(() -> disk.get(query))
+                            .subscribeOn(Schedulers.fromExecutor(executor))
+                            .flatMap(entry -> entry.map(e -> {
+                                sizes.put(query, e.population().size());
+                                return Mono.just(e);
+                            }).orElseGet(() -> fetch(query, executor, context))))
+                    .orElseGet(() -> fetch(query, executor, context))
+                    .toFuture();
+        }
+
+        @Override
+        public CompletableFuture<CacheEntry> asyncReload(Query query, CacheEntry oldEntry, Executor executor) {
+            return fetch(query, executor, Context.empty()).toFuture()
+                    .thenApply(entry -> admitted(entry) ? entry : null);
+        }
+
+        private Mono<CacheEntry> fetch(Query query, Executor executor, ContextView context) {
+            var entry = Mono.defer(() -> {
+                var cost = new FetchCost();
+                return fhirQueryService.execute(query)
+                        .contextWrite(Context.of(context).putAll(cost.context().readOnly()))
+                        .map(population -> {
+                            sizes.put(query, population.size());
+                            return new CacheEntry(population, cost.duration());
+                        });
+            });
+            return diskCache.map(disk -> entry.publishOn(Schedulers.fromExecutor(executor)).doOnNext(e -> {
+                if (admitted(e)) {
+                    disk.put(query, e);
+                }
+            })).orElse(entry);
+        }
+    }
+
+    /**
+     * Expires entries depending on their fetch cost. Entries fetched faster than the minimum fetch time
+     * are removed as soon as they are handed out to all callers waiting for them. Until then they expire immediately,
+     * so that no other caller gets them.
+     */
+    private class CostExpiry implements Expiry<Query, CacheEntry> {
+
+        private final Duration expiryTime;
+
+        private CostExpiry(Duration expiryTime) {
+            this.expiryTime = expiryTime;
+        }
+
+        private long expiry(CacheEntry entry) {
+            if (!admitted(entry)) {
+                return 0;
+            }
+            if (entry.fetchTime().compareTo(properties.expensiveFetchTime()) >= 0) {
+                return properties.expensiveExpiryTime().toNanos();
+            }
+            return expiryTime.toNanos();
+        }
+
+        @Override
+        public long expireAfterCreate(Query query, CacheEntry entry, long currentTime) {
+            return expiry(entry);
+        }
+
+        @Override
+        public long expireAfterUpdate(Query query, CacheEntry entry, long currentTime, long currentDuration) {
+            return expiry(entry);
+        }
+
+        @Override
+        public long expireAfterRead(Query query, CacheEntry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
     }
 }
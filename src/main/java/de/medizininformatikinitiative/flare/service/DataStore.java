@@ -1,21 +1,35 @@
 package de.medizininformatikinitiative.flare.service;
 
 import de.medizininformatikinitiative.flare.model.fhir.Bundle;
+import de.medizininformatikinitiative.flare.model.fhir.Entry;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
 import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import de.medizininformatikinitiative.flare.model.population.Population;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static org.springframework.http.MediaType.APPLICATION_FORM_URLENCODED;
 
@@ -25,40 +39,259 @@ public class DataStore implements FhirQueryService {
     private static final Logger logger = LoggerFactory.getLogger(DataStore.class);
 
     private final WebClient client;
+    private final PatientIdDictionary dictionary;
+    private final RequestHedger hedger;
+    private final SearchBatcher batcher;
+    private final QueryFuser fuser;
+    private final ReverseChaining reverseChaining;
     private final int pageCount;
+    private final int prefetchDepth;
+    private final int partitionSize;
+    private final int maxPartitions;
+    private final Map<String, byte[]> extraQueryParams = new ConcurrentHashMap<>();
 
-    public DataStore(@Qualifier("dataStoreClient") WebClient client,
-                     @Value("${app.dataStore.pageCount}") int pageCount) {
+    public DataStore(@Qualifier("dataStoreClient") WebClient client, PatientIdDictionary dictionary,
+                     RequestHedger hedger, SearchBatcher batcher, QueryFuser fuser, ReverseChaining reverseChaining,
+                     @Value("${app.dataStore.pageCount}") int pageCount,
+                     @Value("${app.dataStore.prefetchDepth}") int prefetchDepth,
+                     @Value("${app.dataStore.partition.size}") int partitionSize,
+                     @Value("${app.dataStore.partition.maxCount}") int maxPartitions) {
         this.client = Objects.requireNonNull(client);
+        this.dictionary = Objects.requireNonNull(dictionary);
+        this.hedger = Objects.requireNonNull(hedger);
+        this.batcher = Objects.requireNonNull(batcher);
+        this.fuser = Objects.requireNonNull(fuser);
+        this.reverseChaining = Objects.requireNonNull(reverseChaining);
         this.pageCount = pageCount;
+        this.prefetchDepth = prefetchDepth;
+        this.partitionSize = partitionSize;
+        this.maxPartitions = maxPartitions;
     }
 
-    public CompletableFuture<Set<String>> execute(Query query) {
-        logger.debug("execute search: {}?{}", query.type(), query.params());
+    /**
+     * Executes {@code query} following all next links.
+     * <p>
+     * Pages are not decoded but {@link BundleScanner scanned} as they arrive, so that the patient IDs go straight into
+     * the population and the size of pages isn't limited by the in-memory size of the client.
+     * <p>
+     * The next page is requested as soon as its link was scanned, which is usually before the entries of the current
+     * page arrived, so that scanning one page overlaps with the transfer of the following ones. At most
+     * {@code prefetchDepth} pages are fetched ahead of the oldest page still being scanned.
+     * <p>
+     * If a {@code partitionSize} is set, the number of matching resources is counted first. Searches matching more
+     * than {@code partitionSize} resources are split into up to {@code maxPartitions} disjoint searches by ranges of
+     * {@code _lastUpdated}, which are executed concurrently, so that the FHIR server can use more than one core.
+     * <p>
+     * Each request, including counts and the searches used for partitioning, is scheduled by the
+     * {@link RequestScheduler scheduler}, which is a filter of the client. Requests of next pages are
+     * {@link RequestHedger hedged}, because they are idempotent GETs. First pages are fetched through the
+     * {@link SearchBatcher batcher}, which may combine them with the first pages of concurrent searches into one batch
+     * request. Searches which only differ in their code are {@link QueryFuser fused} into one search, if fusion is
+     * enabled. Searches returning many resources per patient are {@link ReverseChaining reverse chained}, so that each
+     * patient is returned only once.
+     * <p>
+     * If the Reactor context holds a {@link Deadline deadline}, the search fails with a
+     * {@link DeadlineExceededException} as soon as it expires and all outstanding requests are cancelled.
+     */
+    public Mono<Population> execute(Query query) {
+        var canonical = query.canonical();
+        return Deadline.enforce(fuser.isFusable(canonical)
+                ? fuser.execute(canonical, this::executeSingle, this::executeFused)
+                : executeSingle(canonical));
+    }
+
+    private Mono<Population> executeSingle(Query query) {
+        logger.debug("execute search: {}", query);
+        var chained = reverseChaining.rewrite(query, queryElements(query.type()));
+        if (chained.isPresent()) {
+            logger.debug("reverse chained search: {}", chained.get());
+            return executeSearch(chained.get()).map(Result::population);
+        }
+        return executeSearch(query).map(result -> {
+            reverseChaining.record(query.type(), result.entries, result.population.size());
+            return result.population;
+        });
+    }
+
+    private Mono<Result> executeSearch(Query query) {
+        return Mono.defer(() -> {
+            var builder = Population.builder();
+            var entries = new AtomicLong();
+            return partitions(query.type(), query.params())
+                    .flatMap(partition -> search(query.type(), partition, queryElements(query.type()),
+                            nextLinks -> BundleScanner.create(patientId -> {
+                                var id = dictionary.encode(patientId);
+                                entries.incrementAndGet();
+                                synchronized (builder) {
+                                    builder.add(id);
+                                }
+                            }, nextLinks)))
+                    .then(Mono.fromSupplier(() -> {
+                        synchronized (builder) {
+                            return new Result(builder.build(), entries.get());
+                        }
+                    }));
+        });
+    }
+
+    /**
+     * Executes the {@link QueryFuser fused} {@code query} reporting the codings of all resources found in addition to
+     * their patient.
+     */
+    private Mono<Void> executeFused(Query query, QueryFuser.Resources resources) {
+        return partitions(query.type(), query.params())
+                .flatMap(partition -> search(query.type(), partition, queryElements(query.type()) + ",code",
+                        nextLinks -> BundleScanner.createWithCodings((patientId, codings) ->
+                                resources.accept(dictionary.encode(patientId), codings), nextLinks)))
+                .then();
+    }
+
+    /**
+     * Returns the params of the partitions of the search with {@code params}, which is just {@code params} itself if
+     * the search isn't partitioned.
+     */
+    private Flux<QueryParams> partitions(String type, QueryParams params) {
+        if (partitionSize <= 0 || maxPartitions <= 1) {
+            return Flux.just(params);
+        }
+        return count(type, params).flatMapMany(count -> {
+            var n = (int) Math.min(maxPartitions, (count + (long) partitionSize - 1) / partitionSize);
+            if (n <= 1) {
+                return Flux.just(params);
+            }
+            return Mono.zip(lastUpdated(type, params, "_lastUpdated"), lastUpdated(type, params, "-_lastUpdated"))
+                    .flatMapIterable(range -> lastUpdatedPartitions(params, range.getT1(), range.getT2(), n))
+                    .doOnNext(partition -> logger.debug("execute partition: {}?{}", type, partition))
+                    .switchIfEmpty(Flux.just(params));
+        });
+    }
+
+    /**
+     * Splits the search with {@code params} into {@code n} disjoint searches by equal ranges of {@code _lastUpdated}
+     * between {@code first} and {@code last}. The first and last partition are open, so that together the partitions
+     * cover all resources, even those updated while the search runs.
+     *
+     * @return the params of the partitions or only {@code params} if the range is too small to be split
+     */
+    static List<QueryParams> lastUpdatedPartitions(QueryParams params, Instant first, Instant last, int n) {
+        var step = Duration.between(first, last).dividedBy(n);
+        if (step.toMillis() == 0) {
+            return List.of(params);
+        }
+        var partitions = new ArrayList<QueryParams>(n);
+        Instant lower = null;
+        for (int i = 1; i <= n; i++) {
+            var upper = i == n ? null : first.plus(step.multipliedBy(i)).truncatedTo(ChronoUnit.MILLIS);
+            var partition = params;
+            if (lower != null) {
+                partition = partition.appendParam("_lastUpdated", "ge" + lower);
+            }
+            if (upper != null) {
+                partition = partition.appendParam("_lastUpdated", "lt" + upper);
+            }
+            partitions.add(partition);
+            lower = upper;
+        }
+        return partitions;
+    }
+
+    /**
+     * Returns the {@code lastUpdated} of the first resource of the search with {@code params} sorted by {@code sort}.
+     */
+    private Mono<Instant> lastUpdated(String type, QueryParams params, String sort) {
         return client.post()
-                .uri("/{type}/_search", query.type())
+                .uri("/{type}/_search", type)
                 .contentType(APPLICATION_FORM_URLENCODED)
-                .bodyValue(query.params().appendParams(extraQueryParams(query.type())).toString())
+                .bodyValue(params.appendParam("_sort", sort).appendParam("_count", "1").encode())
                 .retrieve()
-                .bodyToFlux(Bundle.class)
-                .expand(bundle -> bundle.linkWithRel("next")
-                        .map(link -> fetchPage(link.url()))
-                        .orElse(Mono.empty()))
-                .flatMap(bundle -> Flux.fromStream(bundle.entry().stream().map(e -> e.resource().patientId())))
-                .collect(Collectors.toSet())
-                .toFuture();
+                .bodyToMono(Bundle.class)
+                .flatMap(bundle -> Mono.justOrEmpty(bundle.entry().stream()
+                        .map(Entry::resource)
+                        .filter(resource -> resource.meta() != null && resource.meta().lastUpdated() != null)
+                        .map(resource -> OffsetDateTime.parse(resource.meta().lastUpdated()).toInstant())
+                        .findFirst()));
     }
 
-    private Mono<Bundle> fetchPage(String url) {
-        logger.trace("fetch page {}", url);
-        return client.get()
-                .uri(url)
+    /**
+     * Executes one search with {@code params} returning {@code elements} following all next links and scanning all
+     * pages with scanners of {@code scanners}.
+     */
+    private Mono<Void> search(String type, QueryParams params, String elements, ScannerFactory scanners) {
+        return Mono.defer(() -> {
+            var pages = Sinks.many().unicast().<Flux<DataBuffer>>onBackpressureBuffer();
+            pages.tryEmitNext(batcher.search(type, params.encode(extraQueryParams(elements))));
+            return pages.asFlux()
+                    .flatMap(body -> scanPage(body, scanners, pages), prefetchDepth + 1)
+                    .then();
+        });
+    }
+
+    /**
+     * Scans one page and emits the next page into {@code pages}. Completes {@code pages} if the page has no next link.
+     */
+    private Mono<Void> scanPage(Flux<DataBuffer> body, ScannerFactory scanners, Sinks.Many<Flux<DataBuffer>> pages) {
+        return Mono.using(() -> scanners.create(url -> pages.tryEmitNext(fetchPage(url))),
+                        scanner -> body
+                                .<Void>handle((buffer, sink) -> {
+                                    try {
+                                        scanner.feed(buffer);
+                                    } catch (IOException e) {
+                                        sink.error(e);
+                                    } finally {
+                                        DataBufferUtils.release(buffer);
+                                    }
+                                })
+                                .then(Mono.fromCallable(scanner::end)),
+                        scanner -> {
+                            try {
+                                scanner.close();
+                            } catch (IOException e) {
+                                logger.debug("Error while closing a bundle scanner: {}", e.getMessage());
+                            }
+                        })
+                .doOnNext(nextLink -> {
+                    if (nextLink.isEmpty()) {
+                        pages.tryEmitComplete();
+                    }
+                })
+                .then();
+    }
+
+    public Mono<Integer> count(Query query) {
+        var params = query.params().canonical();
+        logger.debug("count search: {}?{}", query.type(), params);
+        return Deadline.enforce(count(query.type(), params));
+    }
+
+    private Mono<Integer> count(String type, QueryParams params) {
+        return client.post()
+                .uri("/{type}/_search", type)
+                .contentType(APPLICATION_FORM_URLENCODED)
+                .bodyValue(params.appendParam("_summary", "count").encode())
                 .retrieve()
-                .bodyToMono(Bundle.class);
+                .bodyToMono(Bundle.class)
+                .flatMap(bundle -> bundle.total() == null
+                        ? Mono.error(new IllegalStateException("missing total in count result of query: " + type + "?"
+                        + params))
+                        : Mono.just(bundle.total()));
+    }
+
+    private Flux<DataBuffer> fetchPage(String url) {
+        logger.trace("fetch page {}", url);
+        return hedger.hedge(() -> client.get()
+                        .uri(url)
+                        .retrieve()
+                        .toEntityFlux(DataBuffer.class))
+                .flatMapMany(entity -> Objects.requireNonNullElse(entity.getBody(), Flux.empty()));
     }
 
-    private QueryParams extraQueryParams(String type) {
-        return QueryParams.of("_elements", queryElements(type)).appendParam("_count", Integer.toString(pageCount));
+    /**
+     * Returns the encoded params every search with {@code elements} ends with, which are encoded only once.
+     */
+    private byte[] extraQueryParams(String elements) {
+        return extraQueryParams.computeIfAbsent(elements, e -> QueryParams.of("_elements", e)
+                .appendParam("_count", Integer.toString(pageCount))
+                .encode());
     }
 
     /**
@@ -73,4 +306,19 @@ public class DataStore implements FhirQueryService {
             default -> "subject";
         };
     }
+
+    /**
+     * The population of a search together with the number of entries it returned.
+     */
+    private record Result(Population population, long entries) {
+    }
+
+    /**
+     * Creates a scanner of one page, reporting its next link to {@code nextLinks}.
+     */
+    @FunctionalInterface
+    private interface ScannerFactory {
+
+        BundleScanner create(Consumer<String> nextLinks) throws IOException;
+    }
 }
@@ -0,0 +1,101 @@
+package de.medizininformatikinitiative.flare.service;
+
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The point in time until which the execution of a query has to be finished.
+ * <p>
+ * A deadline travels in the Reactor {@link #context() context} of an execution, so that every request to the FHIR
+ * server made on its behalf can be {@link #enforce(Mono) cancelled} as soon as nobody waits for its result anymore.
+ * Executions without deadline, like cache refreshes and the warm-up, aren't limited.
+ *
+ * @param instant the point in time the deadline expires
+ */
+public record Deadline(Instant instant) {
+
+    private static final String KEY = Deadline.class.getName();
+
+    public Deadline {
+        requireNonNull(instant);
+    }
+
+    /**
+     * Returns a deadline expiring after {@code timeout} from now.
+     */
+    public static Deadline in(Duration timeout) {
+        return new Deadline(Instant.now().plus(timeout));
+    }
+
+    /**
+     * Returns the deadline in {@code context}, if any.
+     */
+    public static Optional<Deadline> of(ContextView context) {
+        return context.getOrEmpty(KEY);
+    }
+
+    /**
+     * Returns the latest deadline of {@code contexts}, which is the deadline of a request made on behalf of all of them,
+     * or none if one of them has no deadline.
+     */
+    static Optional<Deadline> latest(List<ContextView> contexts) {
+        Deadline latest = null;
+        for (ContextView context : contexts) {
+            var deadline = of(context);
+            if (deadline.isEmpty()) {
+                return Optional.empty();
+            } else if (latest == null || deadline.get().instant.isAfter(latest.instant)) {
+                latest = deadline.get();
+            }
+        }
+        return Optional.ofNullable(latest);
+    }
+
+    /**
+     * Returns a context holding this deadline.
+     */
+    public Context context() {
+        return Context.of(KEY, this);
+    }
+
+    /**
+     * Returns the time left until this deadline expires, which is never negative.
+     */
+    public Duration remaining() {
+        var remaining = Duration.between(Instant.now(), instant);
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
+    public boolean isExpired() {
+        return !Instant.now().isBefore(instant);
+    }
+
+    /**
+     * Fails {@code mono} with a {@link DeadlineExceededException} and cancels it if it doesn't complete before the
+     * deadline in its context expires.
+     */
+    public static <T> Mono<T> enforce(Mono<T> mono) {
+        return Mono.deferContextual(context -> of(context)
+                .map(deadline -> mono.timeout(deadline.remaining(),
+                        Mono.error(() -> new DeadlineExceededException(deadline))))
+                .orElse(mono));
+    }
+
+    /**
+     * Returns a retry for shared loads which failed because the deadline of the caller that started them expired,
+     * while the deadline in {@code context} isn't expired yet.
+     */
+    static Retry retryExpiredElsewhere(ContextView context) {
+        return Retry.indefinitely().filter(e -> e instanceof DeadlineExceededException
+                && of(context).map(deadline -> !deadline.isExpired()).orElse(true));
+    }
+}
@@ -0,0 +1,8 @@
+package de.medizininformatikinitiative.flare.service;
+
+public class DeadlineExceededException extends Exception {
+
+    public DeadlineExceededException(Deadline deadline) {
+        super("The deadline `%s` was exceeded.".formatted(deadline.instant()));
+    }
+}
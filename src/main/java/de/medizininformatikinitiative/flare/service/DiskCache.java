@@ -0,0 +1,202 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import de.medizininformatikinitiative.flare.model.population.Population;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A second cache tier keeping populations in a memory-mapped segment file, so that they survive restarts.
+ * <p>
+ * The segment file starts with a magic number followed by records, one after another, and a zero length marking the
+ * end. Each record holds the query, the time it was written, the time it took to fetch its population and the patient
+ * ids of its population. Patient ids are stored as strings, because the integers of the {@link PatientIdDictionary}
+ * are only valid in the process that assigned them. The length of a record is written last, so that a record
+ * interrupted by a crash is never read.
+ * <p>
+ * The index of all records is built lazily by scanning the segment file on first access. Records older than the
+ * validity are ignored. Once the segment file is full, it is cleared and filled again from the start.
+ * <p>
+ * Disk caches are thread-safe.
+ */
+public class DiskCache implements Closeable {
+
+    static final int MAGIC = 0x464c5231;
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * The size of the length, the written time, the fetch time, the key length and the population size.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 2 + 4;
+    private static final int MAX_ID_LENGTH = 255;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final PatientIdDictionary dictionary;
+    private final Duration validity;
+    private final Clock clock;
+    private Map<String, Integer> index;
+    private int position;
+
+    private DiskCache(FileChannel channel, MappedByteBuffer buffer, PatientIdDictionary dictionary, Duration validity,
+                      Clock clock) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.dictionary = dictionary;
+        this.validity = validity;
+        this.clock = clock;
+    }
+
+    /**
+     * Opens the segment file at {@code path}, creating it if it doesn't exist.
+     *
+     * @param path       the path of the segment file
+     * @param size       the size of the segment file in bytes
+     * @param validity   the time after which records are ignored
+     * @param dictionary the dictionary used to encode the patient ids of populations read
+     * @param clock      the clock used to timestamp records
+     * @return the disk cache
+     * @throws IOException if the segment file can't be opened
+     */
+    public static DiskCache open(Path path, long size, Duration validity, PatientIdDictionary dictionary, Clock clock)
+            throws IOException {
+        if (size <= HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid segment size: " + size);
+        }
+        var channel = FileChannel.open(path, CREATE, READ, WRITE);
+        var cache = new DiskCache(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), dictionary,
+                validity, clock);
+        if (cache.buffer.getInt(0) != MAGIC) {
+            cache.clear();
+        }
+        return cache;
+    }
+
+    private void clear() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(HEADER_SIZE, 0);
+        index = new HashMap<>();
+        position = HEADER_SIZE;
+    }
+
+    private Map<String, Integer> index() {
+        if (index == null) {
+            index = new HashMap<>();
+            int offset = HEADER_SIZE;
+            int length;
+            while (offset + 4 <= buffer.capacity() && (length = buffer.getInt(offset)) > 0 &&
+                    offset + 4 + length <= buffer.capacity()) {
+                if (valid(offset)) {
+                    index.put(key(offset), offset);
+                }
+                offset += 4 + length;
+            }
+            position = offset;
+        }
+        return index;
+    }
+
+    private boolean valid(int offset) {
+        return clock.millis() - buffer.getLong(offset + 4) < validity.toMillis();
+    }
+
+    private String key(int offset) {
+        var key = new byte[buffer.getShort(offset + 20) & 0xffff];
+        buffer.get(offset + 22, key);
+        return new String(key, UTF_8);
+    }
+
+    /**
+     * Returns the entry of {@code query} if it was written and is still valid.
+     *
+     * @param query the query of the entry
+     * @return the entry or {@link Optional#empty() empty} if not found
+     */
+    public synchronized Optional<CacheEntry> get(Query query) {
+        var key = query.toString();
+        var offset = index().get(key);
+        if (offset == null) {
+            return Optional.empty();
+        }
+        if (!valid(offset)) {
+            index.remove(key);
+            return Optional.empty();
+        }
+        var fetchTime = Duration.ofNanos(buffer.getLong(offset + 12));
+        var in = buffer.slice(offset, 4 + buffer.getInt(offset));
+        in.position(22 + (in.getShort(20) & 0xffff));
+        var builder = Population.builder();
+        var id = new byte[MAX_ID_LENGTH];
+        for (int i = in.getInt(); i > 0; i--) {
+            int length = in.get() & 0xff;
+            in.get(id, 0, length);
+            builder.add(dictionary.encode(new String(id, 0, length, UTF_8)));
+        }
+        return Optional.of(new CacheEntry(builder.build(), fetchTime));
+    }
+
+    /**
+     * Writes {@code entry} as the entry of {@code query}. Entries which don't fit into the segment file at all are
+     * skipped.
+     *
+     * @param query the query of the entry
+     * @param entry the entry to write
+     */
+    public synchronized void put(Query query, CacheEntry entry) {
+        var key = query.toString().getBytes(UTF_8);
+        var ids = dictionary.decode(entry.population()).stream().map(id -> id.getBytes(UTF_8)).toList();
+        long size = RECORD_OVERHEAD + key.length;
+        for (byte[] id : ids) {
+            if (id.length > MAX_ID_LENGTH) {
+                return;
+            }
+            size += 1 + id.length;
+        }
+        if (key.length > 0xffff || HEADER_SIZE + size + 4 > buffer.capacity()) {
+            return;
+        }
+        index();
+        if (position + size + 4 > buffer.capacity()) {
+            clear();
+        }
+        ByteBuffer out = buffer.slice(position, (int) size + 4).position(4);
+        out.putLong(clock.millis());
+        out.putLong(entry.fetchTime().toNanos());
+        out.putShort((short) key.length);
+        out.put(key);
+        out.putInt(ids.size());
+        for (byte[] id : ids) {
+            out.put((byte) id.length);
+            out.put(id);
+        }
+        out.putInt(0);
+        buffer.putInt(position, (int) size - 4);
+        index.put(query.toString(), position);
+        position += (int) size;
+    }
+
+    /**
+     * Flushes all records to disk and closes the segment file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,67 @@
+package de.medizininformatikinitiative.flare.service;
+
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time the FHIR server spent on the exchanges made to fetch one population.
+ * <p>
+ * A fetch cost travels in the Reactor {@link #context() context} of a fetch. The {@link RequestScheduler scheduler}
+ * {@link #record(ContextView, long) records} the latency of every exchange, from sending the request until its body
+ * was consumed, so that the cost is the sum of the latencies of all pages, counts and partitioning searches. The time
+ * an exchange waits for a slot of the scheduler, in the window of the {@link SearchBatcher batcher} or the
+ * {@link QueryFuser fuser} or for being hedged doesn't count. Exchanges made on behalf of several fetches, like
+ * batches and fusions, count for each of them.
+ */
+final class FetchCost {
+
+    private static final String KEY = FetchCost.class.getName();
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final List<FetchCost> shares;
+
+    FetchCost() {
+        this(List.of());
+    }
+
+    private FetchCost(List<FetchCost> shares) {
+        this.shares = shares;
+    }
+
+    /**
+     * Returns a context holding a fetch cost which adds the latencies recorded to the fetch costs of all
+     * {@code contexts}.
+     *
+     * @param contexts the contexts of the callers of an exchange made on behalf of several of them
+     * @return a context to write into the Reactor context of the exchange
+     */
+    static Context shared(List<ContextView> contexts) {
+        return new FetchCost(contexts.stream()
+                .flatMap(context -> context.<FetchCost>getOrEmpty(KEY).stream())
+                .toList()).context();
+    }
+
+    /**
+     * Adds the {@code latency} of an exchange in nanoseconds to the fetch cost in {@code context}, if any.
+     */
+    static void record(ContextView context, long latency) {
+        context.<FetchCost>getOrEmpty(KEY).ifPresent(cost -> cost.add(latency));
+    }
+
+    private void add(long latency) {
+        nanos.addAndGet(latency);
+        shares.forEach(share -> share.add(latency));
+    }
+
+    Context context() {
+        return Context.of(KEY, this);
+    }
+
+    Duration duration() {
+        return Duration.ofNanos(nanos.get());
+    }
+}
@@ -1,11 +1,44 @@
 package de.medizininformatikinitiative.flare.service;
 
 import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import reactor.core.publisher.Mono;
 
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
+import java.util.OptionalInt;
+import java.util.function.Consumer;
 
 public interface FhirQueryService {
 
-    CompletableFuture<Set<String>> execute(Query query);
+    Mono<Population> execute(Query query);
+
+    /**
+     * Counts the resources matching {@code query} without fetching them.
+     * <p>
+     * The count equals the size of the population {@link #execute(Query) execute} would return only for queries of
+     * type {@code Patient}.
+     *
+     * @param query the query to count
+     * @return the number of resources matching {@code query}
+     */
+    Mono<Integer> count(Query query);
+
+    /**
+     * Estimates the size of the population {@link #execute(Query) execute} would return for {@code query} without
+     * executing it.
+     *
+     * @param query the query to estimate
+     * @return the estimated size or {@link OptionalInt#empty() nothing} if no estimate is available
+     */
+    default OptionalInt estimateSize(Query query) {
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Adds a {@code listener} which is called with the query of every cached population that is removed, because it
+     * expired, was evicted or was replaced by a refresh. Services without a cache never call listeners.
+     *
+     * @param listener the listener to add
+     */
+    default void addRemovalListener(Consumer<Query> listener) {
+    }
 }
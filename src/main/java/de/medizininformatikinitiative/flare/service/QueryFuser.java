@@ -0,0 +1,337 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Coding;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Fuses searches which only differ in the value of their {@code code} param into one search.
+ * <p>
+ * Different criteria and different users often search for the same resource type with the same filters, but another
+ * code, like {@code Condition?code=C71} and {@code Condition?code=C72}. Searches arriving within a short
+ * {@code window} are collected and sent as one search with the union of their codes, like
+ * {@code Condition?code=C71,C72}. The codings of the {@code code} element of the resources found are returned in
+ * addition to their patient, so that each resource can be routed to all searches of the fusion whose codes match one
+ * of its codings. A fusion holds at most {@code maxSize} searches. Fusions whose params would get longer than the
+ * {@code maxParamsLength} of the translator are split, like the queries of a single criterion.
+ * <p>
+ * Only searches for resource types whose {@code code} search param is the {@code code} element of the resource and
+ * which have exactly one {@code code} param without modifier are fused. All other searches, as well as fusions
+ * holding only one search, are executed as usual.
+ * <p>
+ * A fusion runs as long as at least one of its searches waits for its result, on behalf of all of them with the
+ * latest {@link Deadline deadline} of them. The number of searches that were fused
+ * is reported as {@code flare.fuser.searches} and the number of searches sent instead as
+ * {@code flare.fuser.fusions}.
+ */
+@Component
+public class QueryFuser {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryFuser.class);
+
+    private static final Set<String> TYPES = Set.of("Condition", "Observation", "Procedure");
+    private static final String CODE = "code";
+
+    private final Duration window;
+    private final int maxSize;
+    private final int maxParamsLength;
+    private final Counter searches;
+    private final Counter fusions;
+
+    /**
+     * The pending fusions keyed by the query they have in common, which is the query without {@code code} param.
+     */
+    private final Map<Query, List<Member>> pending = new HashMap<>();
+
+    public QueryFuser(@Value("${app.dataStore.fusion.window}") Duration window,
+                      @Value("${app.dataStore.fusion.maxSize}") int maxSize,
+                      @Value("${app.translator.maxParamsLength}") int maxParamsLength,
+                      MeterRegistry meterRegistry) {
+        this.window = Objects.requireNonNull(window);
+        this.maxSize = maxSize;
+        this.maxParamsLength = maxParamsLength;
+        searches = Counter.builder("flare.fuser.searches").register(meterRegistry);
+        fusions = Counter.builder("flare.fuser.fusions").register(meterRegistry);
+    }
+
+    /**
+     * Returns true if {@code query} can be fused with others.
+     *
+     * @param query the query in canonical form
+     * @return true if {@code query} can be fused
+     */
+    public boolean isFusable(Query query) {
+        return !window.isZero() && maxSize > 1 && TYPES.contains(query.type())
+                && query.params().values(CODE).size() == 1;
+    }
+
+    /**
+     * Executes the {@link #isFusable(Query) fusable} {@code query}, fused with others if possible.
+     *
+     * @param query  the query in canonical form
+     * @param single the function executing a single query
+     * @param fused  the search executing fused queries
+     * @return a mono of the population of {@code query}
+     */
+    public Mono<Population> execute(Query query, Function<Query, Mono<Population>> single, FusedSearch fused) {
+        return Mono.<Mono<Population>>create(sink -> add(new Member(query, sink), single, fused))
+                .flatMap(population -> population);
+    }
+
+    private void add(Member member, Function<Query, Mono<Population>> single, FusedSearch fused) {
+        member.sink.onCancel(member::cancel);
+        var key = Query.of(member.query.type(), member.query.params().remove(CODE));
+        List<Member> full = null;
+        synchronized (this) {
+            var fusion = pending.computeIfAbsent(key, k -> new ArrayList<>());
+            fusion.add(member);
+            if (fusion.size() >= maxSize) {
+                full = pending.remove(key);
+            } else if (fusion.size() == 1) {
+                Schedulers.parallel().schedule(() -> flush(key, fusion, single, fused), window.toNanos(),
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            run(key, full, single, fused);
+        }
+    }
+
+    /**
+     * Runs {@code fusion} if it is still pending under {@code key}, which it isn't anymore if it was run because it
+     * was full.
+     */
+    private void flush(Query key, List<Member> fusion, Function<Query, Mono<Population>> single, FusedSearch fused) {
+        synchronized (this) {
+            if (pending.get(key) != fusion) {
+                return;
+            }
+            pending.remove(key);
+        }
+        run(key, fusion, single, fused);
+    }
+
+    private void run(Query key, List<Member> members, Function<Query, Mono<Population>> single, FusedSearch fused) {
+        for (List<Member> chunk : chunks(key, members)) {
+            fuse(key, chunk, single, fused);
+        }
+    }
+
+    /**
+     * Splits {@code members} into chunks whose fused query params don't get longer than {@code maxParamsLength}
+     * characters. A member whose own query params are longer gets a chunk of its own.
+     */
+    private List<List<Member>> chunks(Query key, List<Member> members) {
+        var fixedLength = key.params().toString().length() + (key.params().params().isEmpty() ? 0 : 1) +
+                CODE.length() + 1;
+        var chunks = new ArrayList<List<Member>>();
+        var chunk = new ArrayList<Member>();
+        var length = fixedLength;
+        for (Member member : members) {
+            var codeLength = member.query.params().values(CODE).get(0).length();
+            if (!chunk.isEmpty() && length + 1 + codeLength > maxParamsLength) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                length = fixedLength;
+            }
+            length += (chunk.isEmpty() ? 0 : 1) + codeLength;
+            chunk.add(member);
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private void fuse(Query key, List<Member> members, Function<Query, Mono<Population>> single, FusedSearch fused) {
+        var fusion = new Fusion(members);
+        members.forEach(member -> member.start(fusion));
+        var active = members.stream().filter(member -> !member.cancelled).toList();
+        if (active.isEmpty()) {
+            return;
+        } else if (active.size() == 1) {
+            var member = active.get(0);
+            member.sink.success(single.apply(member.query));
+            return;
+        }
+        var query = Query.of(key.type(), key.params().appendParam(CODE, active.stream()
+                .flatMap(member -> member.query.params().values(CODE).stream())
+                .collect(Collectors.joining(","))).canonical());
+        logger.debug("execute fusion of {} searches: {}", active.size(), query);
+        searches.increment(active.size());
+        fusions.increment();
+        fusion.start(fused.execute(query, (patientId, codings) -> active.forEach(member -> {
+                    if (member.matches(codings)) {
+                        synchronized (member.builder) {
+                            member.builder.add(patientId);
+                        }
+                    }
+                }))
+                .contextWrite(RequestScheduler.shared(active.stream().map(member -> member.sink.contextView())
+                        .toList()))
+                .subscribe(null, e -> active.forEach(member -> member.sink.error(e)), () -> active
+                        .forEach(member -> {
+                            synchronized (member.builder) {
+                                member.sink.success(Mono.just(member.builder.build()));
+                            }
+                        })));
+    }
+
+    /**
+     * A search executing a fused query and reporting each resource found to {@code resources}.
+     */
+    @FunctionalInterface
+    public interface FusedSearch {
+
+        Mono<Void> execute(Query query, Resources resources);
+    }
+
+    /**
+     * A consumer of the encoded patient ID and the codings of the resources of a fused search.
+     */
+    @FunctionalInterface
+    public interface Resources {
+
+        void accept(int patientId, List<Coding> codings);
+    }
+
+    /**
+     * A running fusion, which is disposed as soon as all of its members are cancelled.
+     */
+    private static final class Fusion {
+
+        private int active;
+        private Disposable disposable;
+
+        private Fusion(List<Member> members) {
+            active = members.size();
+        }
+
+        private synchronized void start(Disposable disposable) {
+            if (active == 0) {
+                disposable.dispose();
+            } else {
+                this.disposable = disposable;
+            }
+        }
+
+        private synchronized void cancel() {
+            if (--active == 0 && disposable != null) {
+                disposable.dispose();
+            }
+        }
+    }
+
+    /**
+     * A query waiting for the result of its fusion.
+     */
+    private final class Member {
+
+        private final Query query;
+        private final List<Token> tokens;
+        private final MonoSink<Mono<Population>> sink;
+        private final Population.Builder builder = Population.builder();
+        private Fusion fusion;
+        private boolean cancelled;
+
+        private Member(Query query, MonoSink<Mono<Population>> sink) {
+            this.query = query;
+            this.tokens = QueryParams.splitValues(query.params().values(CODE).get(0)).stream()
+                    .map(Token::parse)
+                    .toList();
+            this.sink = sink;
+        }
+
+        private boolean matches(List<Coding> codings) {
+            for (Coding coding : codings) {
+                for (Token token : tokens) {
+                    if (token.matches(coding)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void start(Fusion fusion) {
+            synchronized (QueryFuser.this) {
+                this.fusion = fusion;
+                if (cancelled) {
+                    fusion.cancel();
+                }
+            }
+        }
+
+        private void cancel() {
+            synchronized (QueryFuser.this) {
+                cancelled = true;
+                if (fusion != null) {
+                    fusion.cancel();
+                } else {
+                    var key = Query.of(query.type(), query.params().remove(CODE));
+                    var members = pending.get(key);
+                    if (members != null) {
+                        members.remove(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A token search value, whose {@code system} is null if any system matches and empty if only codings without
+     * system match and whose {@code code} is empty if any code of the system matches.
+     */
+    record Token(String system, String code) {
+
+        static Token parse(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) == '\\') {
+                    i++;
+                } else if (value.charAt(i) == '|') {
+                    return new Token(unescape(value.substring(0, i)), unescape(value.substring(i + 1)));
+                }
+            }
+            return new Token(null, unescape(value));
+        }
+
+        private static String unescape(String s) {
+            var sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) == '\\' && i + 1 < s.length()) {
+                    i++;
+                }
+                sb.append(s.charAt(i));
+            }
+            return sb.toString();
+        }
+
+        boolean matches(Coding coding) {
+            var systemMatches = system == null || (system.isEmpty() ? coding.system() == null
+                    : system.equals(coding.system()));
+            return systemMatches && (code.isEmpty() ? system != null : code.equals(coding.code()));
+        }
+    }
+}
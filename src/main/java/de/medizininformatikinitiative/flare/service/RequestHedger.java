@@ -0,0 +1,113 @@
+package de.medizininformatikinitiative.flare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Hedges idempotent requests to cut their tail latency.
+ * <p>
+ * If a request didn't answer within the {@code percentile} of the latencies of recent requests, a duplicate request is
+ * sent. The first answer is used and the other request is cancelled. Errors of the duplicate are ignored, so that the
+ * original request decides about failure. Every request earns {@code budget} tokens and every duplicate costs one
+ * token, so that duplicates add at most {@code budget} times the number of requests to the load of the FHIR server.
+ * Hedging is disabled by default.
+ * <p>
+ * Only the latencies of original requests are recorded, because the latencies of duplicates, which are only sent for
+ * slow requests, would hide the slow ones. An original request cancelled because its duplicate answered first is
+ * recorded with the time it ran so far.
+ * <p>
+ * The number of duplicates sent is reported as {@code flare.hedger.requests}.
+ */
+@Component
+public class RequestHedger {
+
+    private static final int WINDOW = 1000;
+    private static final int MIN_SAMPLES = 100;
+    private static final int RECOMPUTE_INTERVAL = 100;
+    private static final double MAX_TOKENS = 10;
+
+    private final double percentile;
+    private final double budget;
+    private final Counter hedges;
+    private final long[] latencies = new long[WINDOW];
+    private long samples;
+    private long delay = -1;
+    private double tokens;
+
+    public RequestHedger(@Value("${app.dataStore.hedging.percentile}") double percentile,
+                         @Value("${app.dataStore.hedging.budget}") double budget,
+                         MeterRegistry meterRegistry) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("invalid hedging percentile: " + percentile);
+        }
+        this.percentile = percentile;
+        this.budget = budget;
+        hedges = Counter.builder("flare.hedger.requests").register(meterRegistry);
+    }
+
+    /**
+     * Executes the request supplied by {@code request} and hedges it if hedging is enabled.
+     *
+     * @param request the supplier of the request, which is called twice if the request is hedged
+     * @return a mono of the first answer
+     */
+    public <T> Mono<T> hedge(Supplier<Mono<T>> request) {
+        if (budget <= 0) {
+            return Mono.defer(request);
+        }
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            var primary = request.get().doFinally(signal -> {
+                if (signal != SignalType.ON_ERROR) {
+                    record(System.nanoTime() - start);
+                }
+            });
+            return delay().map(delay -> Mono.firstWithSignal(primary, Mono.delay(delay)
+                            .filter(tick -> acquireToken())
+                            .flatMap(tick -> {
+                                hedges.increment();
+                                return request.get();
+                            })
+                            .onErrorResume(e -> Mono.never())
+                            .switchIfEmpty(Mono.never())))
+                    .orElse(primary);
+        });
+    }
+
+    /**
+     * Returns the delay after which requests are hedged, earning the budget of one request.
+     */
+    private synchronized Optional<Duration> delay() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+        return delay < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(delay));
+    }
+
+    private synchronized boolean acquireToken() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Records the {@code latency} of a request in nanoseconds.
+     */
+    synchronized void record(long latency) {
+        latencies[(int) (samples++ % WINDOW)] = latency;
+        if (samples >= MIN_SAMPLES && samples % RECOMPUTE_INTERVAL == 0) {
+            var sorted = Arrays.copyOf(latencies, (int) Math.min(samples, WINDOW));
+            Arrays.sort(sorted);
+            delay = sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+        }
+    }
+}
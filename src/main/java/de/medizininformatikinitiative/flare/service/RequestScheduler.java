@@ -0,0 +1,376 @@
+package de.medizininformatikinitiative.flare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of HTTP exchanges with the FHIR server in flight and shares them fairly between their owners.
+ * <p>
+ * The scheduler is the {@link #filter() filter} of the FHIR client, so that every exchange takes one slot, including
+ * each page of a search, batches, hedged duplicates, counts and retries. A slot is taken before the request is sent
+ * and released after the response body was consumed, or the exchange failed or was cancelled. The time in between is
+ * recorded as {@link FetchCost fetch cost}.
+ * <p>
+ * Exchanges beyond {@code maxInFlight} are queued per owner. Whenever an exchange finishes, the next exchange is taken
+ * from the queues in round-robin order over the owners, so that an owner with hundreds of queued exchanges doesn't
+ * starve owners with only a few. The owner of an exchange is taken from the Reactor context under the key written by
+ * {@link #owner(Object)}. Exchanges without owner, like refreshes or the warm-up, share one background owner.
+ * <p>
+ * The limit of exchanges in flight adapts to the load of the FHIR server between {@code minInFlight} and
+ * {@code maxInFlight} (AIMD). The filter samples the latency of every exchange from sending the request to receiving
+ * the response headers. The ratio of a slow moving average of the latency to a fast one, the RTT gradient, stays around
+ * one as long as the server keeps up. While it does and the limit is used, the limit grows by about one per limit
+ * samples. Because the limit counts exchanges and every exchange is sampled once, this is about one per round trip of
+ * all exchanges in flight. As soon as the fast average exceeds the slow one by the factor {@code latencyTolerance}, or
+ * the server answers with 429 or 503, the limit is multiplied by {@code backoff}. A {@code Retry-After} header of such
+ * a response pauses the dispatch of new exchanges and the rejected exchange is retried after the given time.
+ * <p>
+ * The number of queued exchanges is reported as {@code flare.scheduler.queue.size}, the number of exchanges in flight
+ * as {@code flare.scheduler.in.flight}, the time exchanges wait in the queue as {@code flare.scheduler.wait}, the
+ * current limit as {@code flare.scheduler.limit}, the RTT gradient as {@code flare.scheduler.rtt.gradient} and the
+ * number of 429 and 503 responses as {@code flare.scheduler.rejections}.
+ */
+@Component
+public class RequestScheduler {
+
+    private static final String OWNER_KEY = RequestScheduler.class.getName() + ".owner";
+    private static final Object BACKGROUND = new Object();
+
+    private static final int MAX_RETRIES = 3;
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(1);
+    private static final double FAST_RTT_WEIGHT = 0.2;
+    private static final double SLOW_RTT_WEIGHT = 0.02;
+
+    private final int minInFlight;
+    private final int maxInFlight;
+    private final double latencyTolerance;
+    private final double backoff;
+    private final Timer waitTime;
+    private final Counter rejections;
+    private final Map<Object, Deque<Waiter>> queues = new LinkedHashMap<>();
+    private int queueSize;
+    private int inFlight;
+    private double limit;
+    private double fastRtt;
+    private double slowRtt;
+    private long lastDecrease;
+    private long pausedUntil;
+
+    public RequestScheduler(@Value("${app.scheduler.minInFlight}") int minInFlight,
+                            @Value("${app.scheduler.maxInFlight}") int maxInFlight,
+                            @Value("${app.scheduler.latencyTolerance}") double latencyTolerance,
+                            @Value("${app.scheduler.backoff}") double backoff,
+                            MeterRegistry meterRegistry) {
+        if (minInFlight < 1 || maxInFlight < minInFlight) {
+            throw new IllegalArgumentException("invalid in-flight exchange limits: %d..%d".formatted(minInFlight,
+                    maxInFlight));
+        }
+        if (latencyTolerance <= 1 || backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("invalid latency tolerance %s or backoff %s".formatted(latencyTolerance,
+                    backoff));
+        }
+        this.minInFlight = minInFlight;
+        this.maxInFlight = maxInFlight;
+        this.latencyTolerance = latencyTolerance;
+        this.backoff = backoff;
+        limit = minInFlight;
+        lastDecrease = pausedUntil = System.nanoTime();
+        waitTime = Timer.builder("flare.scheduler.wait").register(meterRegistry);
+        rejections = Counter.builder("flare.scheduler.rejections").register(meterRegistry);
+        Gauge.builder("flare.scheduler.queue.size", this, RequestScheduler::queueSize).register(meterRegistry);
+        Gauge.builder("flare.scheduler.in.flight", this, RequestScheduler::inFlight).register(meterRegistry);
+        Gauge.builder("flare.scheduler.limit", this, RequestScheduler::limit).register(meterRegistry);
+        Gauge.builder("flare.scheduler.rtt.gradient", this, RequestScheduler::rttGradient).register(meterRegistry);
+    }
+
+    /**
+     * Returns a context marking all exchanges within as owned by {@code owner}.
+     *
+     * @param owner the owner of the exchanges, compared by equality
+     * @return a context to write into the Reactor context of the exchanges
+     */
+    public static Context owner(Object owner) {
+        return Context.of(OWNER_KEY, owner);
+    }
+
+    /**
+     * Returns a context for requests made on behalf of several callers with {@code contexts}, like batches and
+     * fusions.
+     * <p>
+     * The requests get an owner of their own, so that they aren't accounted to one of the callers, and the latest
+     * {@link Deadline deadline} of the callers, because they are cancelled anyway when all callers are cancelled. Their
+     * latencies count to the {@link FetchCost fetch costs} of all callers.
+     *
+     * @param contexts the contexts of the callers
+     * @return a context to write into the Reactor context of the requests
+     */
+    static Context shared(List<ContextView> contexts) {
+        var context = owner(new Object()).putAll(FetchCost.shared(contexts).readOnly());
+        return Deadline.latest(contexts).map(deadline -> context.putAll(deadline.context().readOnly())).orElse(context);
+    }
+
+    synchronized int queueSize() {
+        return queueSize;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    synchronized double rttGradient() {
+        return fastRtt == 0 ? 1 : slowRtt / fastRtt;
+    }
+
+    /**
+     * Returns a filter for the FHIR client which schedules all exchanges, samples their latency and retries exchanges
+     * rejected with 429 or 503 honouring {@code Retry-After}.
+     *
+     * @return the filter
+     */
+    public ExchangeFilterFunction filter() {
+        return (request, next) -> exchange(request, next, 0);
+    }
+
+    private Mono<ClientResponse> exchange(ClientRequest request, ExchangeFunction next, int retries) {
+        return Mono.deferContextual(context -> acquire().flatMap(permit -> {
+            var start = System.nanoTime();
+            Runnable finish = () -> {
+                if (release(permit)) {
+                    FetchCost.record(context, System.nanoTime() - start);
+                }
+            };
+            return next.exchange(request)
+                    .doOnError(e -> finish.run())
+                    .doOnCancel(finish)
+                    .flatMap(response -> {
+                        if (!isOverload(response.statusCode().value())) {
+                            onSample(System.nanoTime() - start);
+                            return Mono.just(finishingAfterBody(response, finish));
+                        }
+                        var retryAfter = retryAfter(response.headers().asHttpHeaders());
+                        onOverload(retryAfter.orElse(Duration.ZERO));
+                        if (retries >= MAX_RETRIES) {
+                            return Mono.just(finishingAfterBody(response, finish));
+                        }
+                        return response.releaseBody()
+                                .doOnTerminate(finish)
+                                .doOnCancel(finish)
+                                .then(Mono.delay(retryAfter.orElse(DEFAULT_RETRY_AFTER)))
+                                .then(exchange(request, next, retries + 1));
+                    })
+                    .switchIfEmpty(Mono.fromRunnable(finish));
+        }));
+    }
+
+    /**
+     * Returns {@code response} running {@code finish} as soon as its body is consumed.
+     */
+    private static ClientResponse finishingAfterBody(ClientResponse response, Runnable finish) {
+        return response.mutate().body(body -> body.doOnTerminate(finish).doOnCancel(finish)).build();
+    }
+
+    private static boolean isOverload(int status) {
+        return status == HttpStatus.TOO_MANY_REQUESTS.value() || status == HttpStatus.SERVICE_UNAVAILABLE.value();
+    }
+
+    /**
+     * Parses the {@code Retry-After} header, which is either a number of seconds or an HTTP date.
+     */
+    static Optional<Duration> retryAfter(HttpHeaders headers) {
+        var value = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (value == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(value.strip()))));
+        } catch (NumberFormatException e) {
+            try {
+                var date = ZonedDateTime.parse(value.strip(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                var duration = Duration.between(ZonedDateTime.now(date.getZone()), date);
+                return Optional.of(duration.isNegative() ? Duration.ZERO : duration);
+            } catch (DateTimeParseException e1) {
+                return Optional.empty();
+            }
+        }
+    }
+
+    /**
+     * Adapts the limit to the latency {@code rtt} of an exchange in nanoseconds. Called once per exchange, so that the
+     * additive increase of {@code 1 / limit} adds up to about one per limit exchanges.
+     */
+    void onSample(long rtt) {
+        synchronized (this) {
+            if (fastRtt == 0) {
+                fastRtt = slowRtt = rtt;
+            } else {
+                fastRtt += FAST_RTT_WEIGHT * (rtt - fastRtt);
+                slowRtt += SLOW_RTT_WEIGHT * (rtt - slowRtt);
+            }
+            if (fastRtt > latencyTolerance * slowRtt) {
+                decrease();
+                return;
+            }
+            if (inFlight < (int) limit) {
+                return;
+            }
+            limit = Math.min(maxInFlight, limit + 1 / limit);
+        }
+        dispatch();
+    }
+
+    /**
+     * Decreases the limit after a 429 or 503 response and pauses dispatching for {@code retryAfter}.
+     */
+    void onOverload(Duration retryAfter) {
+        rejections.increment();
+        synchronized (this) {
+            decrease();
+            if (!retryAfter.isZero()) {
+                pausedUntil = Math.max(pausedUntil, System.nanoTime() + retryAfter.toNanos());
+            }
+        }
+        if (!retryAfter.isZero()) {
+            Schedulers.parallel().schedule(this::dispatch, retryAfter.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Decreases the limit multiplicatively, but at most once per fast RTT, so that all exchanges which were slow
+     * because of the same congestion only count once.
+     */
+    private void decrease() {
+        var now = System.nanoTime();
+        if (now - lastDecrease >= fastRtt) {
+            limit = Math.max(minInFlight, limit * backoff);
+            lastDecrease = now;
+        }
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.create(sink -> {
+            var waiter = new Waiter(sink.contextView().getOrDefault(OWNER_KEY, BACKGROUND), sink, System.nanoTime());
+            sink.onCancel(() -> cancel(waiter));
+            synchronized (this) {
+                queues.computeIfAbsent(waiter.owner, owner -> new ArrayDeque<>()).add(waiter);
+                queueSize++;
+            }
+            dispatch();
+        });
+    }
+
+    /**
+     * Grants permits to the waiters at the heads of the queues in round-robin order as long as slots are available.
+     */
+    private void dispatch() {
+        var granted = new ArrayList<Waiter>();
+        synchronized (this) {
+            while (inFlight < (int) limit && !queues.isEmpty() && System.nanoTime() - pausedUntil >= 0) {
+                var iterator = queues.entrySet().iterator();
+                var queue = iterator.next();
+                iterator.remove();
+                var waiter = queue.getValue().poll();
+                if (!queue.getValue().isEmpty()) {
+                    queues.put(queue.getKey(), queue.getValue());
+                }
+                queueSize--;
+                inFlight++;
+                waiter.permit = new Permit();
+                granted.add(waiter);
+            }
+        }
+        for (Waiter waiter : granted) {
+            waitTime.record(System.nanoTime() - waiter.enqueuedAt, TimeUnit.NANOSECONDS);
+            waiter.sink.success(waiter.permit);
+        }
+    }
+
+    /**
+     * Removes a cancelled waiter from its queue or releases its permit if it was granted concurrently.
+     */
+    private void cancel(Waiter waiter) {
+        Permit permit;
+        synchronized (this) {
+            var queue = queues.get(waiter.owner);
+            if (queue != null && queue.remove(waiter)) {
+                queueSize--;
+                if (queue.isEmpty()) {
+                    queues.remove(waiter.owner);
+                }
+                return;
+            }
+            permit = waiter.permit;
+        }
+        if (permit != null) {
+            release(permit);
+        }
+    }
+
+    /**
+     * Releases {@code permit} unless it was released already.
+     *
+     * @return whether {@code permit} was released by this call
+     */
+    private boolean release(Permit permit) {
+        if (!permit.compareAndSet(false, true)) {
+            return false;
+        }
+        synchronized (this) {
+            inFlight--;
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * A slot for one exchange. Is {@code true} after it was released.
+     */
+    private static final class Permit extends AtomicBoolean {
+    }
+
+    private static final class Waiter {
+
+        private final Object owner;
+        private final MonoSink<Permit> sink;
+        private final long enqueuedAt;
+        private Permit permit;
+
+        private Waiter(Object owner, MonoSink<Permit> sink, long enqueuedAt) {
+            this.owner = owner;
+            this.sink = sink;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides whether searches for resources of patients are better executed as reverse chained searches for the patients
+ * themselves.
+ * <p>
+ * A search like {@code Observation?code=X} returns every matching Observation, although only the distinct patients
+ * are needed. For repeatedly measured values most of the entries transferred are duplicates. The reverse chained
+ * search {@code Patient?_has:Observation:subject:code=X} finds the same patients, but returns each of them only once.
+ * <p>
+ * Searches for the {@code resourceTypes} configured are always reverse chained. Searches for other resource types are
+ * reverse chained as soon as the {@link #record(String, long, int) observed} number of entries per patient of their
+ * resource type reaches {@code ratio}. A ratio of zero disables the automatic choice. Because only un-chained searches
+ * reveal that ratio, every {@value #SAMPLE_INTERVAL}th search of an automatically chained resource type is still
+ * executed un-chained, so that the choice is revised if the data changes.
+ * <p>
+ * Only searches with a single param are reverse chained, because the FHIR server evaluates each {@code _has} param on
+ * its own, so that two params could be matched by two different resources of the same patient. The number of reverse
+ * chained searches is reported as {@code flare.chaining.searches}.
+ */
+@Component
+public class ReverseChaining {
+
+    /**
+     * The number of searches of a resource type to observe before the automatic choice is made.
+     */
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * The weight of a new sample of the entries per patient ratio.
+     */
+    private static final double WEIGHT = 0.1;
+
+    /**
+     * The number of searches of an automatically chained resource type of which one is executed un-chained.
+     */
+    static final int SAMPLE_INTERVAL = 20;
+
+    private final Set<String> resourceTypes;
+    private final double ratio;
+    private final Map<String, Ratio> ratios = new ConcurrentHashMap<>();
+    private final Counter searches;
+
+    public ReverseChaining(@Value("${app.dataStore.reverseChaining.resourceTypes}") List<String> resourceTypes,
+                           @Value("${app.dataStore.reverseChaining.ratio}") double ratio,
+                           MeterRegistry meterRegistry) {
+        this.resourceTypes = Set.copyOf(resourceTypes);
+        this.ratio = ratio;
+        searches = Counter.builder("flare.chaining.searches").register(meterRegistry);
+    }
+
+    /**
+     * Returns the reverse chained form of {@code query} if it should be used.
+     *
+     * @param query          the query in canonical form
+     * @param referenceParam the search param of the resource type of {@code query} referencing the patient
+     * @return the reverse chained query or {@link Optional#empty() empty} if {@code query} should be executed as is
+     */
+    public Optional<Query> rewrite(Query query, String referenceParam) {
+        if ("Patient".equals(query.type()) || query.params().params().size() != 1 || !chained(query.type())) {
+            return Optional.empty();
+        }
+        var params = query.params().toString();
+        var i = params.indexOf('=');
+        var name = "_has:%s:%s:%s".formatted(query.type(), referenceParam, params.substring(0, i));
+        searches.increment();
+        return Optional.of(Query.of("Patient", QueryParams.of(name, params.substring(i + 1))));
+    }
+
+    private boolean chained(String type) {
+        if (resourceTypes.contains(type)) {
+            return true;
+        }
+        var observed = ratios.get(type);
+        return ratio > 0 && observed != null && observed.chain(ratio);
+    }
+
+    /**
+     * Records that a search for {@code type} resources returned {@code entries} entries of {@code patients} distinct
+     * patients.
+     *
+     * @param type     the resource type searched for
+     * @param entries  the number of entries returned
+     * @param patients the number of distinct patients
+     */
+    public void record(String type, long entries, int patients) {
+        if (patients > 0) {
+            ratios.computeIfAbsent(type, t -> new Ratio()).add((double) entries / patients);
+        }
+    }
+
+    /**
+     * The moving average of the entries per patient ratio of one resource type.
+     */
+    private static final class Ratio {
+
+        private int samples;
+        private double average;
+        private int chained;
+
+        private synchronized void add(double sample) {
+            average = samples == 0 ? sample : average + WEIGHT * (sample - average);
+            samples++;
+        }
+
+        /**
+         * Returns whether the next search should be chained, which is the case if the average reaches
+         * {@code threshold}, except for every {@value #SAMPLE_INTERVAL}th search.
+         */
+        private synchronized boolean chain(double threshold) {
+            if (samples < MIN_SAMPLES || average < threshold) {
+                chained = 0;
+                return false;
+            }
+            return ++chained % SAMPLE_INTERVAL != 0;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.http.MediaType.APPLICATION_FORM_URLENCODED;
+
+/**
+ * Fetches the first pages of searches, combining searches started within a short {@code window} into one FHIR
+ * {@code batch} Bundle.
+ * <p>
+ * Under bursty load, like many dashboards executing their queries at the same moment, this saves one HTTP request
+ * per search. The first search of a batch waits at most {@code window} for others to join, a batch is sent as soon as
+ * it holds {@code maxSize} searches. A batch holding only one search is sent as an ordinary search. Because all pages
+ * of a batch are returned in one response, which is held in memory until all pages are consumed, {@code maxSize} should
+ * be kept small. Responses larger than {@code maxResponseSize} fail all searches of the batch.
+ * <p>
+ * The first page of each search is taken from its entry in the {@code batch-response} Bundle. Following pages are
+ * fetched through the next links of that page as usual. A batch is sent on behalf of all its searches, so its request
+ * runs until the latest deadline of them and is cancelled only if all of them are cancelled.
+ */
+@Component
+public class SearchBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchBatcher.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final MediaType MEDIA_TYPE_FHIR_JSON = MediaType.valueOf("application/fhir+json");
+
+    private final WebClient client;
+    private final Duration window;
+    private final int maxSize;
+    private final int maxResponseSize;
+
+    private Batch batch = new Batch();
+
+    public SearchBatcher(@Qualifier("dataStoreClient") WebClient client,
+                         @Value("${app.dataStore.batch.window}") Duration window,
+                         @Value("${app.dataStore.batch.maxSize}") int maxSize,
+                         @Value("${app.dataStore.batch.maxResponseSize}") DataSize maxResponseSize) {
+        this.client = Objects.requireNonNull(client);
+        this.window = Objects.requireNonNull(window);
+        this.maxSize = maxSize;
+        this.maxResponseSize = Math.toIntExact(maxResponseSize.toBytes());
+    }
+
+    /**
+     * Returns the first page of the search for {@code type} resources with {@code params}.
+     *
+     * @param type   the resource type to search for
+     * @param params the {@link QueryParams#encode() encoded} params of the search
+     * @return the body of the first page
+     */
+    public Flux<DataBuffer> search(String type, byte[] params) {
+        if (window.isZero() || maxSize <= 1) {
+            return post(type, params);
+        }
+        return Mono.<Flux<DataBuffer>>create(sink -> add(new Search(type, params, sink))).flatMapMany(page -> page);
+    }
+
+    private Flux<DataBuffer> post(String type, byte[] params) {
+        return client.post()
+                .uri("/{type}/_search", type)
+                .contentType(APPLICATION_FORM_URLENCODED)
+                .bodyValue(params)
+                .retrieve()
+                .bodyToFlux(DataBuffer.class);
+    }
+
+    private void add(Search search) {
+        Batch full = null;
+        Batch current;
+        synchronized (this) {
+            current = batch;
+            current.searches.add(search);
+            if (current.searches.size() >= maxSize) {
+                full = current;
+                batch = new Batch();
+                full.markSent();
+            } else if (current.searches.size() == 1) {
+                var expired = current;
+                Schedulers.parallel().schedule(() -> flush(expired), window.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        search.sink.onCancel(() -> current.cancel(search));
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends {@code expired} if it is still the current batch, which it isn't anymore if it was sent because it was
+     * full.
+     */
+    private void flush(Batch expired) {
+        synchronized (this) {
+            if (batch != expired) {
+                return;
+            }
+            batch = new Batch();
+            expired.markSent();
+        }
+        send(expired);
+    }
+
+    private void send(Batch batch) {
+        var searches = List.copyOf(batch.searches);
+        if (searches.isEmpty()) {
+            return;
+        } else if (searches.size() == 1) {
+            var search = searches.get(0);
+            search.sink.success(post(search.type, search.params));
+            return;
+        }
+        logger.debug("send batch of {} searches", searches.size());
+        batch.request.update(Deadline.enforce(DataBufferUtils.join(client.post()
+                                .uri("")
+                                .contentType(MEDIA_TYPE_FHIR_JSON)
+                                .bodyValue(batchBundle(searches))
+                                .retrieve()
+                                .bodyToFlux(DataBuffer.class), maxResponseSize)
+                        .<List<Entry>>handle((buffer, sink) -> {
+                            try (var in = buffer.asInputStream(true)) {
+                                sink.next(entries(in.readAllBytes()));
+                            } catch (IOException e) {
+                                sink.error(e);
+                            }
+                        }))
+                .contextWrite(RequestScheduler.shared(searches.stream()
+                        .map(search -> search.sink.contextView())
+                        .toList()))
+                .subscribe(entries -> split(searches, entries),
+                        e -> searches.forEach(search -> search.sink.error(e))));
+    }
+
+    private static String batchBundle(List<Search> searches) {
+        var bundle = MAPPER.createObjectNode()
+                .put("resourceType", "Bundle")
+                .put("type", "batch");
+        var entries = bundle.putArray("entry");
+        for (Search search : searches) {
+            entries.addObject().putObject("request")
+                    .put("method", "GET")
+                    .put("url", search.url());
+        }
+        return bundle.toString();
+    }
+
+    /**
+     * Returns the entries of the batch {@code response}.
+     * <p>
+     * The response is parsed as stream of tokens. The resource of each entry isn't parsed any further but referenced
+     * as slice of {@code response}, so that it can be handed to the search as is.
+     */
+    private static List<Entry> entries(byte[] response) throws IOException {
+        var entries = new ArrayList<Entry>();
+        try (var parser = MAPPER.getFactory().createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected batch response to be an object.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && field.equals("entry")) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        entries.add(entry(parser, response));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Entry entry(JsonParser parser, byte[] response) throws IOException {
+        String status = "";
+        ByteBuffer resource = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            var token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT && field.equals("resource")) {
+                var start = (int) parser.currentTokenLocation().getByteOffset();
+                parser.skipChildren();
+                var end = (int) parser.currentLocation().getByteOffset();
+                resource = ByteBuffer.wrap(response, start, end - start).slice();
+            } else if (token == JsonToken.START_OBJECT && field.equals("response")) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var responseField = parser.currentName();
+                    if (parser.nextToken() == JsonToken.VALUE_STRING && responseField.equals("status")) {
+                        status = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new Entry(status, resource);
+    }
+
+    /**
+     * Hands the first page in each of the {@code entries} of the batch response to the search at the same position.
+     */
+    private static void split(List<Search> searches, List<Entry> entries) {
+        if (entries.size() != searches.size()) {
+            var e = new IllegalStateException("Batch response has %d entries instead of %d."
+                    .formatted(entries.size(), searches.size()));
+            searches.forEach(search -> search.sink.error(e));
+            return;
+        }
+        for (int i = 0; i < searches.size(); i++) {
+            var search = searches.get(i);
+            var entry = entries.get(i);
+            if (entry.status.startsWith("2") && entry.resource != null) {
+                search.sink.success(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(entry.resource)));
+            } else {
+                search.sink.error(new IllegalStateException("Search `%s` in batch failed with status `%s`."
+                        .formatted(search.url(), entry.status)));
+            }
+        }
+    }
+
+    /**
+     * The searches of one batch.
+     * <p>
+     * The request of a sent batch is shared by its searches. It's cancelled as soon as the last waiting search is
+     * cancelled.
+     */
+    private final class Batch {
+
+        private final List<Search> searches = new ArrayList<>();
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final Disposable.Swap request = Disposables.swap();
+        private boolean sent;
+
+        private void markSent() {
+            sent = true;
+            waiting.set(searches.size());
+        }
+
+        private void cancel(Search search) {
+            synchronized (SearchBatcher.this) {
+                if (!sent) {
+                    searches.remove(search);
+                    return;
+                }
+            }
+            if (waiting.decrementAndGet() == 0) {
+                request.dispose();
+            }
+        }
+    }
+
+    private record Entry(String status, ByteBuffer resource) {
+    }
+
+    private record Search(String type, byte[] params, MonoSink<Flux<DataBuffer>> sink) {
+
+        private String url() {
+            return type + "?" + new String(params, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package de.medizininformatikinitiative.flare.service;
+
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Waits for loads of a cache, which are shared by all callers asking for the same key.
+ * <p>
+ * A load is cancelled as soon as all callers waiting for it are cancelled, so that a caller giving up on a result,
+ * like an intersection which already became empty, doesn't leave the requests of the load running. Callers which
+ * join a load just being cancelled ask for it again.
+ */
+final class SharedLoads {
+
+    private final Map<CompletableFuture<?>, AtomicInteger> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a mono of the load returned by {@code load}, which has to cancel its work if it is cancelled.
+     *
+     * @param load returns the shared load of the caller, starting it if necessary
+     * @param <T>  the type of the result of the load
+     * @return a mono of the result of the load
+     */
+    <T> Mono<T> get(Supplier<CompletableFuture<T>> load) {
+        return Mono.defer(() -> join(load.get()))
+                .retryWhen(Retry.indefinitely().filter(CancellationException.class::isInstance));
+    }
+
+    private <T> Mono<T> join(CompletableFuture<T> future) {
+        if (future.isDone()) {
+            return Mono.fromFuture(future, true);
+        }
+        var count = waiting.computeIfAbsent(future, f -> new AtomicInteger());
+        if (count.getAndIncrement() == 0) {
+            future.whenComplete((value, e) -> waiting.remove(future));
+        }
+        return Mono.fromFuture(future, true).doOnCancel(() -> {
+            if (count.decrementAndGet() == 0) {
+                future.cancel(true);
+            }
+        });
+    }
+}
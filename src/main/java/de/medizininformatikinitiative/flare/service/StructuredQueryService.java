@@ -1,6 +1,7 @@
 package de.medizininformatikinitiative.flare.service;
 
-import de.medizininformatikinitiative.flare.Util;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.population.Population;
 import de.medizininformatikinitiative.flare.model.sq.Criterion;
 import de.medizininformatikinitiative.flare.model.sq.CriterionGroup;
 import de.medizininformatikinitiative.flare.model.sq.StructuredQuery;
@@ -10,56 +11,151 @@ import de.medizininformatikinitiative.flare.model.translate.QueryExpression;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Set;
+import java.util.stream.Collectors;
 
+import static de.medizininformatikinitiative.flare.model.translate.Operator.Name.DIFFERENCE;
 import static de.medizininformatikinitiative.flare.model.translate.Operator.Name.UNION;
 import static java.util.Objects.requireNonNull;
+import static java.util.function.Function.identity;
+import static java.util.function.Predicate.not;
 
 @Service
 public class StructuredQueryService {
 
     private static final Logger logger = LoggerFactory.getLogger(StructuredQueryService.class);
 
+    private static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
     private final FhirQueryService fhirQueryService;
     private final Translator translator;
+    private final SubExpressionCache subExpressionCache;
+    private final boolean orderByCardinality;
 
     public StructuredQueryService(@Qualifier("cachingFhirQueryService") FhirQueryService fhirQueryService,
-                                  Translator translator) {
+                                  Translator translator, SubExpressionCache subExpressionCache,
+                                  @Value("${app.execution.orderByCardinality}") boolean orderByCardinality) {
         this.fhirQueryService = requireNonNull(fhirQueryService);
         this.translator = requireNonNull(translator);
+        this.subExpressionCache = requireNonNull(subExpressionCache);
+        this.orderByCardinality = orderByCardinality;
+        fhirQueryService.addRemovalListener(subExpressionCache::invalidate);
     }
 
     /**
      * Executes {@code query} and returns the number of Patients qualifying its criteria.
+     * <p>
+     * If the {@link #translate(StructuredQuery) translation} of {@code query} is a single query on Patients, no set
+     * operations are needed and the FHIR server is asked to count the Patients instead of returning them.
+     * <p>
+     * Otherwise, if {@code orderByCardinality} is set, the inclusion groups are executed one after another, starting with the
+     * group with the smallest estimated population, and execution stops as soon as the intersection becomes empty.
+     * Otherwise, all inclusion groups are executed in parallel and the others are cancelled as soon as one of them is
+     * empty. In both modes, the exclusion criteria aren't executed if no patient is included.
+     * <p>
+     * All requests to the FHIR server made on behalf of one execution share one {@link RequestScheduler#owner(Object)
+     * owner}, so that concurrent executions get a fair share of the request slots.
+     * <p>
+     * If the Reactor context holds a {@link Deadline deadline}, the execution fails with a
+     * {@link DeadlineExceededException} as soon as it expires. The deadline is passed on to all searches, which
+     * cancel their outstanding requests on their own, even if they were started by a cache shared with other
+     * executions.
      *
      * @param query the query to execute
      * @return the number of Patients qualifying the criteria
      */
     public Mono<Integer> execute(StructuredQuery query) {
-        var includedPatients = query.inclusionCriteria().executeAndIntersection(this::executeUnionGroup)
-                .defaultIfEmpty(Set.of());
+        return Deadline.enforce(translate(query).flatMap(expression -> singlePatientQuery(expression)
+                        .map(fhirQueryService::count)
+                        .orElseGet(() -> executePopulation(query))))
+                .contextWrite(RequestScheduler.owner(new Object()));
+    }
+
+    /**
+     * Returns the query of {@code expression} if {@code expression} consists of a single query of type Patient and
+     * operators with only one operand, which don't change the result of the query.
+     */
+    private static Optional<Query> singlePatientQuery(Expression expression) {
+        if (expression instanceof QueryExpression queryExpression) {
+            var query = queryExpression.query();
+            return "Patient".equals(query.type()) ? Optional.of(query) : Optional.empty();
+        }
+        if (expression instanceof Operator operator && operator.name() != DIFFERENCE &&
+                operator.operands().size() == 1) {
+            return singlePatientQuery(operator.operands().get(0));
+        }
+        return Optional.empty();
+    }
+
+    private Mono<Integer> executePopulation(StructuredQuery query) {
+        var includedPatients = executeInclusion(query.inclusionCriteria()).defaultIfEmpty(Population.EMPTY);
         var excludedPatients = query.exclusionCriteria()
                 .map(CriterionGroup::wrapCriteria)
                 .executeAndUnion(group -> group.executeAndUnion(this::executeUnionGroup))
-                .defaultIfEmpty(Set.of());
+                .defaultIfEmpty(Population.EMPTY);
         return includedPatients
-                .flatMap(i -> excludedPatients.map(e -> Util.difference(i, e)))
-                .map(Set::size);
+                .flatMap(i -> i.isEmpty() ? Mono.just(i) : excludedPatients.map(i::andNot))
+                .map(Population::size);
     }
 
-    private Mono<Set<String>> executeUnionGroup(CriterionGroup<Criterion> group) {
-        return group.executeAndUnion(this::executeSingle);
+    private Mono<Population> executeInclusion(CriterionGroup<CriterionGroup<Criterion>> inclusionCriteria) {
+        return orderByCardinality
+                ? inclusionCriteria.executeOrderedAndIntersection(this::estimateUnionGroup, this::executeUnionGroup)
+                : inclusionCriteria.executeAndIntersection(this::executeUnionGroup);
     }
 
-    private Flux<Set<String>> executeSingle(Criterion criterion) {
-        logger.debug("execute single criterion {}", criterion);
-        return translator.toQuery(criterion).flux()
-                .flatMap(Flux::fromIterable)
-                .flatMap(query -> Mono.fromFuture(fhirQueryService.execute(query)));
+    /**
+     * Estimates the size of the population of {@code group} as sum of the estimated sizes of all its queries.
+     */
+    private Mono<Long> estimateUnionGroup(CriterionGroup<Criterion> group) {
+        return Flux.fromIterable(group.criteria())
+                .concatMap(translator::toQuery)
+                .flatMapIterable(identity())
+                .map(fhirQueryService::estimateSize)
+                .reduce(0L, StructuredQueryService::addEstimate);
+    }
+
+    private static long addEstimate(long size, OptionalInt estimate) {
+        return size == UNKNOWN_SIZE || estimate.isEmpty() ? UNKNOWN_SIZE : size + estimate.getAsInt();
+    }
+
+    /**
+     * Executes {@code group} using the {@link SubExpressionCache sub-expression cache}.
+     * <p>
+     * The group is keyed by the set of the query sets of its criteria. Groups whose criteria all translate into the
+     * same queries are executed as single criterion.
+     */
+    private Mono<Population> executeUnionGroup(CriterionGroup<Criterion> group) {
+        return Flux.fromIterable(group.criteria())
+                .concatMap(translator::toQuery)
+                .map(Set::<Query>copyOf)
+                .filter(not(Set::isEmpty))
+                .collect(Collectors.toUnmodifiableSet())
+                .filter(not(Set::isEmpty))
+                .flatMap(key -> key.size() == 1
+                        ? executeSingle(key.iterator().next())
+                        : subExpressionCache.get(key, () -> new CriterionGroup<>(List.copyOf(key))
+                        .executeAndUnion(this::executeSingle)));
+    }
+
+    /**
+     * Executes a single criterion given by its {@code queries} using the {@link SubExpressionCache sub-expression
+     * cache}, unless it consists of only one query, which is already cached itself.
+     */
+    private Mono<Population> executeSingle(Set<Query> queries) {
+        logger.debug("execute single criterion with queries {}", queries);
+        return queries.size() == 1
+                ? fhirQueryService.execute(queries.iterator().next())
+                : subExpressionCache.get(Set.of(queries), () -> new CriterionGroup<>(List.copyOf(queries))
+                .executeAndUnion(fhirQueryService::execute));
     }
 
     /**
@@ -0,0 +1,118 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the populations of whole criteria and criterion groups.
+ * <p>
+ * Criteria and groups are keyed by a canonical form that doesn't depend on how they are written. A criterion is
+ * represented by the set of its queries and a group by the set of the representations of its criteria. So a key is
+ * always a set of sets of queries, a criterion being a key with exactly one element. Criteria which list the same codes
+ * or filters in a different order share entries.
+ * <p>
+ * Entries depend on the populations of their queries. As soon as the population of one of the queries is removed from
+ * the {@link FhirQueryService#addRemovalListener(java.util.function.Consumer) underlying cache}, all entries depending
+ * on it are {@link #invalidate(Query) invalidated}. Dependents are tracked by the {@link Query#canonical() canonical
+ * form} of their queries, because that is how the underlying cache reports removals.
+ */
+public class SubExpressionCache {
+
+    private static final long MIB = 1024 * 1024;
+
+    /**
+     * The estimated number of bytes an entry occupies besides its population and the queries of its key.
+     */
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final AsyncCache<Set<Set<Query>>, Population> cache;
+    private final Map<Query, Set<Set<Set<Query>>>> dependents = new ConcurrentHashMap<>();
+    private final SharedLoads sharedLoads = new SharedLoads();
+
+    public SubExpressionCache(long memSizeMib, Duration expiryTime) {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(memSizeMib * MIB)
+                .weigher(SubExpressionCache::weight)
+                .expireAfterWrite(expiryTime)
+                .<Set<Set<Query>>, Population>removalListener((key, population, cause) -> removeDependents(key))
+                .buildAsync();
+    }
+
+    private static int weight(Set<Set<Query>> key, Population population) {
+        var bytes = ENTRY_OVERHEAD + population.memorySize();
+        for (Set<Query> queries : key) {
+            for (Query query : queries) {
+                bytes += 2L * query.toString().length();
+            }
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the population of {@code key}, calling {@code loader} if it isn't cached.
+     * <p>
+     * Failed loads aren't cached. A load started by another caller that failed because its {@link Deadline deadline}
+     * expired is retried. A load is cancelled as soon as all callers waiting for it are cancelled.
+     *
+     * @param key    the canonical form of a criterion or group
+     * @param loader the function executing the criterion or group
+     * @return a mono of the population of {@code key}
+     */
+    public Mono<Population> get(Set<Set<Query>> key, Supplier<Mono<Population>> loader) {
+        return Mono.deferContextual(context -> sharedLoads.get(() -> cache.get(key, (k, executor) -> {
+                    addDependents(k);
+                    return loader.get().contextWrite(context).toFuture();
+                }))
+                .retryWhen(Deadline.retryExpiredElsewhere(context)));
+    }
+
+    /**
+     * Invalidates all entries depending on the population of {@code query}.
+     *
+     * @param query the query whose population was removed
+     */
+    public void invalidate(Query query) {
+        var keys = dependents.remove(query.canonical());
+        if (keys != null) {
+            cache.synchronous().invalidateAll(keys);
+        }
+    }
+
+    private void addDependents(Set<Set<Query>> key) {
+        for (Set<Query> queries : key) {
+            for (Query query : queries) {
+                dependents.compute(query.canonical(), (q, keys) -> {
+                    var result = keys == null ? ConcurrentHashMap.<Set<Set<Query>>>newKeySet() : keys;
+                    result.add(key);
+                    return result;
+                });
+            }
+        }
+    }
+
+    /**
+     * Removes {@code key} from the dependents of its queries, unless {@code key} was loaded again in the meantime.
+     */
+    private void removeDependents(Set<Set<Query>> key) {
+        if (cache.asMap().containsKey(key)) {
+            return;
+        }
+        for (Set<Query> queries : key) {
+            for (Query query : queries) {
+                dependents.computeIfPresent(query.canonical(), (q, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+        }
+    }
+}
@@ -1,26 +1,90 @@
 package de.medizininformatikinitiative.flare.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.mapping.ExpansionException;
 import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
 import de.medizininformatikinitiative.flare.model.sq.Criterion;
+import de.medizininformatikinitiative.flare.model.sq.Filter;
+import de.medizininformatikinitiative.flare.model.sq.TermCode;
+import de.medizininformatikinitiative.flare.model.sq.TimeRestriction;
 import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedCriterion;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Translates criteria into queries.
+ * <p>
+ * Because translations only depend on the criterion and the immutable {@link MappingContext mapping context}, up to
+ * {@code cacheSize} of them are cached. Criteria which list the same term codes or filters in a different order share
+ * entries. The cache lives as long as the translator, so that it never outlives its mapping context. Failed
+ * translations aren't cached.
+ * <p>
+ * Criteria expanding into more than {@code maxFanOut} expanded criteria are rejected before their expanded criteria
+ * are created.
+ */
 @Component
 public class Translator {
 
     private final MappingContext mappingContext;
+    private final int maxParamsLength;
+    private final int maxFanOut;
+    private final AsyncCache<Key, List<Query>> cache;
 
-    public Translator(MappingContext mappingContext) {
+    public Translator(MappingContext mappingContext, @Value("${app.translator.maxParamsLength}") int maxParamsLength,
+                      @Value("${app.translator.maxFanOut}") int maxFanOut,
+                      @Value("${app.translator.cacheSize}") long cacheSize) {
         this.mappingContext = Objects.requireNonNull(mappingContext);
+        this.maxParamsLength = maxParamsLength;
+        this.maxFanOut = maxFanOut;
+        cache = cacheSize > 0 ? Caffeine.newBuilder().maximumSize(cacheSize).buildAsync() : null;
     }
 
+    /**
+     * Translates {@code criterion} into queries.
+     * <p>
+     * Expanded criteria that only differ in their code are fused into one query searching for all codes at once, as
+     * long as the query params stay shorter than {@code maxParamsLength}.
+     *
+     * @param criterion the criterion to translate
+     * @return a mono of the queries whose union are the patients qualifying for {@code criterion}
+     */
     public Mono<List<Query>> toQuery(Criterion criterion) {
-        return criterion.expand(mappingContext)
-                .map(expandedCriteria -> expandedCriteria.stream().map(ExpandedCriterion::toQuery).toList());
+        if (cache == null) {
+            return translate(criterion);
+        }
+        return Mono.defer(() -> Mono.fromFuture(cache.get(Key.of(criterion), (key, executor) -> {
+            try {
+                return CompletableFuture.completedFuture(queries(criterion));
+            } catch (ExpansionException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        })));
+    }
+
+    private Mono<List<Query>> translate(Criterion criterion) {
+        return Mono.fromCallable(() -> queries(criterion));
+    }
+
+    private List<Query> queries(Criterion criterion) throws ExpansionException {
+        return ExpandedCriterion.toQueries(criterion.expandedCriteria(mappingContext, maxFanOut), maxParamsLength);
+    }
+
+    /**
+     * The normalized form of a criterion, which doesn't depend on the order of its term codes and filters.
+     */
+    private record Key(Set<TermCode> termCodes, Set<Filter> filters, TimeRestriction timeRestriction) {
+
+        private static Key of(Criterion criterion) {
+            return new Key(Set.copyOf(criterion.concept().termCodes()), Set.copyOf(criterion.filters()),
+                    criterion.timeRestriction());
+        }
     }
 }
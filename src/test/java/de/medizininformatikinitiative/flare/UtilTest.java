@@ -2,6 +2,7 @@ package de.medizininformatikinitiative.flare;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.Collections;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -61,4 +62,34 @@ class UtilTest {
                 List.of("b", "c", "d"),
                 List.of("b", "c", "e"));
     }
+
+    @Test
+    void cartesianProduct_empty() {
+        assertThat(Util.cartesianProduct(List.of())).containsExactly(List.of());
+        assertThat(Util.cartesianProduct(List.of(List.of("a"), List.of()))).isEmpty();
+    }
+
+    @Test
+    void lazyCartesianProduct_createsCombinationsOnDemand() {
+        var rows = List.of(List.of("a", "b"), List.of("c", "d"), List.of("e", "f"));
+
+        var m = Util.lazyCartesianProduct(rows).limit(3).toList();
+
+        assertThat(m).containsExactly(List.of("a", "c", "e"), List.of("a", "c", "f"), List.of("a", "d", "e"));
+    }
+
+    @Test
+    void cartesianProductSize() {
+        assertThat(Util.cartesianProductSize(List.of())).isEqualTo(1);
+        assertThat(Util.cartesianProductSize(List.of(List.of("a", "b"), List.of("c"), List.of("d", "e"))))
+                .isEqualTo(4);
+        assertThat(Util.cartesianProductSize(List.of(List.of("a"), List.of()))).isZero();
+    }
+
+    @Test
+    void cartesianProductSize_overflow() {
+        var row = Collections.nCopies(1 << 16, "a");
+
+        assertThat(Util.cartesianProductSize(List.of(row, row, row, row))).isEqualTo(Long.MAX_VALUE);
+    }
 }
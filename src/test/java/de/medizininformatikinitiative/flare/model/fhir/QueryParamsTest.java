@@ -4,6 +4,8 @@ import de.medizininformatikinitiative.flare.model.sq.TermCode;
 import org.junit.jupiter.api.Test;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import static de.medizininformatikinitiative.flare.model.sq.Comparator.GREATER_THAN;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -22,4 +24,115 @@ class QueryParamsTest {
         assertThat(queryParams)
                 .hasToString("value-quantity=" + GREATER_THAN + VALUE + "|" + UCUM_SYSTEM + "|" + UNIT_CODE);
     }
+
+    @Test
+    void appendParam_withEscapedTermCode() {
+        var queryParams = QueryParams.EMPTY.appendParam("code", TermCode.of("system-1", "a,b|c$d\\e", "display"));
+
+        assertThat(queryParams).hasToString("code=system-1|a\\,b\\|c\\$d\\\\e");
+    }
+
+    @Test
+    void appendParam_withTermCodes() {
+        var queryParams = QueryParams.EMPTY.appendParam("code", List.of(UNIT, TermCode.of("system-1", "a,b", "display")));
+
+        assertThat(queryParams).hasToString("code=" + UCUM_SYSTEM + "|" + UNIT_CODE + ",system-1|a\\,b");
+    }
+
+    @Test
+    void canonical_sortsParams() {
+        var queryParams = QueryParams.of("code", "C71").appendParam("_profile", "profile-1");
+
+        assertThat(queryParams.canonical()).hasToString("_profile=profile-1&code=C71");
+    }
+
+    @Test
+    void canonical_removesDuplicateParams() {
+        var queryParams = QueryParams.of("code", "C71").appendParam("code", "C71");
+
+        assertThat(queryParams.canonical()).hasToString("code=C71");
+    }
+
+    @Test
+    void canonical_sortsAndDeduplicatesValues() {
+        var queryParams = QueryParams.of("code", "s|b\\,c,s|a,s|b\\,c");
+
+        assertThat(queryParams.canonical()).hasToString("code=s|a,s|b\\,c");
+    }
+
+    @Test
+    void canonical_removesDefaultPrefixOfQuantityValues() {
+        var queryParams = QueryParams.of("value-quantity", "eq20.10|" + UCUM_SYSTEM + "|" + UNIT_CODE)
+                .appendParam("value-quantity", "20.10|" + UCUM_SYSTEM + "|" + UNIT_CODE);
+
+        assertThat(queryParams.canonical()).hasToString("value-quantity=20.10|" + UCUM_SYSTEM + "|" + UNIT_CODE);
+    }
+
+    @Test
+    void canonical_keepsPrecisionOfQuantityValues() {
+        var queryParams = QueryParams.of("value-quantity", "eq1E+1")
+                .appendParam("value-quantity", "lt5.0")
+                .appendParam("value-quantity", "lt5");
+
+        assertThat(queryParams.canonical()).hasToString("value-quantity=1E+1&value-quantity=lt5&value-quantity=lt5.0");
+    }
+
+    @Test
+    void canonical_keepsPlainNumbers() {
+        var queryParams = QueryParams.of("code", "0100");
+
+        assertThat(queryParams.canonical()).hasToString("code=0100");
+    }
+
+    @Test
+    void values() {
+        var queryParams = QueryParams.of("code", "C71").appendParam("_profile", "p").appendParam("code", "C72");
+
+        assertThat(queryParams.values("code")).containsExactly("C71", "C72");
+        assertThat(queryParams.values("status")).isEmpty();
+    }
+
+    @Test
+    void remove() {
+        var queryParams = QueryParams.of("code", "C71").appendParam("_profile", "p").appendParam("code", "C72");
+
+        assertThat(queryParams.remove("code")).hasToString("_profile=p");
+    }
+
+    @Test
+    void splitValues() {
+        assertThat(QueryParams.splitValues("a|b,c\\,d")).containsExactly("a|b", "c\\,d");
+    }
+
+    @Test
+    void encode() {
+        var queryParams = QueryParams.of("code", "http://loinc.org|26958-3").appendParam("value-quantity", "ge5|mg");
+
+        assertThat(new String(queryParams.encode(), StandardCharsets.UTF_8))
+                .isEqualTo(queryParams.toString())
+                .isEqualTo("code=http://loinc.org|26958-3&value-quantity=ge5|mg");
+    }
+
+    @Test
+    void encode_escapesReservedCharacters() {
+        var queryParams = QueryParams.of("code", "a&b+c%d#e");
+
+        assertThat(queryParams.encode()).asString(StandardCharsets.US_ASCII).isEqualTo("code=a%26b%2Bc%25d%23e");
+    }
+
+    @Test
+    void encode_nonAscii() {
+        var queryParams = QueryParams.of("code", "Gr\u00f6\u00dfe \u20ac \uD83D\uDE00");
+
+        assertThat(queryParams.encode()).isEqualTo("code=Gr\u00f6\u00dfe \u20ac \uD83D\uDE00".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void encode_appendsEncodedParams() {
+        var extra = QueryParams.of("_count", "1000").encode();
+
+        assertThat(QueryParams.of("code", "C71").encode(extra)).asString(StandardCharsets.US_ASCII)
+                .isEqualTo("code=C71&_count=1000");
+        assertThat(QueryParams.EMPTY.encode(extra)).asString(StandardCharsets.US_ASCII).isEqualTo("_count=1000");
+    }
 }
@@ -3,6 +3,7 @@ package de.medizininformatikinitiative.flare.model.fhir;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class QueryTest {
 
@@ -23,4 +24,26 @@ class QueryTest {
 
         assertThat(s).isEqualTo("Condition?name-152643=value-152647");
     }
+
+    @Test
+    void parse_TypeOnly() {
+        var query = Query.parse("Condition");
+
+        assertThat(query).isEqualTo(Query.ofType("Condition"));
+    }
+
+    @Test
+    void parse_TwoParams() {
+        var query = Query.parse("Observation?code=http://loinc.org|8310-5&value-quantity=gt37|http://unitsofmeasure.org|Cel");
+
+        assertThat(query).isEqualTo(Query.of("Observation", QueryParams.of("code", "http://loinc.org|8310-5")
+                .appendParam("value-quantity", "gt37|http://unitsofmeasure.org|Cel")));
+    }
+
+    @Test
+    void parse_InvalidParam() {
+        assertThatThrownBy(() -> Query.parse("Condition?code"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("invalid query param: code");
+    }
 }
@@ -0,0 +1,70 @@
+package de.medizininformatikinitiative.flare.model.mapping;
+
+import de.medizininformatikinitiative.flare.model.sq.TermCode;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TermCodeIndexTest {
+
+    static final TermCode ROOT = TermCode.of("system", "root", "Root");
+    static final TermCode A = TermCode.of("system", "A", "A");
+    static final TermCode B = TermCode.of("system", "B", "B");
+    static final TermCode C = TermCode.of("system", "C", "C");
+    static final TermCode D = TermCode.of("system", "D", "D");
+    static final TermCode E = TermCode.of("system", "E", "E");
+
+    @Test
+    void expand_unknown() {
+        var index = TermCodeIndex.of(TermCodeNode.of(ROOT));
+
+        assertThat(index.expand(A)).isEmpty();
+    }
+
+    @Test
+    void expand_leaf() {
+        var index = TermCodeIndex.of(TermCodeNode.of(ROOT, TermCodeNode.of(A), TermCodeNode.of(B)));
+
+        assertThat(index.expand(B)).containsExactly(B);
+    }
+
+    @Test
+    void expand_subtreeInPreOrder() {
+        var tree = TermCodeNode.of(ROOT, TermCodeNode.of(A, TermCodeNode.of(B, TermCodeNode.of(C)), TermCodeNode.of(D)),
+                TermCodeNode.of(E));
+        var index = TermCodeIndex.of(tree);
+
+        assertThat(index.expand(ROOT)).containsExactly(ROOT, A, B, C, D, E);
+        assertThat(index.expand(A)).containsExactly(A, B, C, D);
+        assertThat(index.expand(E)).containsExactly(E);
+    }
+
+    @Test
+    void expand_codeUnderSeveralParents() {
+        var tree = TermCodeNode.of(ROOT, TermCodeNode.of(A, TermCodeNode.of(C, TermCodeNode.of(D))),
+                TermCodeNode.of(B, TermCodeNode.of(C, TermCodeNode.of(E))));
+        var index = TermCodeIndex.of(tree);
+
+        assertThat(index.expand(C)).containsExactly(C, D, C, E);
+    }
+
+    @Test
+    void expand_codeUnderItself() {
+        var tree = TermCodeNode.of(ROOT, TermCodeNode.of(A, TermCodeNode.of(B, TermCodeNode.of(A))));
+        var index = TermCodeIndex.of(tree);
+
+        assertThat(index.expand(A)).containsExactly(A, B, A);
+    }
+
+    @Test
+    void expand_sameAsTree() {
+        var tree = TermCodeNode.of(ROOT, TermCodeNode.of(A, TermCodeNode.of(C, TermCodeNode.of(D)), TermCodeNode.of(A)),
+                TermCodeNode.of(B, TermCodeNode.of(C, TermCodeNode.of(E)), TermCodeNode.of(D)));
+        var index = TermCodeIndex.of(tree);
+
+        Stream.of(ROOT, A, B, C, D, E).forEach(termCode ->
+                assertThat(index.expand(termCode)).isEqualTo(tree.expand(termCode).toList()));
+    }
+}
@@ -0,0 +1,44 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PatientIdDictionaryTest {
+
+    @Test
+    void encode_assignsDenseIds() {
+        var dictionary = new PatientIdDictionary();
+
+        assertThat(dictionary.encode("patient-id-141023")).isZero();
+        assertThat(dictionary.encode("patient-id-141029")).isOne();
+        assertThat(dictionary.encode("patient-id-141023")).isZero();
+        assertThat(dictionary.size()).isEqualTo(2);
+    }
+
+    @Test
+    void decode() {
+        var dictionary = new PatientIdDictionary();
+        var id = dictionary.encode("patient-id-141023");
+
+        assertThat(dictionary.decode(id)).isEqualTo("patient-id-141023");
+    }
+
+    @Test
+    void decode_unknownId() {
+        var dictionary = new PatientIdDictionary();
+
+        assertThatThrownBy(() -> dictionary.decode(0))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("unknown patient id: 0");
+    }
+
+    @Test
+    void decode_population() {
+        var dictionary = new PatientIdDictionary();
+        var population = Population.of(dictionary.encode("patient-id-141023"), dictionary.encode("patient-id-141029"));
+
+        assertThat(dictionary.decode(population)).containsExactlyInAnyOrder("patient-id-141023", "patient-id-141029");
+    }
+}
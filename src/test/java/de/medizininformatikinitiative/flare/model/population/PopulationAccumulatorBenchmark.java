@@ -0,0 +1,101 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the reduction of a group of patient sets using the accumulator with pairwise reduction of immutable
+ * populations and with pairwise reduction of string sets like the former {@code Util} functions did.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=de.medizininformatikinitiative.flare.model.population.PopulationAccumulatorBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PopulationAccumulatorBenchmark {
+
+    @Param({"50"})
+    int operands;
+
+    @Param({"1000", "100000"})
+    int operandSize;
+
+    private List<Population> populations;
+    private List<Set<String>> stringSets;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PopulationAccumulatorBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+
+    @Setup
+    public void setUp() {
+        var random = new Random(operands * 31L + operandSize);
+        var idSpace = operandSize * 20;
+        var ids = random.ints(operands, 0, Integer.MAX_VALUE).boxed()
+                .map(seed -> new Random(seed).ints(operandSize, 0, idSpace).toArray())
+                .toList();
+        populations = ids.stream().map(Population::of).toList();
+        stringSets = ids.stream()
+                .map(a -> Arrays.stream(a).mapToObj(id -> "patient-" + id).collect(Collectors.toSet()))
+                .toList();
+    }
+
+    @Benchmark
+    public Population unionAccumulator() {
+        return PopulationAccumulator.union(populations);
+    }
+
+    @Benchmark
+    public Population unionPairwise() {
+        return populations.stream().reduce(Population::or).orElseThrow();
+    }
+
+    @Benchmark
+    public Set<String> unionStringSets() {
+        return stringSets.stream().reduce(PopulationAccumulatorBenchmark::union).orElseThrow();
+    }
+
+    @Benchmark
+    public Population intersectionAccumulator() {
+        return PopulationAccumulator.intersection(populations);
+    }
+
+    @Benchmark
+    public Population intersectionPairwise() {
+        return populations.stream().reduce(Population::and).orElseThrow();
+    }
+
+    @Benchmark
+    public Set<String> intersectionStringSets() {
+        return stringSets.stream().reduce(PopulationAccumulatorBenchmark::intersection).orElseThrow();
+    }
+
+    private static Set<String> intersection(Set<String> a, Set<String> b) {
+        var ret = new HashSet<>(a);
+        ret.retainAll(b);
+        return Set.copyOf(ret);
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        var ret = new HashSet<>(a);
+        ret.addAll(b);
+        return Set.copyOf(ret);
+    }
+}
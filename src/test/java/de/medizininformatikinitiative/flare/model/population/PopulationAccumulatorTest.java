@@ -0,0 +1,94 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PopulationAccumulatorTest {
+
+    @Test
+    void intersection_noPopulations() {
+        assertThatThrownBy(() -> PopulationAccumulator.intersection(List.of()))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("no populations");
+    }
+
+    @Test
+    void intersection_onePopulation() {
+        var population = Population.of(1, 2);
+
+        assertThat(PopulationAccumulator.intersection(List.of(population))).isSameAs(population);
+    }
+
+    @Test
+    void intersection() {
+        var result = PopulationAccumulator.intersection(List.of(Population.of(1, 2, 3, 65536),
+                Population.of(2, 3, 65536), Population.of(3, 4, 65536)));
+
+        assertThat(result).isEqualTo(Population.of(3, 65536));
+    }
+
+    @Test
+    void intersection_denseAndSparse() {
+        var dense = Population.of(IntStream.range(0, 10_000).toArray());
+        var sparse = Population.of(5, 9_999, 10_000);
+
+        var result = PopulationAccumulator.intersection(List.of(dense, sparse, dense));
+
+        assertThat(result).isEqualTo(Population.of(5, 9_999));
+    }
+
+    @Test
+    void intersection_empty() {
+        var result = PopulationAccumulator.intersection(List.of(Population.of(1), Population.of(2),
+                Population.of(1, 2)));
+
+        assertThat(result).isEqualTo(Population.EMPTY);
+    }
+
+    @Test
+    void union() {
+        var result = PopulationAccumulator.union(List.of(Population.of(1), Population.of(65536, 2),
+                Population.of(1 << 20)));
+
+        assertThat(result).isEqualTo(Population.of(1, 2, 65536, 1 << 20));
+    }
+
+    @Test
+    void union_sparseBecomesDense() {
+        var result = PopulationAccumulator.union(List.of(Population.of(IntStream.range(0, 3000).toArray()),
+                Population.of(IntStream.range(3000, 6000).toArray())));
+
+        assertThat(result).isEqualTo(Population.of(IntStream.range(0, 6000).toArray()));
+    }
+
+    @Test
+    void operations_sameAsPairwiseReduction() {
+        var random = new Random(0);
+        var populations = IntStream.range(0, 20)
+                .mapToObj(i -> Population.of(random.ints(random.nextInt(20_000), 0, 300_000).toArray()))
+                .toList();
+
+        assertThat(PopulationAccumulator.union(populations))
+                .isEqualTo(populations.stream().reduce(Population::or).orElseThrow());
+        assertThat(PopulationAccumulator.intersection(populations.subList(0, 3)))
+                .isEqualTo(populations.subList(0, 3).stream().reduce(Population::and).orElseThrow());
+    }
+
+    @Test
+    void accumulator_doesNotModifyOperands() {
+        var a = Population.of(1, 2, 3);
+        var b = Population.of(2, 65536);
+
+        PopulationAccumulator.copyOf(a).and(b).freeze();
+        PopulationAccumulator.copyOf(a).or(b).freeze();
+
+        assertThat(a).isEqualTo(Population.of(1, 2, 3));
+        assertThat(b).isEqualTo(Population.of(2, 65536));
+    }
+}
@@ -0,0 +1,158 @@
+package de.medizininformatikinitiative.flare.model.population;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PopulationTest {
+
+    @Test
+    void of_empty() {
+        var population = Population.of();
+
+        assertThat(population).isEqualTo(Population.EMPTY);
+        assertThat(population.isEmpty()).isTrue();
+    }
+
+    @Test
+    void of_duplicates() {
+        var population = Population.of(3, 1, 3, 2, 1);
+
+        assertThat(population.size()).isEqualTo(3);
+        assertThat(population.stream()).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    void of_negativeId() {
+        assertThatThrownBy(() -> Population.of(-1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("negative id: -1");
+    }
+
+    @Test
+    void of_multipleChunks() {
+        var population = Population.of(1 << 20, 1, 65536, 65535);
+
+        assertThat(population.stream()).containsExactly(1, 65535, 65536, 1 << 20);
+    }
+
+    @Test
+    void contains() {
+        var population = Population.of(1, 65536);
+
+        assertThat(population.contains(1)).isTrue();
+        assertThat(population.contains(65536)).isTrue();
+        assertThat(population.contains(0)).isFalse();
+        assertThat(population.contains(65537)).isFalse();
+        assertThat(population.contains(-1)).isFalse();
+    }
+
+    @Test
+    void and() {
+        var population = Population.of(1, 2, 3).and(Population.of(2, 3, 4));
+
+        assertThat(population).isEqualTo(Population.of(2, 3));
+    }
+
+    @Test
+    void and_disjointChunks() {
+        var population = Population.of(1).and(Population.of(65537));
+
+        assertThat(population).isEqualTo(Population.EMPTY);
+    }
+
+    @Test
+    void or() {
+        var population = Population.of(1, 2).and(Population.of(2)).or(Population.of(65536));
+
+        assertThat(population).isEqualTo(Population.of(2, 65536));
+    }
+
+    @Test
+    void andNot() {
+        var population = Population.of(1, 2, 3, 65536).andNot(Population.of(2, 65536));
+
+        assertThat(population).isEqualTo(Population.of(1, 3));
+    }
+
+    @Test
+    void or_denseChunk() {
+        var a = Population.of(IntStream.range(0, 3000).toArray());
+        var b = Population.of(IntStream.range(2000, 5000).toArray());
+
+        var population = a.or(b);
+
+        assertThat(population).isEqualTo(Population.of(IntStream.range(0, 5000).toArray()));
+    }
+
+    @Test
+    void andNot_denseChunkBecomesSparse() {
+        var a = Population.of(IntStream.range(0, 5000).toArray());
+        var b = Population.of(IntStream.range(100, 5000).toArray());
+
+        var population = a.andNot(b);
+
+        assertThat(population).isEqualTo(Population.of(IntStream.range(0, 100).toArray()));
+    }
+
+    @Test
+    void memorySize() {
+        var sparse = Population.of(1, 2, 3);
+        var dense = Population.of(IntStream.range(0, 10_000).toArray());
+
+        assertThat(sparse.memorySize()).isLessThan(200);
+        assertThat(dense.memorySize()).isBetween(8192L, 8192L + 200);
+    }
+
+    /**
+     * Compares all set operations with the ones of {@link HashSet} using random populations of different densities, so
+     * that all combinations of array and bitmap containers are covered.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {10, 1_000, 10_000, 100_000})
+    void operations_random(int n) {
+        var random = new Random(n);
+        var a = random.ints(n, 0, 200_000).boxed().collect(Collectors.toSet());
+        var b = random.ints(n, 0, 200_000).boxed().collect(Collectors.toSet());
+
+        assertThat(toSet(population(a).and(population(b)))).isEqualTo(intersection(a, b));
+        assertThat(toSet(population(a).or(population(b)))).isEqualTo(union(a, b));
+        assertThat(toSet(population(a).andNot(population(b)))).isEqualTo(difference(a, b));
+        assertThat(population(a).size()).isEqualTo(a.size());
+    }
+
+    private static Population population(Set<Integer> ids) {
+        return Population.of(ids.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static Set<Integer> toSet(Population population) {
+        return population.stream().boxed().collect(Collectors.toSet());
+    }
+
+    private static Set<Integer> intersection(Set<Integer> a, Set<Integer> b) {
+        var result = new HashSet<>(a);
+        result.retainAll(b);
+        return result;
+    }
+
+    private static Set<Integer> union(Set<Integer> a, Set<Integer> b) {
+        var result = new HashSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    private static Set<Integer> difference(Set<Integer> a, Set<Integer> b) {
+        var result = new HashSet<>(a);
+        result.removeAll(b);
+        return result;
+    }
+}
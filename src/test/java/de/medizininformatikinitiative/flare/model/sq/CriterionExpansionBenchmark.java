@@ -0,0 +1,96 @@
+package de.medizininformatikinitiative.flare.model.sq;
+
+import de.medizininformatikinitiative.flare.model.mapping.AttributeMapping;
+import de.medizininformatikinitiative.flare.model.mapping.ExpansionException;
+import de.medizininformatikinitiative.flare.model.mapping.Mapping;
+import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
+import de.medizininformatikinitiative.flare.model.mapping.TermCodeNode;
+import de.medizininformatikinitiative.flare.model.sq.expanded.ExpandedCriterion;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Compares the expansion of a criterion through the synchronous API with the expansion through the reactive API.
+ * Because the reactive API exists in all versions, {@code expandReactive} also compares the current expansion with
+ * earlier ones.
+ * <p>
+ * The criterion expands into {@code children} term codes, plus their parent if there is more than one, each combined
+ * with the concepts of two attribute filters.
+ * The {@code gc.alloc.rate.norm} of the GC profiler shows the allocation per criterion.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=de.medizininformatikinitiative.flare.model.sq.CriterionExpansionBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CriterionExpansionBenchmark {
+
+    private static final String SYSTEM = "http://fhir.de/CodeSystem/bfarm/icd-10-gm";
+    private static final TermCode VERIFICATION_STATUS = TermCode.of("http://hl7.org", "verification-status",
+            "Verification Status");
+    private static final TermCode CLINICAL_STATUS = TermCode.of("http://hl7.org", "clinical-status",
+            "Clinical Status");
+
+    @Param({"1", "20"})
+    int children;
+
+    private MappingContext mappingContext;
+    private Criterion criterion;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CriterionExpansionBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+
+    @Setup
+    public void setUp() {
+        var parent = TermCode.of(SYSTEM, "C71", "Malignant neoplasm of brain");
+        var termCodes = IntStream.range(0, children)
+                .mapToObj(i -> TermCode.of(SYSTEM, "C71." + i, "C71." + i))
+                .toList();
+        var mappings = Stream.concat(Stream.of(parent), termCodes.stream())
+                .distinct()
+                .map(termCode -> Mapping.of(termCode, "Condition", "code")
+                        .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status"))
+                        .appendAttributeMapping(AttributeMapping.coding(CLINICAL_STATUS, "clinical-status")))
+                .collect(Collectors.toMap(Mapping::key, Function.identity()));
+        mappingContext = MappingContext.of(mappings, TermCodeNode.of(parent, termCodes.stream()
+                .map(TermCodeNode::of)
+                .toArray(TermCodeNode[]::new)));
+        criterion = Criterion.of(Concept.of(termCodes.size() == 1 ? termCodes.get(0) : parent))
+                .appendAttributeFilter(AttributeFilter.ofConcept(VERIFICATION_STATUS,
+                        TermCode.of("http://terminology.hl7.org/CodeSystem/condition-ver-status", "confirmed",
+                                "Confirmed"),
+                        TermCode.of("http://terminology.hl7.org/CodeSystem/condition-ver-status", "provisional",
+                                "Provisional")))
+                .appendAttributeFilter(AttributeFilter.ofConcept(CLINICAL_STATUS,
+                        TermCode.of("http://terminology.hl7.org/CodeSystem/condition-clinical", "active", "Active"),
+                        TermCode.of("http://terminology.hl7.org/CodeSystem/condition-clinical", "recurrence",
+                                "Recurrence")));
+    }
+
+    @Benchmark
+    public List<ExpandedCriterion> expandSynchronous() throws ExpansionException {
+        return criterion.expandedCriteria(mappingContext, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<ExpandedCriterion> expandReactive() {
+        return criterion.expand(mappingContext).block();
+    }
+}
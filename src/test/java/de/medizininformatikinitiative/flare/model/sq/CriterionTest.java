@@ -8,12 +8,12 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -43,9 +43,9 @@ class CriterionTest {
     MappingContext mappingContext;
 
     @Test
-    void expand_NotExpandable() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.error(new ConceptNotExpandableException(
-                Concept.of(C71))));
+    void expand_NotExpandable() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenThrow(new ConceptNotExpandableException(
+                Concept.of(C71)));
 
         var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext);
 
@@ -53,9 +53,9 @@ class CriterionTest {
     }
 
     @Test
-    void expand_MappingNotFound() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71)));
-        when(mappingContext.findMapping(C71)).thenReturn(Mono.error(new MappingNotFoundException(C71)));
+    void expand_MappingNotFound() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenThrow(new MappingNotFoundException(C71));
 
         var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext);
 
@@ -63,9 +63,9 @@ class CriterionTest {
     }
 
     @Test
-    void expand_OneConceptExpansion() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71)));
-        when(mappingContext.findMapping(C71)).thenReturn(Mono.just(Mapping.of(C71, "Condition", "code")));
+    void expand_OneConceptExpansion() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code"));
 
         var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext).block();
 
@@ -73,10 +73,10 @@ class CriterionTest {
     }
 
     @Test
-    void expand_TwoConceptExpansions() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71_1, C71_2)));
-        when(mappingContext.findMapping(C71_1)).thenReturn(Mono.just(Mapping.of(C71_1, "Condition", "code")));
-        when(mappingContext.findMapping(C71_2)).thenReturn(Mono.just(Mapping.of(C71_2, "Condition", "code")));
+    void expand_TwoConceptExpansions() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71_1, C71_2));
+        when(mappingContext.mapping(C71_1)).thenReturn(Mapping.of(C71_1, "Condition", "code"));
+        when(mappingContext.mapping(C71_2)).thenReturn(Mapping.of(C71_2, "Condition", "code"));
 
         var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext).block();
 
@@ -86,10 +86,10 @@ class CriterionTest {
     }
 
     @Test
-    void toQuery_OneConceptExpansion_OneValueFilter_OneConcept() {
-        when(mappingContext.expandConcept(Concept.of(COVID))).thenReturn(Mono.just(List.of(COVID)));
-        when(mappingContext.findMapping(COVID)).thenReturn(Mono.just(Mapping.of(COVID, "Observation", "code")
-                .withValueSearchParameter("value-concept")));
+    void toQuery_OneConceptExpansion_OneValueFilter_OneConcept() throws Exception {
+        when(mappingContext.termCodes(Concept.of(COVID))).thenReturn(List.of(COVID));
+        when(mappingContext.mapping(COVID)).thenReturn(Mapping.of(COVID, "Observation", "code")
+                .withValueSearchParameter("value-concept"));
 
         var criteria = Criterion.of(Concept.of(COVID), ValueFilter.ofConcept(POSITIVE)).expand(mappingContext).block();
 
@@ -98,11 +98,11 @@ class CriterionTest {
     }
 
     @Test
-    void toQuery_OneConceptExpansion_OneValueFilter_OneConcept_OneAttributeFilter_OneConcept() {
-        when(mappingContext.expandConcept(Concept.of(COVID))).thenReturn(Mono.just(List.of(COVID)));
-        when(mappingContext.findMapping(COVID)).thenReturn(Mono.just(Mapping.of(COVID, "Observation", "code")
+    void toQuery_OneConceptExpansion_OneValueFilter_OneConcept_OneAttributeFilter_OneConcept() throws Exception {
+        when(mappingContext.termCodes(Concept.of(COVID))).thenReturn(List.of(COVID));
+        when(mappingContext.mapping(COVID)).thenReturn(Mapping.of(COVID, "Observation", "code")
                 .withValueSearchParameter("value-concept")
-                .appendAttributeMapping(AttributeMapping.code(OBSERVATION_STATUS, "status"))));
+                .appendAttributeMapping(AttributeMapping.code(OBSERVATION_STATUS, "status")));
 
         var criteria = Criterion.of(Concept.of(COVID), ValueFilter.ofConcept(POSITIVE))
                 .appendAttributeFilter(AttributeFilter.ofConcept(OBSERVATION_STATUS, FINAL))
@@ -114,10 +114,10 @@ class CriterionTest {
     }
 
     @Test
-    void toQuery_OneConceptExpansion_OneValueFilter_TwoConcepts() {
-        when(mappingContext.expandConcept(Concept.of(SEX))).thenReturn(Mono.just(List.of(SEX)));
-        when(mappingContext.findMapping(SEX)).thenReturn(Mono.just(Mapping.of(SEX, "Observation", "code")
-                .withValueSearchParameter("value-concept")));
+    void toQuery_OneConceptExpansion_OneValueFilter_TwoConcepts() throws Exception {
+        when(mappingContext.termCodes(Concept.of(SEX))).thenReturn(List.of(SEX));
+        when(mappingContext.mapping(SEX)).thenReturn(Mapping.of(SEX, "Observation", "code")
+                .withValueSearchParameter("value-concept"));
 
         var criteria = Criterion.of(Concept.of(SEX), ValueFilter.ofConcept(MALE, FEMALE)).expand(mappingContext).block();
 
@@ -129,10 +129,10 @@ class CriterionTest {
     }
 
     @Test
-    void expand_OneConceptExpansion_OneAttributeFilter_OneConcept() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71)));
-        when(mappingContext.findMapping(C71)).thenReturn(Mono.just(Mapping.of(C71, "Condition", "code")
-                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status"))));
+    void expand_OneConceptExpansion_OneAttributeFilter_OneConcept() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code")
+                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status")));
 
         var criteria = Criterion.of(Concept.of(C71)).appendAttributeFilter(AttributeFilter.ofConcept(
                 VERIFICATION_STATUS, CONFIRMED)).expand(mappingContext).block();
@@ -142,10 +142,10 @@ class CriterionTest {
     }
 
     @Test
-    void expand_OneConceptExpansion_OneAttributeFilter_TwoConcepts() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71)));
-        when(mappingContext.findMapping(C71)).thenReturn(Mono.just(Mapping.of(C71, "Condition", "code")
-                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status"))));
+    void expand_OneConceptExpansion_OneAttributeFilter_TwoConcepts() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code")
+                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status")));
 
         var criteria = Criterion.of(Concept.of(C71)).appendAttributeFilter(AttributeFilter.ofConcept(
                 VERIFICATION_STATUS, CONFIRMED, UNCONFIRMED)).expand(mappingContext).block();
@@ -158,12 +158,12 @@ class CriterionTest {
     }
 
     @Test
-    void expand_TwoConceptExpansions_OneAttributeFilter_TwoConcepts() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71_1, C71_2)));
-        when(mappingContext.findMapping(C71_1)).thenReturn(Mono.just(Mapping.of(C71_1, "Condition", "code")
-                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status"))));
-        when(mappingContext.findMapping(C71_2)).thenReturn(Mono.just(Mapping.of(C71_2, "Condition", "code")
-                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status"))));
+    void expand_TwoConceptExpansions_OneAttributeFilter_TwoConcepts() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71_1, C71_2));
+        when(mappingContext.mapping(C71_1)).thenReturn(Mapping.of(C71_1, "Condition", "code")
+                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status")));
+        when(mappingContext.mapping(C71_2)).thenReturn(Mapping.of(C71_2, "Condition", "code")
+                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status")));
 
         var criteria = Criterion.of(Concept.of(C71)).appendAttributeFilter(AttributeFilter.ofConcept(
                 VERIFICATION_STATUS, CONFIRMED, UNCONFIRMED)).expand(mappingContext).block();
@@ -180,10 +180,10 @@ class CriterionTest {
     }
 
     @Test
-    void expand_OneConceptExpansion_OneFixedCriteria_OneConcept() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71)));
-        when(mappingContext.findMapping(C71)).thenReturn(Mono.just(Mapping.of(C71, "Condition", "code")
-                .withFixedCriteria(new FixedCriterion(FilterType.CODING, "verification-status", List.of(CONFIRMED)))));
+    void expand_OneConceptExpansion_OneFixedCriteria_OneConcept() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code")
+                .withFixedCriteria(new FixedCriterion(FilterType.CODING, "verification-status", List.of(CONFIRMED))));
 
         var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext).block();
 
@@ -192,11 +192,11 @@ class CriterionTest {
     }
 
     @Test
-    void expand_OneConceptExpansion_OneFixedCriteria_TwoConcepts() {
-        when(mappingContext.expandConcept(Concept.of(C71))).thenReturn(Mono.just(List.of(C71)));
-        when(mappingContext.findMapping(C71)).thenReturn(Mono.just(Mapping.of(C71, "Condition", "code")
+    void expand_OneConceptExpansion_OneFixedCriteria_TwoConcepts() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code")
                 .withFixedCriteria(new FixedCriterion(FilterType.CODING, "verification-status", List.of(CONFIRMED,
-                        UNCONFIRMED)))));
+                        UNCONFIRMED))));
 
         var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext).block();
 
@@ -207,11 +207,11 @@ class CriterionTest {
     }
 
     @Test
-    void toQuery_OneConceptExpansion_OneValueFilter_TwoConcepts_OneFixedCriteria_OneConcept() {
-        when(mappingContext.expandConcept(Concept.of(SEX))).thenReturn(Mono.just(List.of(SEX)));
-        when(mappingContext.findMapping(SEX)).thenReturn(Mono.just(Mapping.of(SEX, "Observation", "code")
+    void toQuery_OneConceptExpansion_OneValueFilter_TwoConcepts_OneFixedCriteria_OneConcept() throws Exception {
+        when(mappingContext.termCodes(Concept.of(SEX))).thenReturn(List.of(SEX));
+        when(mappingContext.mapping(SEX)).thenReturn(Mapping.of(SEX, "Observation", "code")
                 .withValueSearchParameter("value-concept")
-                .withFixedCriteria(new FixedCriterion(FilterType.CODE, "status", List.of(FINAL)))));
+                .withFixedCriteria(new FixedCriterion(FilterType.CODE, "status", List.of(FINAL))));
 
         var criteria = Criterion.of(Concept.of(SEX), ValueFilter.ofConcept(MALE, FEMALE)).expand(mappingContext).block();
 
@@ -223,4 +223,76 @@ class CriterionTest {
                         .appendFilter(new ExpandedCodeFilter("status", "final"))
                         .appendFilter(new ExpandedConceptFilter("value-concept", FEMALE)));
     }
+
+    @Test
+    void expand_FanOutExceeded() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code")
+                .appendAttributeMapping(AttributeMapping.coding(VERIFICATION_STATUS, "verification-status")));
+
+        var criteria = Criterion.of(Concept.of(C71)).appendAttributeFilter(AttributeFilter.ofConcept(
+                VERIFICATION_STATUS, CONFIRMED, UNCONFIRMED)).expand(mappingContext, 1);
+
+        StepVerifier.create(criteria).expectError(FanOutExceededException.class).verify();
+    }
+
+    @Test
+    void expand_FanOutExceededByAllConceptExpansions() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71_1, C71_2));
+        when(mappingContext.mapping(C71_1)).thenReturn(Mapping.of(C71_1, "Condition", "code"));
+        when(mappingContext.mapping(C71_2)).thenReturn(Mapping.of(C71_2, "Condition", "code"));
+
+        var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext, 1);
+
+        StepVerifier.create(criteria)
+                .expectErrorMessage("The criterion with concept `(system: http://fhir.de/CodeSystem/bfarm/icd-10-gm, " +
+                        "code: C71, display: Malignant neoplasm of brain)` expands into 2 criteria, more than the " +
+                        "maximum of 1.")
+                .verify();
+    }
+
+    @Test
+    void expand_FanOutExceededByOverflowingProductAfterOtherConceptExpansions() throws Exception {
+        var mapping = Mapping.of(C71_2, "Condition", "code");
+        for (int i = 0; i < 64; i++) {
+            mapping = mapping.withFixedCriteria(new FixedCriterion(FilterType.CODING, "status-" + i,
+                    List.of(CONFIRMED, UNCONFIRMED)));
+        }
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71_1, C71_2));
+        when(mappingContext.mapping(C71_1)).thenReturn(Mapping.of(C71_1, "Condition", "code"));
+        when(mappingContext.mapping(C71_2)).thenReturn(mapping);
+
+        var criteria = Criterion.of(Concept.of(C71)).expand(mappingContext, 10);
+
+        StepVerifier.create(criteria)
+                .expectErrorMessage("The criterion with concept `(system: http://fhir.de/CodeSystem/bfarm/icd-10-gm, " +
+                        "code: C71, display: Malignant neoplasm of brain)` expands into 9223372036854775807 criteria, " +
+                        "more than the maximum of 10.")
+                .verify();
+    }
+
+    @Test
+    void expandedCriteria() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71_1, C71_2));
+        when(mappingContext.mapping(C71_1)).thenReturn(Mapping.of(C71_1, "Condition", "code"));
+        when(mappingContext.mapping(C71_2)).thenReturn(Mapping.of(C71_2, "Condition", "code"));
+
+        var criteria = Criterion.of(Concept.of(C71)).expandedCriteria(mappingContext, 10);
+
+        assertThat(criteria).containsExactly(
+                ExpandedCriterion.of("Condition", "code", C71_1),
+                ExpandedCriterion.of("Condition", "code", C71_2));
+    }
+
+    @Test
+    void expandedCriteria_AttributeMappingNotFound() throws Exception {
+        when(mappingContext.termCodes(Concept.of(C71))).thenReturn(List.of(C71));
+        when(mappingContext.mapping(C71)).thenReturn(Mapping.of(C71, "Condition", "code"));
+
+        var criterion = Criterion.of(Concept.of(C71)).appendAttributeFilter(AttributeFilter.ofConcept(
+                VERIFICATION_STATUS, CONFIRMED));
+
+        assertThatThrownBy(() -> criterion.expandedCriteria(mappingContext, 10))
+                .isInstanceOf(AttributeMappingNotFoundException.class);
+    }
 }
@@ -11,6 +11,7 @@ import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.stream.Stream;
 
 import static de.medizininformatikinitiative.flare.model.sq.Comparator.GREATER_EQUAL;
@@ -21,6 +22,7 @@ class ExpandedCriterionTest {
 
     static final TermCode UNIT = new TermCode("http://unitsofmeasure.org", "ug/dL", "ug/dL");
     static final TermCode C71_1 = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C71.1", "Frontallappen");
+    static final TermCode C71_2 = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C71.2", "Temporallappen");
     static final TermCode CONFIRMED = TermCode.of("http://terminology.hl7.org/CodeSystem/condition-ver-status",
             "confirmed", "Confirmed");
     static final TermCode SEVERE = TermCode.of("http://snomed.info/sct", "24484000", "Severe");
@@ -140,4 +142,77 @@ class ExpandedCriterionTest {
         }
         return argumentBuilder.build();
     }
+
+    @Test
+    void toQueries_fusesCodes() {
+        var criteria = List.of(ExpandedCriterion.of("Condition", "code", C71_1),
+                ExpandedCriterion.of("Condition", "code", C71_2));
+
+        var queries = ExpandedCriterion.toQueries(criteria, 4096);
+
+        assertThat(queries).containsExactly(Query.of("Condition", QueryParams.of("code", List.of(C71_1, C71_2))));
+        assertThat(queries.get(0)).hasToString("Condition?code=http://fhir.de/CodeSystem/bfarm/icd-10-gm|C71.1," +
+                "http://fhir.de/CodeSystem/bfarm/icd-10-gm|C71.2");
+    }
+
+    @Test
+    void toQueries_fusesCodesWithSameFilters() {
+        var criteria = List.of(
+                ExpandedCriterion.of("Condition", "code", C71_1)
+                        .appendFilter(new ExpandedConceptFilter("verification-status", CONFIRMED)),
+                ExpandedCriterion.of("Condition", "code", C71_2)
+                        .appendFilter(new ExpandedConceptFilter("verification-status", CONFIRMED)),
+                ExpandedCriterion.of("Condition", "code", C71_2)
+                        .appendFilter(new ExpandedConceptFilter("severity", SEVERE)));
+
+        var queries = ExpandedCriterion.toQueries(criteria, 4096);
+
+        assertThat(queries).containsExactly(
+                Query.of("Condition", QueryParams.of("code", List.of(C71_1, C71_2))
+                        .appendParam("verification-status", CONFIRMED)),
+                Query.of("Condition", QueryParams.of("code", C71_2)
+                        .appendParam("severity", SEVERE)));
+    }
+
+    @Test
+    void toQueries_removesDuplicateCodes() {
+        var criteria = List.of(ExpandedCriterion.of("Condition", "code", C71_1),
+                ExpandedCriterion.of("Condition", "code", C71_1));
+
+        var queries = ExpandedCriterion.toQueries(criteria, 4096);
+
+        assertThat(queries).containsExactly(Query.of("Condition", QueryParams.of("code", C71_1)));
+    }
+
+    @Test
+    void toQueries_doesNotFuseDifferentResourceTypes() {
+        var criteria = List.of(ExpandedCriterion.of("Condition", "code", C71_1),
+                ExpandedCriterion.of("Observation", "code", CORTISOL));
+
+        var queries = ExpandedCriterion.toQueries(criteria, 4096);
+
+        assertThat(queries).containsExactly(Query.of("Condition", QueryParams.of("code", C71_1)),
+                Query.of("Observation", QueryParams.of("code", CORTISOL)));
+    }
+
+    @Test
+    void toQueries_splitsAtMaxParamsLength() {
+        var criteria = List.of(ExpandedCriterion.of("Condition", "code", C71_1),
+                ExpandedCriterion.of("Condition", "code", C71_2));
+        var singleLength = QueryParams.of("code", C71_1).toString().length();
+
+        assertThat(ExpandedCriterion.toQueries(criteria, 2 * singleLength - 4)).hasSize(1);
+        assertThat(ExpandedCriterion.toQueries(criteria, 2 * singleLength - 5)).containsExactly(
+                Query.of("Condition", QueryParams.of("code", C71_1)),
+                Query.of("Condition", QueryParams.of("code", C71_2)));
+    }
+
+    @Test
+    void toQueries_singleCriterionExceedingMaxParamsLength() {
+        var criteria = List.of(ExpandedCriterion.of("Condition", "code", C71_1));
+
+        var queries = ExpandedCriterion.toQueries(criteria, 10);
+
+        assertThat(queries).containsExactly(Query.of("Condition", QueryParams.of("code", C71_1)));
+    }
 }
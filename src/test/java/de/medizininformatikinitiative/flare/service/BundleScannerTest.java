@@ -0,0 +1,131 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BundleScannerTest {
+
+    static final String BUNDLE = """
+            {
+              "resourceType": "Bundle",
+              "type": "searchset",
+              "link": [
+                {"relation": "self", "url": "http://localhost/fhir/Condition?code=C71"},
+                {"relation": "next", "url": "http://localhost/fhir/__page?__t=1"}
+              ],
+              "entry": [
+                {
+                  "fullUrl": "http://localhost/fhir/Condition/0",
+                  "resource": {"resourceType": "Condition", "id": "0", "subject": {"reference": "Patient/id-0"}}
+                },
+                {
+                  "resource": {"resourceType": "Patient", "id": "id-1", "link": [{"other": {"reference": "Patient/x"}}]}
+                },
+                {
+                  "resource": {"resourceType": "Consent", "id": "2", "patient": {"reference": "Patient/id-2"},
+                               "subject": {"reference": "Patient/x"}}
+                }
+              ]
+            }
+            """;
+
+    private final List<String> patientIds = new ArrayList<>();
+    private final List<String> nextLinks = new ArrayList<>();
+
+    private Optional<String> scan(String bundle, int chunkSize) throws IOException {
+        var bytes = bundle.getBytes(StandardCharsets.UTF_8);
+        try (var scanner = BundleScanner.create(patientIds::add, nextLinks::add)) {
+            for (int i = 0; i < bytes.length; i += chunkSize) {
+                var buffer = DefaultDataBufferFactory.sharedInstance.allocateBuffer(chunkSize);
+                buffer.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+                scanner.feed(buffer);
+            }
+            return scanner.end();
+        }
+    }
+
+    @Test
+    void scan_patientIdsAndNextLink() throws Exception {
+        var nextLink = scan(BUNDLE, BUNDLE.length());
+
+        assertThat(patientIds).containsExactly("id-0", "id-1", "id-2");
+        assertThat(nextLink).contains("http://localhost/fhir/__page?__t=1");
+    }
+
+    @Test
+    void scan_splitIntoSmallBuffers() throws Exception {
+        var nextLink = scan(BUNDLE, 7);
+
+        assertThat(patientIds).containsExactly("id-0", "id-1", "id-2");
+        assertThat(nextLink).contains("http://localhost/fhir/__page?__t=1");
+    }
+
+    @Test
+    void scan_reportsNextLinkBeforeEntries() throws Exception {
+        var bytes = BUNDLE.getBytes(StandardCharsets.UTF_8);
+        var entriesStart = BUNDLE.indexOf("\"entry\"");
+        try (var scanner = BundleScanner.create(patientIds::add, nextLinks::add)) {
+            var buffer = DefaultDataBufferFactory.sharedInstance.allocateBuffer(entriesStart);
+            buffer.write(bytes, 0, entriesStart);
+            scanner.feed(buffer);
+
+            assertThat(nextLinks).containsExactly("http://localhost/fhir/__page?__t=1");
+            assertThat(patientIds).isEmpty();
+        }
+    }
+
+    @Test
+    void scan_withoutNextLink() throws Exception {
+        var nextLink = scan("""
+                {"link": [{"relation": "self", "url": "self-url"}], "total": 0}
+                """, 16);
+
+        assertThat(patientIds).isEmpty();
+        assertThat(nextLink).isEmpty();
+        assertThat(nextLinks).isEmpty();
+    }
+
+    @Test
+    void scan_ignoresNestedEntries() throws Exception {
+        scan("""
+                {"entry": [{"resource": {"id": "0", "contained": [{"entry": [{"resource": {"id": "x"}}]}]}}]}
+                """, 16);
+
+        assertThat(patientIds).containsExactly("0");
+    }
+
+    @Test
+    void scan_incompleteBundle() {
+        assertThatThrownBy(() -> scan("{\"entry\": [{\"resource\": {\"id\": \"0\"", 16))
+                .isInstanceOf(JsonParseException.class);
+    }
+
+    @Test
+    void scan_withCodings() throws Exception {
+        var resources = new ArrayList<String>();
+        try (var scanner = BundleScanner.createWithCodings((patientId, codings) -> resources.add(patientId + " "
+                + codings), nextLinks::add)) {
+            scanner.feed(DefaultDataBufferFactory.sharedInstance.wrap("""
+                    {"entry": [
+                      {"resource": {"code": {"coding": [{"system": "s", "code": "a"}, {"code": "b"}], "text": "c"},
+                                    "subject": {"reference": "Patient/id-0"}}},
+                      {"resource": {"id": "id-1", "category": [{"coding": [{"system": "s", "code": "x"}]}]}}
+                    ]}
+                    """.getBytes(StandardCharsets.UTF_8)));
+            scanner.end();
+        }
+
+        assertThat(resources).containsExactly("id-0 [Coding[system=s, code=a], Coding[system=null, code=b]]",
+                "id-1 []");
+    }
+}
@@ -0,0 +1,187 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.mapping.Mapping;
+import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
+import de.medizininformatikinitiative.flare.model.mapping.MappingNotFoundException;
+import de.medizininformatikinitiative.flare.model.mapping.TermCodeNode;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import de.medizininformatikinitiative.flare.model.sq.Concept;
+import de.medizininformatikinitiative.flare.model.sq.Criterion;
+import de.medizininformatikinitiative.flare.model.sq.TermCode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CacheWarmUpTest {
+
+    static final TermCode C71 = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C71",
+            "Malignant neoplasm of brain");
+    static final Query C71_QUERY = Query.of("Condition", QueryParams.of("code", C71));
+    static final Query LOG_QUERY = Query.of("Condition", QueryParams.of("code", "C72"));
+    static final Query LOG_QUERY_1 = Query.of("Condition", QueryParams.of("code", "C73"));
+    static final MappingContext MAPPING_CONTEXT = MappingContext.of(Map.of(C71, Mapping.of(C71, "Condition", "code")),
+            TermCodeNode.of(C71));
+
+    @Mock
+    private FhirQueryService fhirQueryService;
+
+    @Mock
+    private Translator translator;
+
+    @Mock
+    private ApplicationEventPublisher publisher;
+
+    @TempDir
+    Path dir;
+
+    private CacheWarmUp warmUp(double readyFraction, String queryLog, int queryLogTopN) {
+        return new CacheWarmUp(fhirQueryService, translator, MAPPING_CONTEXT, publisher, true, 2, readyFraction,
+                queryLog, queryLogTopN);
+    }
+
+    @Test
+    void queries_mappingKeys() {
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenReturn(Mono.just(List.of(C71_QUERY)));
+
+        var queries = warmUp(1, "", 0).queries();
+
+        StepVerifier.create(queries).expectNext(C71_QUERY).verifyComplete();
+    }
+
+    @Test
+    void queries_skipsUntranslatableMappingKeys() {
+        when(translator.toQuery(Criterion.of(Concept.of(C71))))
+                .thenReturn(Mono.error(new MappingNotFoundException(C71)));
+
+        var queries = warmUp(1, "", 0).queries();
+
+        StepVerifier.create(queries).verifyComplete();
+    }
+
+    @Test
+    void queries_topQueriesOfLogFirst() throws Exception {
+        var log = dir.resolve("query.log");
+        Files.write(log, List.of(
+                "2023-03-01 DEBUG DataStore : execute search: " + LOG_QUERY,
+                "2023-03-01 DEBUG DataStore : execute search: " + LOG_QUERY_1,
+                "2023-03-01 DEBUG DataStore : execute search: " + LOG_QUERY_1,
+                "2023-03-01 DEBUG DataStore : execute search: " + C71_QUERY,
+                "2023-03-01 DEBUG DataStore : execute search: " + C71_QUERY,
+                "2023-03-01 DEBUG DataStore : execute search: " + C71_QUERY,
+                "Condition?invalid",
+                ""));
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenReturn(Mono.just(List.of(C71_QUERY)));
+
+        var queries = warmUp(1, log.toString(), 2).queries();
+
+        StepVerifier.create(queries).expectNext(C71_QUERY, LOG_QUERY_1).verifyComplete();
+    }
+
+    @Test
+    void queries_reverseChainedSearchesOfLog() throws Exception {
+        var log = dir.resolve("query.log");
+        Files.write(log, List.of(
+                "2023-03-01 DEBUG DataStore : execute search: " + LOG_QUERY,
+                "2023-03-01 DEBUG DataStore : reverse chained search: Patient?_has:Condition:subject:code=C72",
+                "2023-03-01 DEBUG DataStore : execute search: " + LOG_QUERY,
+                "2023-03-01 DEBUG DataStore : reverse chained search: Patient?_has:Condition:subject:code=C72"));
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenReturn(Mono.just(List.of(C71_QUERY)));
+
+        var queries = warmUp(1, log.toString(), 10).queries();
+
+        StepVerifier.create(queries).expectNext(LOG_QUERY, C71_QUERY).verifyComplete();
+    }
+
+    @Test
+    void queries_missingLog() {
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenReturn(Mono.just(List.of(C71_QUERY)));
+
+        var queries = warmUp(1, dir.resolve("missing.log").toString(), 10).queries();
+
+        StepVerifier.create(queries).expectNext(C71_QUERY).verifyComplete();
+    }
+
+    @Test
+    void run_acceptsTrafficAfterReadyFraction() {
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenReturn(Mono.just(List.of(C71_QUERY)));
+        when(fhirQueryService.execute(C71_QUERY)).thenReturn(Mono.just(Population.of(1)));
+        var warmUp = warmUp(1, "", 0);
+
+        warmUp.onReadinessChange(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC));
+        StepVerifier.create(warmUp.run()).verifyComplete();
+        warmUp.onReadinessChange(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC));
+
+        var captor = ArgumentCaptor.forClass(AvailabilityChangeEvent.class);
+        verify(publisher, times(2)).publishEvent(captor.capture());
+        assertThat(captor.getAllValues()).extracting(AvailabilityChangeEvent::getState)
+                .containsExactly(ReadinessState.REFUSING_TRAFFIC, ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    @Test
+    void run_failingQueryCountsAsDone() {
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenReturn(Mono.just(List.of(C71_QUERY)));
+        when(fhirQueryService.execute(C71_QUERY)).thenReturn(Mono.error(new Exception("error")));
+
+        StepVerifier.create(warmUp(1, "", 0).run()).verifyComplete();
+
+        var captor = ArgumentCaptor.forClass(AvailabilityChangeEvent.class);
+        verify(publisher).publishEvent(captor.capture());
+        assertThat(captor.getValue().getState()).isEqualTo(ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    @Test
+    void create_invalidReadyFraction() {
+        assertThatThrownBy(() -> warmUp(1.5, "", 0))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("invalid warm-up ready fraction: 1.5");
+    }
+
+    @Test
+    void run_failingWarmUpAcceptsTraffic() {
+        when(translator.toQuery(Criterion.of(Concept.of(C71)))).thenThrow(new IllegalStateException("error"));
+        var warmUp = warmUp(1, "", 0);
+
+        warmUp.onReadinessChange(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC));
+        StepVerifier.create(warmUp.run()).verifyComplete();
+        warmUp.onReadinessChange(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC));
+
+        var captor = ArgumentCaptor.forClass(AvailabilityChangeEvent.class);
+        verify(publisher, times(2)).publishEvent(captor.capture());
+        assertThat(captor.getAllValues()).extracting(AvailabilityChangeEvent::getState)
+                .containsExactly(ReadinessState.REFUSING_TRAFFIC, ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    @Test
+    void onReadinessChange_disabled() {
+        var warmUp = new CacheWarmUp(fhirQueryService, translator, MAPPING_CONTEXT, publisher, false, 2, 1, "", 0);
+
+        warmUp.onReadinessChange(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC));
+
+        verify(publisher, never()).publishEvent(any(ApplicationEvent.class));
+    }
+}
@@ -0,0 +1,271 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CachingFhirQueryServiceTest {
+
+    static final Query QUERY = Query.of("Condition", QueryParams.of("code", "C71"));
+    static final Query QUERY_REORDERED = Query.of("Condition", QueryParams.of("code", "C71,C72")
+            .appendParam("recorded-date", "ge2020-01-01"));
+    static final Query QUERY_REORDERED_1 = Query.of("Condition", QueryParams.of("recorded-date", "ge2020-01-01")
+            .appendParam("code", "C72,C71"));
+    static final Population POPULATION = Population.of(140857, 144725);
+
+    @Mock
+    private FhirQueryService fhirQueryService;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private static CacheProperties properties(Duration minFetchTime) {
+        return new CacheProperties(1, 1, Duration.ofHours(1), Duration.ofMinutes(10), minFetchTime,
+                Duration.ofSeconds(10), Duration.ofHours(4), Map.of(), null);
+    }
+
+    private CachingFhirQueryService service(CacheProperties properties, Optional<DiskCache> diskCache) {
+        return new CachingFhirQueryService(fhirQueryService, properties, diskCache, meterRegistry);
+    }
+
+    @Test
+    void execute_cached() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.just(POPULATION));
+
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+
+        verify(fhirQueryService, times(1)).execute(QUERY);
+    }
+
+    @Test
+    void execute_cachedCanonically() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        when(fhirQueryService.execute(QUERY_REORDERED.canonical()))
+                .thenReturn(Mono.just(POPULATION));
+
+        assertThat(service.execute(QUERY_REORDERED).block()).isEqualTo(POPULATION);
+        assertThat(service.execute(QUERY_REORDERED_1).block()).isEqualTo(POPULATION);
+
+        verify(fhirQueryService, times(1)).execute(QUERY_REORDERED.canonical());
+    }
+
+    @Test
+    void execute_reportsHitRatios() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        when(fhirQueryService.execute(QUERY_REORDERED.canonical()))
+                .thenReturn(Mono.just(POPULATION));
+
+        service.execute(QUERY_REORDERED).block();
+        service.execute(QUERY_REORDERED_1).block();
+        service.execute(QUERY_REORDERED_1).block();
+
+        assertThat(meterRegistry.get("flare.cache.hit.ratio").tag("key", "canonical").gauge().value())
+                .isEqualTo(2.0 / 3);
+        assertThat(meterRegistry.get("flare.cache.hit.ratio").tag("key", "raw").gauge().value())
+                .isEqualTo(1.0 / 3);
+    }
+
+    @Test
+    void execute_loadsWithContextOfCaller() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.deferContextual(context ->
+                Mono.just(context.get("owner").equals("owner-1") ? POPULATION : Population.EMPTY)));
+
+        var population = service.execute(QUERY).contextWrite(Context.of("owner", "owner-1")).block();
+
+        assertThat(population).isEqualTo(POPULATION);
+    }
+
+    @Test
+    void execute_retriesLoadOfExpiredDeadline() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        var expired = new Deadline(Instant.EPOCH);
+        when(fhirQueryService.execute(QUERY))
+                .thenReturn(Mono.error(new DeadlineExceededException(expired)))
+                .thenReturn(Mono.just(POPULATION));
+
+        var population = service.execute(QUERY).contextWrite(Deadline.in(Duration.ofMinutes(1)).context()).block();
+
+        assertThat(population).isEqualTo(POPULATION);
+        verify(fhirQueryService, times(2)).execute(QUERY);
+    }
+
+    @Test
+    void execute_doesNotCacheLoadOfExpiredDeadline() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        var expired = new Deadline(Instant.EPOCH);
+        when(fhirQueryService.execute(QUERY))
+                .thenReturn(Mono.error(new DeadlineExceededException(expired)))
+                .thenReturn(Mono.just(POPULATION));
+
+        assertThatThrownBy(() -> service.execute(QUERY).contextWrite(expired.context()).block())
+                .hasCauseInstanceOf(DeadlineExceededException.class);
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+    }
+
+    @Test
+    void execute_cancelsLoadAfterAllCallersCancelled() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        var cancelled = new AtomicBoolean();
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.<Population>never()
+                .doOnCancel(() -> cancelled.set(true)));
+
+        var caller = service.execute(QUERY).subscribe();
+        var caller1 = service.execute(QUERY).subscribe();
+        caller.dispose();
+
+        assertThat(cancelled).isFalse();
+        caller1.dispose();
+        assertThat(cancelled).isTrue();
+        verify(fhirQueryService, times(1)).execute(QUERY);
+    }
+
+    @Test
+    void execute_notAdmittedBecauseFetchedFasterThanMinFetchTime() {
+        var service = service(properties(Duration.ofHours(1)), Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.just(POPULATION));
+
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+
+        verify(fhirQueryService, times(2)).execute(QUERY);
+    }
+
+    @Test
+    void execute_admittedBecauseOfFetchCost() {
+        var service = service(properties(Duration.ofHours(1)), Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.deferContextual(context -> {
+            FetchCost.record(context, Duration.ofHours(2).toNanos());
+            return Mono.just(POPULATION);
+        }));
+
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+
+        verify(fhirQueryService, times(1)).execute(QUERY);
+    }
+
+    @Test
+    void execute_notAdmittedBecauseWaitingIsNoFetchCost() {
+        var service = service(properties(Duration.ofMillis(10)), Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.delay(Duration.ofMillis(50)).thenReturn(POPULATION));
+
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+
+        verify(fhirQueryService, times(2)).execute(QUERY);
+    }
+
+    @Test
+    void execute_notAdmittedDoesNotNotifyRemovalListeners() {
+        var service = service(properties(Duration.ofHours(1)), Optional.empty());
+        var removed = new ArrayList<Query>();
+        service.addRemovalListener(removed::add);
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.just(POPULATION));
+
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        ForkJoinPool.commonPool().awaitQuiescence(1, TimeUnit.SECONDS);
+
+        assertThat(removed).isEmpty();
+    }
+
+    @Test
+    void execute_resourceTypeWithOwnBudget() {
+        var properties = new CacheProperties(1, 1, Duration.ofHours(1), Duration.ofMinutes(10), Duration.ZERO,
+                Duration.ofSeconds(10), Duration.ofHours(4),
+                Map.of("Condition", new CacheProperties.ResourceType(1, null)), null);
+        var service = service(properties, Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.just(POPULATION));
+
+        assertThat(service.execute(QUERY).block()).isEqualTo(POPULATION);
+        assertThat(service.count(QUERY).block()).isEqualTo(2);
+
+        verify(fhirQueryService, times(1)).execute(QUERY);
+        verify(fhirQueryService, never()).count(QUERY);
+    }
+
+    @Test
+    void weight_cheapPopulationsWeighMore() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+
+        var cheap = service.weight(QUERY, new CacheEntry(POPULATION, Duration.ZERO));
+        var medium = service.weight(QUERY, new CacheEntry(POPULATION, Duration.ofSeconds(5)));
+        var expensive = service.weight(QUERY, new CacheEntry(POPULATION, Duration.ofSeconds(10)));
+
+        assertThat(cheap).isEqualTo(4 * expensive);
+        assertThat(medium).isEqualTo(expensive * 5 / 2);
+        assertThat(service.weight(QUERY, new CacheEntry(POPULATION, Duration.ofHours(1)))).isEqualTo(expensive);
+    }
+
+    @Test
+    void count_usesCachedPopulation() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.just(POPULATION));
+        service.execute(QUERY).block();
+
+        assertThat(service.count(QUERY).block()).isEqualTo(2);
+
+        verify(fhirQueryService, never()).count(QUERY);
+    }
+
+    @Test
+    void count_notCached() {
+        var service = service(properties(Duration.ZERO), Optional.empty());
+        when(fhirQueryService.count(QUERY)).thenReturn(Mono.just(42));
+
+        assertThat(service.count(QUERY).block()).isEqualTo(42);
+        assertThat(service.estimateSize(QUERY)).hasValue(42);
+    }
+
+    @Test
+    void execute_survivesRestartWithDiskCache(@TempDir Path dir) throws Exception {
+        var dictionary = new PatientIdDictionary();
+        var population = Population.of(dictionary.encode("id-140857"), dictionary.encode("id-144725"));
+        when(fhirQueryService.execute(QUERY)).thenReturn(Mono.just(population));
+        try (var disk = DiskCache.open(dir.resolve("populations.seg"), 1 << 16, Duration.ofHours(1), dictionary,
+                Clock.systemUTC())) {
+            service(properties(Duration.ZERO), Optional.of(disk))
+                    .execute(QUERY).block();
+        }
+
+        try (var disk = DiskCache.open(dir.resolve("populations.seg"), 1 << 16, Duration.ofHours(1), dictionary,
+                Clock.systemUTC())) {
+            var service = service(properties(Duration.ZERO), Optional.of(disk));
+
+            assertThat(service.execute(QUERY).block()).isEqualTo(population);
+        }
+
+        verify(fhirQueryService, times(1)).execute(QUERY);
+    }
+}
@@ -1,10 +1,13 @@
 package de.medizininformatikinitiative.flare.service;
 
 import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
@@ -13,6 +16,9 @@ import org.testcontainers.images.PullPolicy;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import java.time.Duration;
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 
@@ -32,6 +38,7 @@ class DataStoreIT {
 
 
     private WebClient client;
+    private PatientIdDictionary dictionary;
     private DataStore dataStore;
 
     @SuppressWarnings("HttpUrlsUsage")
@@ -42,15 +49,21 @@ class DataStoreIT {
                 .baseUrl("http://%s/fhir".formatted(host))
                 .defaultHeader("Accept", "application/fhir+json")
                 .defaultHeader("X-Forwarded-Host", host)
+                .filter(new RequestScheduler(4, 4, 2, 0.5, new SimpleMeterRegistry()).filter())
                 .build();
-        dataStore = new DataStore(client, 1);
+        dictionary = new PatientIdDictionary();
+        dataStore = new DataStore(client, dictionary,
+                new RequestHedger(0.95, 0, new SimpleMeterRegistry()),
+                new SearchBatcher(client, Duration.ZERO, 1, DataSize.ofMegabytes(1)),
+                new QueryFuser(Duration.ZERO, 1, 4096, new SimpleMeterRegistry()),
+                new ReverseChaining(List.of(), 0, new SimpleMeterRegistry()), 1, 2, 0, 1);
     }
 
     @Test
     void searchType_empty() {
-        var result = dataStore.execute(Query.ofType("Observation")).join();
+        var result = dataStore.execute(Query.ofType("Observation")).block();
 
-        assertThat(result).isEmpty();
+        assertThat(result.isEmpty()).isTrue();
     }
 
     @Test
@@ -58,9 +71,9 @@ class DataStoreIT {
         createPatient("0");
         createObservation("0");
 
-        var result = dataStore.execute(Query.ofType("Observation")).join();
+        var result = dataStore.execute(Query.ofType("Observation")).block();
 
-        assertThat(result).containsExactly("0");
+        assertThat(dictionary.decode(result)).containsExactly("0");
     }
 
     @Test
@@ -69,9 +82,9 @@ class DataStoreIT {
         createObservation("0");
         createObservation("0");
 
-        var result = dataStore.execute(Query.ofType("Observation")).join();
+        var result = dataStore.execute(Query.ofType("Observation")).block();
 
-        assertThat(result).containsExactly("0");
+        assertThat(dictionary.decode(result)).containsExactly("0");
     }
 
     @Test
@@ -81,9 +94,9 @@ class DataStoreIT {
         createObservation("0");
         createObservation("1");
 
-        var result = dataStore.execute(Query.ofType("Observation")).join();
+        var result = dataStore.execute(Query.ofType("Observation")).block();
 
-        assertThat(result).containsExactly("0", "1");
+        assertThat(dictionary.decode(result)).containsExactlyInAnyOrder("0", "1");
     }
 
     private void createPatient(String id) {
@@ -0,0 +1,457 @@
+package de.medizininformatikinitiative.flare.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import de.medizininformatikinitiative.flare.model.sq.TermCode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.reactive.MockClientHttpRequest;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.http.HttpHeaders.CONTENT_TYPE;
+
+class DataStoreTest {
+
+    static final Query QUERY = Query.of("Condition", QueryParams.of("code", "C71"));
+
+    private final PatientIdDictionary dictionary = new PatientIdDictionary();
+    private ReverseChaining reverseChaining = new ReverseChaining(List.of(), 0, new SimpleMeterRegistry());
+
+    private static String page(String next, String... patientIds) {
+        var link = next == null ? "" : """
+                {"relation": "next", "url": "http://localhost/fhir/%s"}""".formatted(next);
+        var entries = String.join(",", Arrays.stream(patientIds)
+                .map("""
+                        {"resource": {"subject": {"reference": "Patient/%s"}}}"""::formatted)
+                .toList());
+        return """
+                {"resourceType": "Bundle", "link": [%s], "entry": [%s]}""".formatted(link, entries);
+    }
+
+    private static Query conditionQuery(String code) {
+        return Query.of("Condition", QueryParams.of("code", new TermCode("http://fhir.de/CodeSystem/bfarm/icd-10-gm",
+                code, "")));
+    }
+
+    /**
+     * Returns a page of Conditions given as pairs of code and patient ID.
+     */
+    private static String codedPage(String... codesAndPatientIds) {
+        var entries = new ArrayList<String>();
+        for (int i = 0; i < codesAndPatientIds.length; i += 2) {
+            entries.add("""
+                    {"resource": {"code": {"coding": [{"system": "http://fhir.de/CodeSystem/bfarm/icd-10-gm", \
+                    "code": "%s"}]}, "subject": {"reference": "Patient/%s"}}}""".formatted(codesAndPatientIds[i],
+                    codesAndPatientIds[i + 1]));
+        }
+        return """
+                {"resourceType": "Bundle", "entry": [%s]}""".formatted(String.join(",", entries));
+    }
+
+    private DataStore dataStore(Map<String, ClientResponse> responses) {
+        return dataStore(0, (path, body) -> responses.get(path));
+    }
+
+    private DataStore dataStore(int partitionSize, BiFunction<String, String, ClientResponse> responses) {
+        return dataStore(partitionSize, Duration.ZERO, Duration.ZERO, responses);
+    }
+
+    /**
+     * Creates a data store whose FHIR server answers with {@code responses} of the path and the body of a request.
+     */
+    private DataStore dataStore(int partitionSize, Duration batchWindow, Duration fusionWindow,
+                                BiFunction<String, String, ClientResponse> responses) {
+        var scheduler = new RequestScheduler(4, 4, 2, 0.5, new SimpleMeterRegistry());
+        var client = WebClient.builder()
+                .baseUrl("http://localhost/fhir")
+                .filter(scheduler.filter())
+                .exchangeFunction(request -> {
+                    var mock = new MockClientHttpRequest(request.method(), request.url());
+                    return request.writeTo(mock, ExchangeStrategies.withDefaults())
+                            .then(Mono.defer(mock::getBodyAsString))
+                            .defaultIfEmpty("")
+                            .flatMap(body -> Mono.justOrEmpty(responses.apply(path(request), body)));
+                })
+                .build();
+        var hedger = new RequestHedger(0.95, 0, new SimpleMeterRegistry());
+        var batcher = new SearchBatcher(client, batchWindow, 10, DataSize.ofKilobytes(1));
+        return new DataStore(client, dictionary, hedger, batcher,
+                new QueryFuser(fusionWindow, 10, 4096, new SimpleMeterRegistry()), reverseChaining, 1, 2, partitionSize,
+                8);
+    }
+
+    private static String path(ClientRequest request) {
+        return request.url().getPath().substring("/fhir".length()).replaceFirst("^/", "");
+    }
+
+    private static String lastUpdatedPage(String lastUpdated) {
+        return """
+                {"resourceType": "Bundle", "entry": [{"resource": {"id": "0", "meta": {"lastUpdated": "%s"}}}]}"""
+                .formatted(lastUpdated);
+    }
+
+    /**
+     * Returns a batch response answering each search of the batch {@code body} with the page of {@code pages} for its
+     * resource type or with 400 if there is none.
+     */
+    private static ClientResponse batchResponse(String body, Map<String, String> pages) {
+        try {
+            var entries = new ArrayList<String>();
+            for (JsonNode entry : new ObjectMapper().readTree(body).path("entry")) {
+                var url = entry.path("request").path("url").asText();
+                var page = pages.get(url.substring(0, url.indexOf('?')));
+                entries.add(page == null ? "{\"response\": {\"status\": \"400\"}}" : """
+                        {"resource": %s, "response": {"status": "200"}}""".formatted(page));
+            }
+            return ok("""
+                    {"resourceType": "Bundle", "type": "batch-response", "entry": [%s]}""".formatted(
+                    String.join(",", entries)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ClientResponse ok(String body) {
+        return ClientResponse.create(HttpStatus.OK)
+                .header(CONTENT_TYPE, "application/fhir+json")
+                .body(body)
+                .build();
+    }
+
+    @Test
+    void execute_followsAllNextLinks() {
+        var dataStore = dataStore(Map.of(
+                "Condition/_search", ok(page("page-1", "id-0", "id-1")),
+                "page-1", ok(page("page-2", "id-2")),
+                "page-2", ok(page(null, "id-0", "id-3"))));
+
+        var population = dataStore.execute(QUERY).block();
+
+        assertThat(dictionary.decode(population)).containsExactlyInAnyOrder("id-0", "id-1", "id-2", "id-3");
+    }
+
+    @Test
+    void execute_failingPage() {
+        var dataStore = dataStore(Map.of(
+                "Condition/_search", ok(page("page-1", "id-0")),
+                "page-1", ClientResponse.create(HttpStatus.INTERNAL_SERVER_ERROR).build()));
+
+        assertThatThrownBy(() -> dataStore.execute(QUERY).block())
+                .isInstanceOf(WebClientResponseException.class);
+    }
+
+    @Test
+    void execute_invalidPage() {
+        var dataStore = dataStore(Map.of("Condition/_search", ok("{\"entry\": [")));
+
+        assertThatThrownBy(() -> dataStore.execute(QUERY).block()).hasCauseInstanceOf(JsonParseException.class);
+    }
+
+    @Test
+    void execute_cancelsSearchOnExpiredDeadline() {
+        var cancelled = new AtomicBoolean();
+        var scheduler = new RequestScheduler(4, 4, 2, 0.5, new SimpleMeterRegistry());
+        var client = WebClient.builder()
+                .baseUrl("http://localhost/fhir")
+                .filter(scheduler.filter())
+                .exchangeFunction(request -> Mono.<ClientResponse>never().doOnCancel(() -> cancelled.set(true)))
+                .build();
+        var hedger = new RequestHedger(0.95, 0, new SimpleMeterRegistry());
+        var dataStore = new DataStore(client, dictionary, hedger,
+                new SearchBatcher(client, Duration.ZERO, 1, DataSize.ofMegabytes(1)),
+                new QueryFuser(Duration.ZERO, 1, 4096, new SimpleMeterRegistry()), reverseChaining, 1, 2, 0, 8);
+
+        var result = dataStore.execute(QUERY).contextWrite(Deadline.in(Duration.ofMillis(200)).context());
+
+        assertThatThrownBy(result::block).hasCauseInstanceOf(DeadlineExceededException.class);
+        assertThat(cancelled).isTrue();
+        assertThat(scheduler.inFlight()).isZero();
+    }
+
+    @Test
+    void execute_hedgedPageCancelsSlowRequestAndReleasesBodies() {
+        var buffers = new ArrayList<NettyDataBuffer>();
+        var cancelled = new AtomicBoolean();
+        var pageRequests = new AtomicInteger();
+        var scheduler = new RequestScheduler(4, 4, 2, 0.5, new SimpleMeterRegistry());
+        var client = WebClient.builder()
+                .baseUrl("http://localhost/fhir")
+                .filter(scheduler.filter())
+                .exchangeFunction(request -> {
+                    if (!path(request).equals("page-1")) {
+                        return Mono.just(trackedOk(page("page-1", "id-0"), buffers));
+                    } else if (pageRequests.incrementAndGet() == 1) {
+                        return Mono.delay(Duration.ofSeconds(1))
+                                .map(tick -> trackedOk(page(null, "id-1"), buffers))
+                                .doOnCancel(() -> cancelled.set(true));
+                    }
+                    return Mono.just(trackedOk(page(null, "id-1"), buffers));
+                })
+                .build();
+        var hedger = new RequestHedger(0.95, 1, new SimpleMeterRegistry());
+        for (int i = 0; i < 100; i++) {
+            hedger.record(Duration.ofMillis(1).toNanos());
+        }
+        var dataStore = new DataStore(client, dictionary, hedger,
+                new SearchBatcher(client, Duration.ZERO, 1, DataSize.ofKilobytes(1)),
+                new QueryFuser(Duration.ZERO, 1, 4096, new SimpleMeterRegistry()), reverseChaining, 1, 2, 0, 8);
+
+        var population = dataStore.execute(QUERY).block();
+
+        assertThat(dictionary.decode(population)).containsExactlyInAnyOrder("id-0", "id-1");
+        assertThat(pageRequests).hasValue(2);
+        assertThat(cancelled).isTrue();
+        assertThat(buffers).hasSize(2).allSatisfy(buffer -> assertThat(buffer.getNativeBuffer().refCnt()).isZero());
+        assertThat(scheduler.inFlight()).isZero();
+    }
+
+    /**
+     * Returns an OK response with {@code body} in a buffer allocated on subscription and added to {@code buffers}.
+     */
+    private static ClientResponse trackedOk(String body, List<NettyDataBuffer> buffers) {
+        return ClientResponse.create(HttpStatus.OK)
+                .header(CONTENT_TYPE, "application/fhir+json")
+                .body(Flux.defer(() -> {
+                    var buffer = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT)
+                            .wrap(Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+                    synchronized (buffers) {
+                        buffers.add(buffer);
+                    }
+                    return Flux.just(buffer);
+                }))
+                .build();
+    }
+
+    @Test
+    void execute_batchesConcurrentSearches() {
+        var batches = new AtomicInteger();
+        var dataStore = dataStore(0, Duration.ofMillis(100), Duration.ZERO, (path, body) -> switch (path) {
+            case "" -> {
+                batches.incrementAndGet();
+                yield batchResponse(body, Map.of(
+                        "Condition", page("page-1", "id-0"),
+                        "Observation", page(null, "id-1")));
+            }
+            case "page-1" -> ok(page(null, "id-2"));
+            default -> null;
+        });
+
+        var populations = Mono.zip(dataStore.execute(QUERY),
+                dataStore.execute(Query.of("Observation", QueryParams.of("code", "8480-6")))).block();
+
+        assertThat(dictionary.decode(populations.getT1())).containsExactlyInAnyOrder("id-0", "id-2");
+        assertThat(dictionary.decode(populations.getT2())).containsExactly("id-1");
+        assertThat(batches).hasValue(1);
+    }
+
+    @Test
+    void execute_failingSearchInBatch() {
+        var dataStore = dataStore(0, Duration.ofMillis(100), Duration.ZERO, (path, body) -> path.isEmpty()
+                ? batchResponse(body, Map.of("Observation", page(null, "id-1")))
+                : null);
+
+        var result = Mono.zip(dataStore.execute(QUERY).map(dictionary::decode).onErrorReturn(Set.of("failed")),
+                dataStore.execute(Query.of("Observation", QueryParams.of("code", "8480-6")))).block();
+
+        assertThat(result.getT1()).containsExactly("failed");
+        assertThat(dictionary.decode(result.getT2())).containsExactly("id-1");
+    }
+
+    @Test
+    void execute_tooLargeBatchResponse() {
+        var ids = IntStream.range(0, 100).mapToObj(i -> "id-" + i).toArray(String[]::new);
+        var dataStore = dataStore(0, Duration.ofMillis(100), Duration.ZERO, (path, body) -> path.isEmpty()
+                ? batchResponse(body, Map.of("Condition", page(null, ids), "Observation", page(null, ids)))
+                : null);
+
+        var result = Mono.zip(dataStore.execute(QUERY),
+                dataStore.execute(Query.of("Observation", QueryParams.of("code", "8480-6"))));
+
+        assertThatThrownBy(result::block).isInstanceOf(DataBufferLimitException.class);
+    }
+
+    @Test
+    void execute_cancelsBatchAfterAllDeadlinesExpired() {
+        var cancelled = new AtomicBoolean();
+        var cancelledAfterFirstDeadline = new AtomicBoolean();
+        var scheduler = new RequestScheduler(4, 4, 2, 0.5, new SimpleMeterRegistry());
+        var client = WebClient.builder()
+                .baseUrl("http://localhost/fhir")
+                .filter(scheduler.filter())
+                .exchangeFunction(request -> Mono.<ClientResponse>never().doOnCancel(() -> cancelled.set(true)))
+                .build();
+        var hedger = new RequestHedger(0.95, 0, new SimpleMeterRegistry());
+        var dataStore = new DataStore(client, dictionary, hedger,
+                new SearchBatcher(client, Duration.ofMillis(10), 10, DataSize.ofKilobytes(1)),
+                new QueryFuser(Duration.ZERO, 1, 4096, new SimpleMeterRegistry()), reverseChaining, 1, 2, 0, 8);
+
+        Flux.merge(dataStore.execute(QUERY)
+                                .contextWrite(Deadline.in(Duration.ofMillis(100)).context())
+                                .onErrorResume(DeadlineExceededException.class, e -> {
+                                    cancelledAfterFirstDeadline.set(cancelled.get());
+                                    return Mono.empty();
+                                }),
+                        dataStore.execute(Query.of("Observation", QueryParams.of("code", "8480-6")))
+                                .contextWrite(Deadline.in(Duration.ofMillis(300)).context())
+                                .onErrorResume(DeadlineExceededException.class, e -> Mono.empty()))
+                .blockLast();
+
+        assertThat(cancelledAfterFirstDeadline).isFalse();
+        assertThat(cancelled).isTrue();
+    }
+
+    @Test
+    void execute_singleSearchInBatchWindow() {
+        var dataStore = dataStore(0, Duration.ofMillis(10), Duration.ZERO, (path, body) ->
+                path.equals("Condition/_search") ? ok(page(null, "id-0")) : null);
+
+        var population = dataStore.execute(QUERY).block();
+
+        assertThat(dictionary.decode(population)).containsExactly("id-0");
+    }
+
+    @Test
+    void execute_fusesSearchesDifferingInCode() {
+        var searches = new AtomicInteger();
+        var dataStore = dataStore(0, Duration.ZERO, Duration.ofMillis(100), (path, body) -> {
+            searches.incrementAndGet();
+            return body.equals("code=http://fhir.de/CodeSystem/bfarm/icd-10-gm|C71,"
+                    + "http://fhir.de/CodeSystem/bfarm/icd-10-gm|C72&_elements=subject,code&_count=1")
+                    ? ok(codedPage("C71", "id-0", "C72", "id-1", "C71", "id-2"))
+                    : null;
+        });
+
+        var populations = Mono.zip(dataStore.execute(conditionQuery("C71")), dataStore.execute(conditionQuery("C72")))
+                .block();
+
+        assertThat(dictionary.decode(populations.getT1())).containsExactlyInAnyOrder("id-0", "id-2");
+        assertThat(dictionary.decode(populations.getT2())).containsExactly("id-1");
+        assertThat(searches).hasValue(1);
+    }
+
+    @Test
+    void execute_singleSearchInFusionWindow() {
+        var dataStore = dataStore(0, Duration.ZERO, Duration.ofMillis(10), (path, body) -> body.equals(
+                "code=http://fhir.de/CodeSystem/bfarm/icd-10-gm|C71&_elements=subject&_count=1")
+                ? ok(page(null, "id-0"))
+                : null);
+
+        var population = dataStore.execute(conditionQuery("C71")).block();
+
+        assertThat(dictionary.decode(population)).containsExactly("id-0");
+    }
+
+    @Test
+    void execute_reverseChained() {
+        reverseChaining = new ReverseChaining(List.of("Condition"), 0, new SimpleMeterRegistry());
+        var dataStore = dataStore(0, (path, body) -> path.equals("Patient/_search")
+                && body.equals("_has:Condition:subject:code=C71&_elements=id&_count=1")
+                ? ok("""
+                {"resourceType": "Bundle", "entry": [{"resource": {"id": "id-0"}}, {"resource": {"id": "id-1"}}]}""")
+                : null);
+
+        var population = dataStore.execute(QUERY).block();
+
+        assertThat(dictionary.decode(population)).containsExactlyInAnyOrder("id-0", "id-1");
+    }
+
+    @Test
+    void execute_partitioned() {
+        var dataStore = dataStore(100, (path, body) -> {
+            if (body.contains("_summary=count")) {
+                return ok("{\"resourceType\": \"Bundle\", \"total\": 250}");
+            } else if (body.contains("_sort=_lastUpdated")) {
+                return ok(lastUpdatedPage("2023-03-01T12:00:00Z"));
+            } else if (body.contains("_sort=-_lastUpdated")) {
+                return ok(lastUpdatedPage("2023-03-01T12:00:03.000+00:00"));
+            } else if (body.contains("_lastUpdated=lt2023-03-01T12:00:01Z&")) {
+                return ok(page(null, "id-0"));
+            } else if (body.contains("_lastUpdated=ge2023-03-01T12:00:01Z&_lastUpdated=lt2023-03-01T12:00:02Z")) {
+                return ok(page(null, "id-1"));
+            } else if (body.contains("_lastUpdated=ge2023-03-01T12:00:02Z&_elements")) {
+                return ok(page(null, "id-2", "id-0"));
+            }
+            return null;
+        });
+
+        var population = dataStore.execute(QUERY).block();
+
+        assertThat(dictionary.decode(population)).containsExactlyInAnyOrder("id-0", "id-1", "id-2");
+    }
+
+    @Test
+    void execute_notPartitionedBelowPartitionSize() {
+        var dataStore = dataStore(100, (path, body) -> {
+            if (body.contains("_summary=count")) {
+                return ok("{\"resourceType\": \"Bundle\", \"total\": 100}");
+            } else if (body.equals("code=C71&_elements=subject&_count=1")) {
+                return ok(page(null, "id-0"));
+            }
+            return null;
+        });
+
+        var population = dataStore.execute(QUERY).block();
+
+        assertThat(dictionary.decode(population)).containsExactly("id-0");
+    }
+
+    @Test
+    void lastUpdatedPartitions() {
+        var first = Instant.parse("2023-03-01T12:00:00Z");
+
+        var partitions = DataStore.lastUpdatedPartitions(QueryParams.EMPTY, first, first.plusSeconds(2), 2);
+
+        assertThat(partitions).map(QueryParams::toString).containsExactly(
+                "_lastUpdated=lt2023-03-01T12:00:01Z",
+                "_lastUpdated=ge2023-03-01T12:00:01Z");
+    }
+
+    @Test
+    void lastUpdatedPartitions_rangeTooSmall() {
+        var first = Instant.parse("2023-03-01T12:00:00Z");
+
+        var partitions = DataStore.lastUpdatedPartitions(QueryParams.EMPTY, first, first, 2);
+
+        assertThat(partitions).containsExactly(QueryParams.EMPTY);
+    }
+
+    @Test
+    void execute_emptyResult() {
+        var dataStore = dataStore(Map.of("Condition/_search", ok(page(null))));
+
+        assertThat(dataStore.execute(QUERY).block().isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,157 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DiskCacheTest {
+
+    static final Query QUERY = Query.of("Condition", QueryParams.of("code", "C71"));
+    static final Query QUERY_1 = Query.of("Condition", QueryParams.of("code", "C72"));
+    static final Duration VALIDITY = Duration.ofHours(1);
+    static final Instant NOW = Instant.parse("2023-03-01T12:00:00Z");
+
+    @TempDir
+    Path dir;
+
+    private final PatientIdDictionary dictionary = new PatientIdDictionary();
+
+    private DiskCache open(long size, Instant now) throws Exception {
+        return DiskCache.open(dir.resolve("populations.seg"), size, VALIDITY, dictionary,
+                Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private CacheEntry entry(String... patientIds) {
+        var builder = Population.builder();
+        for (String patientId : patientIds) {
+            builder.add(dictionary.encode(patientId));
+        }
+        return new CacheEntry(builder.build(), Duration.ofSeconds(5));
+    }
+
+    @Test
+    void open_invalidSize() {
+        assertThatThrownBy(() -> open(8, NOW))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("invalid segment size: 8");
+    }
+
+    @Test
+    void get_notFound() throws Exception {
+        try (var cache = open(1 << 16, NOW)) {
+            assertThat(cache.get(QUERY)).isEmpty();
+        }
+    }
+
+    @Test
+    void put_get() throws Exception {
+        try (var cache = open(1 << 16, NOW)) {
+            var entry = entry("id-0", "id-1");
+
+            cache.put(QUERY, entry);
+
+            assertThat(cache.get(QUERY)).contains(entry);
+            assertThat(cache.get(QUERY_1)).isEmpty();
+        }
+    }
+
+    @Test
+    void put_overwrites() throws Exception {
+        try (var cache = open(1 << 16, NOW)) {
+            cache.put(QUERY, entry("id-0"));
+            cache.put(QUERY, entry("id-1"));
+
+            assertThat(cache.get(QUERY).map(e -> dictionary.decode(e.population()))).contains(Set.of("id-1"));
+        }
+    }
+
+    @Test
+    void get_afterReopen() throws Exception {
+        var entry = entry("id-0", "id-1");
+        var entry1 = entry("id-2");
+        try (var cache = open(1 << 16, NOW)) {
+            cache.put(QUERY, entry);
+            cache.put(QUERY_1, entry1);
+        }
+
+        try (var cache = open(1 << 16, NOW.plusSeconds(60))) {
+            assertThat(cache.get(QUERY)).contains(entry);
+            assertThat(cache.get(QUERY_1)).contains(entry1);
+        }
+    }
+
+    @Test
+    void put_afterReopenAppends() throws Exception {
+        var entry = entry("id-0");
+        var entry1 = entry("id-1");
+        try (var cache = open(1 << 16, NOW)) {
+            cache.put(QUERY, entry);
+        }
+        try (var cache = open(1 << 16, NOW)) {
+            cache.put(QUERY_1, entry1);
+        }
+
+        try (var cache = open(1 << 16, NOW)) {
+            assertThat(cache.get(QUERY)).contains(entry);
+            assertThat(cache.get(QUERY_1)).contains(entry1);
+        }
+    }
+
+    @Test
+    void get_expiredAfterValidity() throws Exception {
+        try (var cache = open(1 << 16, NOW)) {
+            cache.put(QUERY, entry("id-0"));
+        }
+
+        try (var cache = open(1 << 16, NOW.plus(VALIDITY))) {
+            assertThat(cache.get(QUERY)).isEmpty();
+        }
+    }
+
+    @Test
+    void get_ignoresFileWithoutMagic() throws Exception {
+        Files.write(dir.resolve("populations.seg"), new byte[]{1, 2, 3, 4, 0, 0, 0, 10});
+
+        try (var cache = open(1 << 16, NOW)) {
+            assertThat(cache.get(QUERY)).isEmpty();
+        }
+    }
+
+    @Test
+    void put_clearsFullSegment() throws Exception {
+        var ids = IntStream.range(0, 100).mapToObj(i -> "id-" + i).toArray(String[]::new);
+        try (var cache = open(1024, NOW)) {
+            var entry1 = entry(ids);
+            cache.put(QUERY, entry(ids));
+            cache.put(QUERY_1, entry1);
+
+            assertThat(cache.get(QUERY)).isEmpty();
+            assertThat(cache.get(QUERY_1)).contains(entry1);
+        }
+    }
+
+    @Test
+    void put_skipsEntryLargerThanSegment() throws Exception {
+        var ids = IntStream.range(0, 1000).mapToObj(i -> "id-" + i).toArray(String[]::new);
+        try (var cache = open(1024, NOW)) {
+            cache.put(QUERY, entry(ids));
+
+            assertThat(cache.get(QUERY)).isEmpty();
+        }
+    }
+}
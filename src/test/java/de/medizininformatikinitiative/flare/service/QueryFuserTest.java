@@ -0,0 +1,166 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Coding;
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import de.medizininformatikinitiative.flare.service.QueryFuser.Token;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryFuserTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<Query> singles = new ArrayList<>();
+    private final List<Query> fusions = new ArrayList<>();
+
+    private QueryFuser fuser() {
+        return new QueryFuser(Duration.ofMillis(50), 3, 4096, meterRegistry);
+    }
+
+    private Mono<Population> single(Query query) {
+        singles.add(query);
+        return Mono.just(Population.of(0));
+    }
+
+    /**
+     * Reports patient 1 with code a, patient 2 with code b and patient 3 with code c.
+     */
+    private Mono<Void> fused(Query query, QueryFuser.Resources resources) {
+        return Mono.fromRunnable(() -> {
+            fusions.add(query);
+            resources.accept(1, List.of(new Coding("s", "a")));
+            resources.accept(2, List.of(new Coding("s", "b")));
+            resources.accept(3, List.of(new Coding("s", "c")));
+        });
+    }
+
+    private Mono<Population> execute(QueryFuser fuser, String code) {
+        return execute(fuser, code, this::fused);
+    }
+
+    private Mono<Population> execute(QueryFuser fuser, String code, QueryFuser.FusedSearch fused) {
+        return fuser.execute(Query.of("Condition", QueryParams.of("code", code)), this::single, fused);
+    }
+
+    @Test
+    void isFusable() {
+        var fuser = fuser();
+
+        assertThat(fuser.isFusable(Query.of("Condition", QueryParams.of("code", "a")))).isTrue();
+        assertThat(fuser.isFusable(Query.of("Condition", QueryParams.of("code", "a").appendParam("code", "b"))))
+                .isFalse();
+        assertThat(fuser.isFusable(Query.of("Condition", QueryParams.of("code:below", "a")))).isFalse();
+        assertThat(fuser.isFusable(Query.of("MedicationAdministration", QueryParams.of("code", "a")))).isFalse();
+        assertThat(new QueryFuser(Duration.ZERO, 3, 4096, meterRegistry)
+                .isFusable(Query.of("Condition", QueryParams.of("code", "a")))).isFalse();
+    }
+
+    @Test
+    void execute_fusesAndRoutes() {
+        var fuser = fuser();
+
+        var populations = Mono.zip(execute(fuser, "s|a"), execute(fuser, "s|b,s|c")).block(TIMEOUT);
+
+        assertThat(populations.getT1()).isEqualTo(Population.of(1));
+        assertThat(populations.getT2()).isEqualTo(Population.of(2, 3));
+        assertThat(fusions).map(Query::toString).containsExactly("Condition?code=s|a,s|b,s|c");
+        assertThat(singles).isEmpty();
+        assertThat(meterRegistry.get("flare.fuser.searches").counter().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("flare.fuser.fusions").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void execute_runsFullFusionImmediately() {
+        var fuser = new QueryFuser(Duration.ofHours(1), 2, 4096, meterRegistry);
+
+        var populations = Mono.zip(execute(fuser, "s|a"), execute(fuser, "s|b")).block(TIMEOUT);
+
+        assertThat(populations.getT1()).isEqualTo(Population.of(1));
+        assertThat(populations.getT2()).isEqualTo(Population.of(2));
+    }
+
+    @Test
+    void execute_splitsFusionLongerThanMaxParamsLength() {
+        var fuser = new QueryFuser(Duration.ofMillis(50), 3, "code=s|a,s|b".length(), meterRegistry);
+
+        var populations = Mono.zip(execute(fuser, "s|a"), execute(fuser, "s|b"), execute(fuser, "s|c"))
+                .block(TIMEOUT);
+
+        assertThat(populations.getT1()).isEqualTo(Population.of(1));
+        assertThat(populations.getT2()).isEqualTo(Population.of(2));
+        assertThat(populations.getT3()).isEqualTo(Population.of(0));
+        assertThat(fusions).map(Query::toString).containsExactly("Condition?code=s|a,s|b");
+        assertThat(singles).map(Query::toString).containsExactly("Condition?code=s|c");
+    }
+
+    @Test
+    void execute_runsFusionUntilLatestDeadline() {
+        var fuser = fuser();
+        var deadline = Deadline.in(Duration.ofMinutes(1));
+        var latestDeadline = Deadline.in(Duration.ofMinutes(2));
+        var deadlines = new ArrayList<Optional<Deadline>>();
+
+        Mono.zip(execute(fuser, "s|a", (query, resources) -> Mono.deferContextual(context -> {
+                            deadlines.add(Deadline.of(context));
+                            return Mono.empty();
+                        })).contextWrite(deadline.context()),
+                        execute(fuser, "s|b", this::fused).contextWrite(latestDeadline.context()))
+                .block(TIMEOUT);
+
+        assertThat(deadlines).containsExactly(Optional.of(latestDeadline));
+    }
+
+    @Test
+    void execute_single() {
+        var fuser = fuser();
+
+        var population = execute(fuser, "s|a").block(TIMEOUT);
+
+        assertThat(population).isEqualTo(Population.of(0));
+        assertThat(singles).map(Query::toString).containsExactly("Condition?code=s|a");
+        assertThat(fusions).isEmpty();
+    }
+
+    @Test
+    void execute_cancelledBeforeRun() {
+        var fuser = fuser();
+
+        execute(fuser, "s|a").subscribe().dispose();
+        var population = execute(fuser, "s|b").block(TIMEOUT);
+
+        assertThat(population).isEqualTo(Population.of(0));
+        assertThat(singles).map(Query::toString).containsExactly("Condition?code=s|b");
+    }
+
+    @Test
+    void token() {
+        assertThat(Token.parse("s|a")).isEqualTo(new Token("s", "a"));
+        assertThat(Token.parse("a")).isEqualTo(new Token(null, "a"));
+        assertThat(Token.parse("|a")).isEqualTo(new Token("", "a"));
+        assertThat(Token.parse("s|")).isEqualTo(new Token("s", ""));
+        assertThat(Token.parse("s\\|t|a\\,b")).isEqualTo(new Token("s|t", "a,b"));
+    }
+
+    @Test
+    void token_matches() {
+        assertThat(Token.parse("s|a").matches(new Coding("s", "a"))).isTrue();
+        assertThat(Token.parse("s|a").matches(new Coding("t", "a"))).isFalse();
+        assertThat(Token.parse("a").matches(new Coding("t", "a"))).isTrue();
+        assertThat(Token.parse("|a").matches(new Coding(null, "a"))).isTrue();
+        assertThat(Token.parse("|a").matches(new Coding("s", "a"))).isFalse();
+        assertThat(Token.parse("s|").matches(new Coding("s", "b"))).isTrue();
+        assertThat(Token.parse("s|").matches(new Coding("t", "b"))).isFalse();
+    }
+}
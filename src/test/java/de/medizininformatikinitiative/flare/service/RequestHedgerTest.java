@@ -0,0 +1,115 @@
+package de.medizininformatikinitiative.flare.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RequestHedgerTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<Mono<String>> requests = new ArrayList<>();
+
+    /**
+     * Returns a hedger whose delay is one millisecond.
+     */
+    private RequestHedger hedger(double budget) {
+        var hedger = new RequestHedger(0.95, budget, meterRegistry);
+        for (int i = 0; i < 100; i++) {
+            hedger.record(Duration.ofMillis(1).toNanos());
+        }
+        return hedger;
+    }
+
+    private Mono<String> request() {
+        return requests.remove(0);
+    }
+
+    private double hedges() {
+        return meterRegistry.get("flare.hedger.requests").counter().count();
+    }
+
+    @Test
+    void create_invalidPercentile() {
+        assertThatThrownBy(() -> new RequestHedger(1, 0.05, meterRegistry))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("invalid hedging percentile: 1.0");
+    }
+
+    @Test
+    void hedge_fastRequest() {
+        var hedger = hedger(1);
+        requests.add(Mono.just("primary"));
+
+        assertThat(hedger.hedge(this::request).block(TIMEOUT)).isEqualTo("primary");
+        assertThat(hedges()).isZero();
+    }
+
+    @Test
+    void hedge_slowRequest() {
+        var hedger = hedger(1);
+        var cancelled = new ArrayList<String>();
+        requests.add(Mono.<String>never().doOnCancel(() -> cancelled.add("primary")));
+        requests.add(Mono.just("hedge"));
+
+        assertThat(hedger.hedge(this::request).block(TIMEOUT)).isEqualTo("hedge");
+        assertThat(cancelled).containsExactly("primary");
+        assertThat(hedges()).isEqualTo(1);
+    }
+
+    @Test
+    void hedge_failingHedge() {
+        var hedger = hedger(1);
+        requests.add(Mono.delay(Duration.ofMillis(50)).thenReturn("primary"));
+        requests.add(Mono.error(new Exception("error")));
+
+        assertThat(hedger.hedge(this::request).block(TIMEOUT)).isEqualTo("primary");
+        assertThat(hedges()).isEqualTo(1);
+    }
+
+    @Test
+    void hedge_failingPrimary() {
+        var hedger = hedger(1);
+        requests.add(Mono.error(new IllegalStateException("error")));
+
+        assertThatThrownBy(() -> hedger.hedge(this::request).block(TIMEOUT))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("error");
+    }
+
+    @Test
+    void hedge_budgetExhausted() {
+        var hedger = hedger(0.5);
+        requests.add(Mono.delay(Duration.ofMillis(50)).thenReturn("primary"));
+
+        assertThat(hedger.hedge(this::request).block(TIMEOUT)).isEqualTo("primary");
+        assertThat(hedges()).isZero();
+    }
+
+    @Test
+    void hedge_disabled() {
+        var hedger = hedger(0);
+        requests.add(Mono.delay(Duration.ofMillis(50)).thenReturn("primary"));
+
+        assertThat(hedger.hedge(this::request).block(TIMEOUT)).isEqualTo("primary");
+        assertThat(hedges()).isZero();
+    }
+
+    @Test
+    void hedge_withoutSamples() {
+        var hedger = new RequestHedger(0.95, 1, meterRegistry);
+        requests.add(Mono.delay(Duration.ofMillis(50)).thenReturn("primary"));
+
+        assertThat(hedger.hedge(this::request).block(TIMEOUT)).isEqualTo("primary");
+        assertThat(hedges()).isZero();
+    }
+}
@@ -0,0 +1,320 @@
+package de.medizininformatikinitiative.flare.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RequestSchedulerTest {
+
+    private static final ClientRequest REQUEST = ClientRequest.create(HttpMethod.GET, URI.create("http://localhost/fhir"))
+            .build();
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<String> started = new ArrayList<>();
+    private final List<Sinks.One<ClientResponse>> pending = new ArrayList<>();
+
+    /**
+     * Returns an exchange through {@code scheduler} recording its start under {@code name}, which is answered after
+     * {@link #completeNext()} and whose body is consumed.
+     */
+    private Mono<Void> exchange(RequestScheduler scheduler, String name) {
+        return scheduler.filter().filter(REQUEST, request -> Mono.defer(() -> {
+            var sink = Sinks.<ClientResponse>one();
+            started.add(name);
+            pending.add(sink);
+            return sink.asMono();
+        })).flatMap(ClientResponse::releaseBody);
+    }
+
+    private void completeNext() {
+        pending.remove(0).tryEmitValue(response(HttpStatus.OK, null));
+    }
+
+    /**
+     * Returns a scheduler with a fixed limit.
+     */
+    private RequestScheduler scheduler(int limit) {
+        return new RequestScheduler(limit, limit, 2, 0.5, meterRegistry);
+    }
+
+    private static ClientResponse response(HttpStatus status, String retryAfter) {
+        var builder = ClientResponse.create(status);
+        if (retryAfter != null) {
+            builder.header(HttpHeaders.RETRY_AFTER, retryAfter);
+        }
+        return builder.build();
+    }
+
+    @Test
+    void create_invalidLimits() {
+        assertThatThrownBy(() -> scheduler(0))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("invalid in-flight exchange limits: 0..0");
+    }
+
+    @Test
+    void onSample_increasesUsedLimitAdditively() {
+        var scheduler = new RequestScheduler(2, 4, 2, 0.5, meterRegistry);
+        exchange(scheduler, "a").subscribe();
+        exchange(scheduler, "b").subscribe();
+
+        exchange(scheduler, "c").subscribe();
+        scheduler.onSample(1000);
+        scheduler.onSample(1000);
+        scheduler.onSample(1000);
+
+        assertThat(scheduler.limit()).isEqualTo(3);
+        assertThat(started).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    void filter_increasesUsedLimitPerExchange() {
+        var scheduler = new RequestScheduler(2, 4, 100, 0.5, meterRegistry);
+        for (String name : List.of("a", "b", "c", "d")) {
+            exchange(scheduler, name).subscribe();
+        }
+
+        completeNext();
+        completeNext();
+        assertThat(scheduler.limit()).isEqualTo(2);
+
+        completeNext();
+        assertThat(scheduler.limit()).isEqualTo(3);
+        assertThat(started).containsExactly("a", "b", "c", "d");
+    }
+
+    @Test
+    void onSample_keepsUnusedLimit() {
+        var scheduler = new RequestScheduler(2, 4, 2, 0.5, meterRegistry);
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.onSample(1000);
+        }
+
+        assertThat(scheduler.limit()).isEqualTo(2);
+    }
+
+    @Test
+    void onSample_decreasesLimitMultiplicativelyOnRisingLatency() throws Exception {
+        var scheduler = new RequestScheduler(1, 8, 2, 0.5, meterRegistry);
+        for (int i = 0; i < 8; i++) {
+            exchange(scheduler, "r" + i).subscribe();
+            for (int j = 0; j < 8; j++) {
+                scheduler.onSample(1000);
+            }
+        }
+        assertThat(scheduler.limit()).isEqualTo(8);
+
+        Thread.sleep(1);
+        scheduler.onSample(1_000_000);
+
+        assertThat(scheduler.limit()).isEqualTo(4);
+        assertThat(scheduler.rttGradient()).isLessThan(0.5);
+    }
+
+    @Test
+    void filter_retriesAfterRetryAfter() {
+        var scheduler = new RequestScheduler(2, 4, 2, 0.5, meterRegistry);
+        var responses = new ArrayList<>(List.of(response(HttpStatus.SERVICE_UNAVAILABLE, "0"),
+                response(HttpStatus.TOO_MANY_REQUESTS, "0"), response(HttpStatus.OK, null)));
+        var response = scheduler.filter().filter(REQUEST, request -> Mono.just(responses.remove(0))).block();
+
+        assertThat(response).isNotNull();
+        assertThat(response.statusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(meterRegistry.get("flare.scheduler.rejections").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void filter_givesUpAfterMaxRetries() {
+        var scheduler = new RequestScheduler(2, 4, 2, 0.5, meterRegistry);
+        var response = scheduler.filter()
+                .filter(REQUEST, request -> Mono.just(response(HttpStatus.TOO_MANY_REQUESTS, "0")))
+                .block();
+
+        assertThat(response).isNotNull();
+        assertThat(response.statusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+        assertThat(meterRegistry.get("flare.scheduler.rejections").counter().count()).isEqualTo(4);
+    }
+
+    @Test
+    void onOverload_pausesDispatchForRetryAfter() {
+        var scheduler = scheduler(2);
+        scheduler.onOverload(Duration.ofHours(1));
+
+        exchange(scheduler, "a").subscribe();
+
+        assertThat(started).isEmpty();
+        assertThat(scheduler.queueSize()).isEqualTo(1);
+    }
+
+    @Test
+    void retryAfter() {
+        var headers = new HttpHeaders();
+        assertThat(RequestScheduler.retryAfter(headers)).isEmpty();
+
+        headers.set(HttpHeaders.RETRY_AFTER, "120");
+        assertThat(RequestScheduler.retryAfter(headers)).contains(Duration.ofMinutes(2));
+
+        headers.set(HttpHeaders.RETRY_AFTER, "Wed, 21 Oct 2015 07:28:00 GMT");
+        assertThat(RequestScheduler.retryAfter(headers)).contains(Duration.ZERO);
+
+        headers.set(HttpHeaders.RETRY_AFTER, "soon");
+        assertThat(RequestScheduler.retryAfter(headers)).isEmpty();
+    }
+
+    @Test
+    void filter_limitsInFlight() {
+        var scheduler = scheduler(2);
+
+        exchange(scheduler, "a").subscribe();
+        exchange(scheduler, "b").subscribe();
+        exchange(scheduler, "c").subscribe();
+
+        assertThat(started).containsExactly("a", "b");
+        assertThat(scheduler.queueSize()).isEqualTo(1);
+
+        completeNext();
+
+        assertThat(started).containsExactly("a", "b", "c");
+        assertThat(scheduler.queueSize()).isZero();
+        assertThat(scheduler.inFlight()).isEqualTo(2);
+    }
+
+    @Test
+    void filter_sharesSlotsFairlyBetweenOwners() {
+        var scheduler = scheduler(1);
+
+        for (String name : List.of("a1", "a2", "a3", "a4")) {
+            exchange(scheduler, name).contextWrite(RequestScheduler.owner("a")).subscribe();
+        }
+        for (String name : List.of("b1", "b2")) {
+            exchange(scheduler, name).contextWrite(RequestScheduler.owner("b")).subscribe();
+        }
+        for (int i = 0; i < 5; i++) {
+            completeNext();
+        }
+
+        assertThat(started).containsExactly("a1", "a2", "b1", "a3", "b2", "a4");
+    }
+
+    @Test
+    void filter_releasesSlotOnError() {
+        var scheduler = scheduler(1);
+
+        scheduler.filter().filter(REQUEST, request -> Mono.error(new Exception("error"))).subscribe(v -> {}, e -> {});
+        exchange(scheduler, "a").subscribe();
+
+        assertThat(started).containsExactly("a");
+    }
+
+    @Test
+    void filter_cancelledWhileQueued() {
+        var scheduler = scheduler(1);
+        exchange(scheduler, "a").subscribe();
+
+        exchange(scheduler, "b").subscribe().dispose();
+        completeNext();
+
+        assertThat(started).containsExactly("a");
+        assertThat(scheduler.queueSize()).isZero();
+        assertThat(scheduler.inFlight()).isZero();
+    }
+
+    @Test
+    void filter_cancelledWhileInFlight() {
+        var scheduler = scheduler(1);
+
+        exchange(scheduler, "a").subscribe().dispose();
+        exchange(scheduler, "b").subscribe();
+
+        assertThat(started).containsExactly("a", "b");
+    }
+
+    @Test
+    void filter_holdsSlotUntilBodyConsumed() {
+        var scheduler = scheduler(1);
+        var body = Sinks.many().unicast().<DataBuffer>onBackpressureBuffer();
+        scheduler.filter()
+                .filter(REQUEST, request -> Mono.just(ClientResponse.create(HttpStatus.OK).body(body.asFlux()).build()))
+                .flatMap(ClientResponse::releaseBody)
+                .subscribe();
+
+        exchange(scheduler, "a").subscribe();
+        assertThat(started).isEmpty();
+
+        body.tryEmitComplete();
+
+        assertThat(started).containsExactly("a");
+    }
+
+    @Test
+    void filter_releasesSlotOfRetriedExchange() {
+        var scheduler = scheduler(1);
+        var responses = new ArrayList<>(List.of(response(HttpStatus.SERVICE_UNAVAILABLE, "0"),
+                response(HttpStatus.OK, null)));
+
+        scheduler.filter().filter(REQUEST, request -> Mono.just(responses.remove(0)))
+                .flatMap(ClientResponse::releaseBody)
+                .block();
+
+        assertThat(scheduler.inFlight()).isZero();
+    }
+
+    @Test
+    void filter_recordsFetchCostWithoutQueueWait() throws Exception {
+        var scheduler = scheduler(1);
+        var cost = new FetchCost();
+        exchange(scheduler, "a").subscribe();
+        exchange(scheduler, "b").contextWrite(cost.context()).subscribe();
+
+        Thread.sleep(100);
+        completeNext();
+        Thread.sleep(10);
+        completeNext();
+
+        assertThat(cost.duration()).isPositive().isLessThan(Duration.ofMillis(100));
+    }
+
+    @Test
+    void filter_recordsFetchCostOfSharedExchangeForAllCallers() throws Exception {
+        var scheduler = scheduler(1);
+        var cost = new FetchCost();
+        var cost1 = new FetchCost();
+        exchange(scheduler, "a")
+                .contextWrite(RequestScheduler.shared(List.of(cost.context(), cost1.context())))
+                .subscribe();
+
+        Thread.sleep(10);
+        completeNext();
+
+        assertThat(cost.duration()).isGreaterThanOrEqualTo(Duration.ofMillis(10)).isEqualTo(cost1.duration());
+    }
+
+    @Test
+    void filter_reportsMetrics() {
+        var scheduler = scheduler(1);
+
+        exchange(scheduler, "a").subscribe();
+        exchange(scheduler, "b").subscribe();
+
+        assertThat(meterRegistry.get("flare.scheduler.queue.size").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("flare.scheduler.in.flight").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("flare.scheduler.wait").timer().count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,105 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReverseChainingTest {
+
+    static final Query QUERY = Query.of("Observation", QueryParams.of("code", "http://loinc.org|4548-4"));
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void rewrite_configuredResourceType() {
+        var chaining = new ReverseChaining(List.of("Observation"), 0, meterRegistry);
+
+        var query = chaining.rewrite(QUERY, "subject");
+
+        assertThat(query).map(Query::toString)
+                .contains("Patient?_has:Observation:subject:code=http://loinc.org|4548-4");
+        assertThat(meterRegistry.get("flare.chaining.searches").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void rewrite_notWithMoreThanOneParam() {
+        var chaining = new ReverseChaining(List.of("Observation"), 0, meterRegistry);
+
+        var query = chaining.rewrite(Query.of("Observation", QUERY.params().appendParam("value-quantity", "gt5")),
+                "subject");
+
+        assertThat(query).isEmpty();
+    }
+
+    @Test
+    void rewrite_notOtherResourceTypes() {
+        var chaining = new ReverseChaining(List.of("Condition"), 0, meterRegistry);
+
+        assertThat(chaining.rewrite(QUERY, "subject")).isEmpty();
+    }
+
+    @Test
+    void rewrite_observedRatio() {
+        var chaining = new ReverseChaining(List.of(), 2, meterRegistry);
+        for (int i = 0; i < 9; i++) {
+            chaining.record("Observation", 500, 100);
+        }
+        assertThat(chaining.rewrite(QUERY, "subject")).isEmpty();
+
+        chaining.record("Observation", 500, 100);
+
+        assertThat(chaining.rewrite(QUERY, "subject")).isPresent();
+    }
+
+    @Test
+    void rewrite_observedRatioSamplesUnchained() {
+        var chaining = new ReverseChaining(List.of(), 2, meterRegistry);
+        for (int i = 0; i < 10; i++) {
+            chaining.record("Observation", 500, 100);
+        }
+        for (int i = 1; i < ReverseChaining.SAMPLE_INTERVAL; i++) {
+            assertThat(chaining.rewrite(QUERY, "subject")).isPresent();
+        }
+
+        assertThat(chaining.rewrite(QUERY, "subject")).isEmpty();
+    }
+
+    @Test
+    void rewrite_observedRatioDroppedBelowThreshold() {
+        var chaining = new ReverseChaining(List.of(), 2, meterRegistry);
+        for (int i = 0; i < 10; i++) {
+            chaining.record("Observation", 500, 100);
+        }
+        for (int i = 0; i < 30; i++) {
+            chaining.record("Observation", 100, 100);
+        }
+
+        assertThat(chaining.rewrite(QUERY, "subject")).isEmpty();
+    }
+
+    @Test
+    void rewrite_observedRatioTooLow() {
+        var chaining = new ReverseChaining(List.of(), 2, meterRegistry);
+        for (int i = 0; i < 10; i++) {
+            chaining.record("Observation", 110, 100);
+        }
+
+        assertThat(chaining.rewrite(QUERY, "subject")).isEmpty();
+    }
+
+    @Test
+    void rewrite_automaticChoiceDisabled() {
+        var chaining = new ReverseChaining(List.of(), 0, meterRegistry);
+        for (int i = 0; i < 10; i++) {
+            chaining.record("Observation", 500, 100);
+        }
+
+        assertThat(chaining.rewrite(QUERY, "subject")).isEmpty();
+    }
+}
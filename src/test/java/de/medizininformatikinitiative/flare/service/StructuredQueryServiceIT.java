@@ -5,7 +5,9 @@ import de.medizininformatikinitiative.flare.FlareApplication;
 import de.medizininformatikinitiative.flare.model.mapping.Mapping;
 import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
 import de.medizininformatikinitiative.flare.model.mapping.TermCodeNode;
+import de.medizininformatikinitiative.flare.model.population.PatientIdDictionary;
 import de.medizininformatikinitiative.flare.model.sq.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
@@ -14,6 +16,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
@@ -27,7 +30,9 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -64,6 +69,7 @@ class StructuredQueryServiceIT {
                     .baseUrl("http://%s/fhir".formatted(host))
                     .defaultHeader("Accept", "application/fhir+json")
                     .defaultHeader("X-Forwarded-Host", host)
+                    .filter(new RequestScheduler(4, 4, 2, 0.5, new SimpleMeterRegistry()).filter())
                     .build();
         }
 
@@ -78,17 +84,22 @@ class StructuredQueryServiceIT {
 
         @Bean
         public FhirQueryService fhirQueryService(WebClient dataStoreClient) {
-            return new DataStore(dataStoreClient, 1);
+            return new DataStore(dataStoreClient, new PatientIdDictionary(),
+                    new RequestHedger(0.95, 0, new SimpleMeterRegistry()),
+                    new SearchBatcher(dataStoreClient, Duration.ZERO, 1, DataSize.ofMegabytes(1)),
+                    new QueryFuser(Duration.ZERO, 1, 4096, new SimpleMeterRegistry()),
+                    new ReverseChaining(List.of(), 0, new SimpleMeterRegistry()), 1, 2, 0, 1);
         }
 
         @Bean
         public Translator translator(MappingContext mappingContext) {
-            return new Translator(mappingContext);
+            return new Translator(mappingContext, 4096, 10000, 1000);
         }
 
         @Bean
         public StructuredQueryService service(FhirQueryService fhirQueryService, Translator translator) {
-            return new StructuredQueryService(fhirQueryService, translator);
+            return new StructuredQueryService(fhirQueryService, translator,
+                new SubExpressionCache(1, Duration.ofHours(1)), false);
         }
     }
 
@@ -3,22 +3,30 @@ package de.medizininformatikinitiative.flare.service;
 import de.medizininformatikinitiative.flare.model.fhir.Query;
 import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
 import de.medizininformatikinitiative.flare.model.mapping.MappingNotFoundException;
+import de.medizininformatikinitiative.flare.model.population.Population;
 import de.medizininformatikinitiative.flare.model.sq.*;
 import de.medizininformatikinitiative.flare.model.translate.Operator;
 import de.medizininformatikinitiative.flare.model.translate.QueryExpression;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
+import java.util.OptionalInt;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -33,12 +41,13 @@ class StructuredQueryServiceTest {
     static final Criterion CONCEPT_CRITERION = Criterion.of(Concept.of(C71));
     static final Criterion CONCEPT_CRITERION_1 = Criterion.of(Concept.of(C72));
     static final Criterion CONCEPT_CRITERION_2 = Criterion.of(Concept.of(C73));
-    static final String PATIENT_ID = "patient-id-140857";
-    static final String PATIENT_ID_1 = "patient-id-144725";
-    static final String PATIENT_ID_2 = "patient-id-144727";
+    static final int PATIENT_ID = 140857;
+    static final int PATIENT_ID_1 = 144725;
+    static final int PATIENT_ID_2 = 144727;
     static final Query CONCEPT_QUERY = Query.of("Condition", QueryParams.of("code", C71));
     static final Query CONCEPT_QUERY_1 = Query.of("Condition", QueryParams.of("code", C72));
     static final Query CONCEPT_QUERY_2 = Query.of("Condition", QueryParams.of("code", C73));
+    static final Query PATIENT_QUERY = Query.of("Patient", QueryParams.of("gender", "female"));
 
     @Mock
     private FhirQueryService fhirQueryService;
@@ -46,9 +55,17 @@ class StructuredQueryServiceTest {
     @Mock
     private Translator translator;
 
-    @InjectMocks
+    @Captor
+    private ArgumentCaptor<Consumer<Query>> removalListener;
+
     private StructuredQueryService service;
 
+    @BeforeEach
+    void setUp() {
+        service = new StructuredQueryService(fhirQueryService, translator,
+                new SubExpressionCache(1, Duration.ofHours(1)), false);
+    }
+
     @Test
     void execute_emptyQuery() {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of()));
@@ -82,7 +99,7 @@ class StructuredQueryServiceTest {
     void execute_singleIncludeConceptCriterion() {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
         when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY)));
-        when(fhirQueryService.execute(CONCEPT_QUERY)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
 
         var result = service.execute(query).block();
 
@@ -103,8 +120,8 @@ class StructuredQueryServiceTest {
     void execute_singleIncludeConceptCriterion_Expanding() {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
         when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1, CONCEPT_QUERY_2)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID_1)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID_2)));
 
         var result = service.execute(query).block();
 
@@ -126,8 +143,8 @@ class StructuredQueryServiceTest {
     void execute_singleIncludeConceptCriterion_Expanding_SamePatient() {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
         when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1, CONCEPT_QUERY_2)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
 
         var result = service.execute(query).block();
 
@@ -138,7 +155,7 @@ class StructuredQueryServiceTest {
     void execute_same_singleIncludeConceptCriterion_singleExcludeConceptCriterion() {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)), CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
         when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY)));
-        when(fhirQueryService.execute(CONCEPT_QUERY)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
 
         var result = service.execute(query).block();
 
@@ -150,8 +167,8 @@ class StructuredQueryServiceTest {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1)), CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_2)));
         when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
         when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
 
         var result = service.execute(query).block();
 
@@ -176,8 +193,8 @@ class StructuredQueryServiceTest {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1, CONCEPT_CRITERION_2)));
         when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
         when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID_1)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID_2)));
 
         var result = service.execute(query).block();
 
@@ -201,8 +218,8 @@ class StructuredQueryServiceTest {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1), CriterionGroup.of(CONCEPT_CRITERION_2)));
         when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
         when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
 
         var result = service.execute(query).block();
 
@@ -226,11 +243,150 @@ class StructuredQueryServiceTest {
         var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1), CriterionGroup.of(CONCEPT_CRITERION_2)));
         when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
         when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID_1)));
-        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(CompletableFuture.completedFuture(Set.of(PATIENT_ID_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID_2)));
+
+        var result = service.execute(query).block();
+
+        assertThat(result).isZero();
+    }
+
+    @Test
+    void execute_twice_reusesCriterionUnion() {
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
+        when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1, CONCEPT_QUERY_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID_2)));
+
+        service.execute(query).block();
+        var result = service.execute(query).block();
+
+        assertThat(result).isEqualTo(2);
+        verify(fhirQueryService, times(1)).execute(CONCEPT_QUERY_1);
+        verify(fhirQueryService, times(1)).execute(CONCEPT_QUERY_2);
+    }
+
+    @Test
+    void execute_twice_reusesGroupUnionRegardlessOfCriteriaOrder() {
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION, CONCEPT_CRITERION_1)));
+        var reorderedQuery = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1,
+                CONCEPT_CRITERION)));
+        when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY)));
+        when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
+        when(fhirQueryService.execute(CONCEPT_QUERY)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+
+        service.execute(query).block();
+        var result = service.execute(reorderedQuery).block();
+
+        assertThat(result).isEqualTo(2);
+        verify(fhirQueryService, times(1)).execute(CONCEPT_QUERY);
+        verify(fhirQueryService, times(1)).execute(CONCEPT_QUERY_1);
+    }
+
+    @Test
+    void execute_twice_recomputesUnionAfterQueryRemoval() {
+        verify(fhirQueryService).addRemovalListener(removalListener.capture());
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
+        when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1, CONCEPT_QUERY_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID_1)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID_2)));
+
+        service.execute(query).block();
+        removalListener.getValue().accept(CONCEPT_QUERY_2);
+        service.execute(query).block();
+
+        verify(fhirQueryService, times(2)).execute(CONCEPT_QUERY_1);
+        verify(fhirQueryService, times(2)).execute(CONCEPT_QUERY_2);
+    }
+
+    @Test
+    void execute_noIncludedPatients_skipsExclusion() {
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1)), CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_2)));
+        when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
+        when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.EMPTY));
 
         var result = service.execute(query).block();
 
         assertThat(result).isZero();
+        verify(fhirQueryService, never()).execute(CONCEPT_QUERY_2);
+    }
+
+    @Test
+    void execute_emptyGroupCancelsOtherGroups() {
+        var cancelled = new AtomicBoolean();
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1), CriterionGroup.of(CONCEPT_CRITERION_2)));
+        when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
+        when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.<Population>never()
+                .doOnCancel(() -> cancelled.set(true)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.EMPTY));
+
+        var result = service.execute(query).block();
+
+        assertThat(result).isZero();
+        assertThat(cancelled).isTrue();
+    }
+
+    @Test
+    void execute_orderByCardinality_twoIncludeConceptCriteria_andLevel_samePatient() {
+        var service = new StructuredQueryService(fhirQueryService, translator,
+                new SubExpressionCache(1, Duration.ofHours(1)), true);
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1), CriterionGroup.of(CONCEPT_CRITERION_2)));
+        when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
+        when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_1)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID)));
+
+        var result = service.execute(query).block();
+
+        assertThat(result).isOne();
+    }
+
+    @Test
+    void execute_orderByCardinality_smallerEmptyGroupStopsExecution() {
+        var service = new StructuredQueryService(fhirQueryService, translator,
+                new SubExpressionCache(1, Duration.ofHours(1)), true);
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1), CriterionGroup.of(CONCEPT_CRITERION_2)),
+                CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
+        when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_1)));
+        when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
+        when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(CONCEPT_QUERY)));
+        when(fhirQueryService.estimateSize(CONCEPT_QUERY_1)).thenReturn(OptionalInt.of(1000));
+        when(fhirQueryService.estimateSize(CONCEPT_QUERY_2)).thenReturn(OptionalInt.of(0));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.EMPTY));
+
+        var result = service.execute(query).block();
+
+        assertThat(result).isZero();
+        verify(fhirQueryService, never()).execute(CONCEPT_QUERY_1);
+        verify(fhirQueryService, never()).execute(CONCEPT_QUERY);
+    }
+
+    @Test
+    void execute_singlePatientQuery_countsOnServer() {
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION)));
+        when(translator.toQuery(CONCEPT_CRITERION)).thenReturn(Mono.just(List.of(PATIENT_QUERY)));
+        when(fhirQueryService.count(PATIENT_QUERY)).thenReturn(Mono.just(42));
+
+        var result = service.execute(query).block();
+
+        assertThat(result).isEqualTo(42);
+        verify(fhirQueryService, never()).execute(PATIENT_QUERY);
+    }
+
+    @Test
+    void execute_singlePatientQuery_withExclusion() {
+        var query = StructuredQuery.of(CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_1)), CriterionGroup.of(CriterionGroup.of(CONCEPT_CRITERION_2)));
+        when(translator.toQuery(CONCEPT_CRITERION_1)).thenReturn(Mono.just(List.of(PATIENT_QUERY)));
+        when(translator.toQuery(CONCEPT_CRITERION_2)).thenReturn(Mono.just(List.of(CONCEPT_QUERY_2)));
+        when(fhirQueryService.execute(PATIENT_QUERY)).thenReturn(Mono.just(Population.of(PATIENT_ID_1, PATIENT_ID_2)));
+        when(fhirQueryService.execute(CONCEPT_QUERY_2)).thenReturn(Mono.just(Population.of(PATIENT_ID_2)));
+
+        var result = service.execute(query).block();
+
+        assertThat(result).isOne();
+        verify(fhirQueryService, never()).count(PATIENT_QUERY);
     }
 }
@@ -0,0 +1,72 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.population.Population;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SubExpressionCacheTest {
+
+    static final Query QUERY = Query.of("Condition", QueryParams.of("code", "C71"));
+    static final Query QUERY_1 = Query.of("Condition", QueryParams.of("code", "C72"));
+    static final Query QUERY_2 = Query.of("Condition", QueryParams.of("code", "C73"));
+    static final Set<Set<Query>> CRITERION = Set.of(Set.of(QUERY, QUERY_1));
+    static final Set<Set<Query>> GROUP = Set.of(Set.of(QUERY, QUERY_1), Set.of(QUERY_2));
+    static final Population POPULATION = Population.of(1, 2);
+
+    private final SubExpressionCache cache = new SubExpressionCache(1, Duration.ofHours(1));
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private Population get(Set<Set<Query>> key) {
+        return cache.get(key, () -> {
+            loads.incrementAndGet();
+            return Mono.just(POPULATION);
+        }).block();
+    }
+
+    @Test
+    void get_cached() {
+        assertThat(get(CRITERION)).isEqualTo(POPULATION);
+        assertThat(get(Set.of(Set.of(QUERY_1, QUERY)))).isEqualTo(POPULATION);
+
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void get_emptyLoader() {
+        var population = cache.get(CRITERION, Mono::empty).block();
+
+        assertThat(population).isNull();
+    }
+
+    @Test
+    void invalidate_dependents() {
+        get(CRITERION);
+        get(GROUP);
+
+        cache.invalidate(QUERY_1);
+        get(CRITERION);
+        get(GROUP);
+
+        assertThat(loads).hasValue(4);
+    }
+
+    @Test
+    void invalidate_otherQuery() {
+        get(CRITERION);
+        get(GROUP);
+
+        cache.invalidate(QUERY_2);
+        get(CRITERION);
+        get(GROUP);
+
+        assertThat(loads).hasValue(3);
+    }
+}
@@ -0,0 +1,90 @@
+package de.medizininformatikinitiative.flare.service;
+
+import de.medizininformatikinitiative.flare.model.fhir.Query;
+import de.medizininformatikinitiative.flare.model.fhir.QueryParams;
+import de.medizininformatikinitiative.flare.model.mapping.Mapping;
+import de.medizininformatikinitiative.flare.model.mapping.MappingContext;
+import de.medizininformatikinitiative.flare.model.mapping.MappingNotFoundException;
+import de.medizininformatikinitiative.flare.model.mapping.TermCodeNode;
+import de.medizininformatikinitiative.flare.model.sq.Concept;
+import de.medizininformatikinitiative.flare.model.sq.Criterion;
+import de.medizininformatikinitiative.flare.model.sq.TermCode;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TranslatorTest {
+
+    static final TermCode ROOT = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C70-C72", "Brain");
+    static final TermCode C71 = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C71",
+            "Malignant neoplasm of brain");
+    static final TermCode C72 = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C72",
+            "Malignant neoplasm of spinal cord");
+    static final TermCode C73 = TermCode.of("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "C73",
+            "Malignant neoplasm of thyroid gland");
+    static final MappingContext MAPPING_CONTEXT = MappingContext.of(Map.of(
+                    C71, Mapping.of(C71, "Condition", "code"),
+                    C72, Mapping.of(C72, "Condition", "code")),
+            TermCodeNode.of(ROOT, TermCodeNode.of(C71), TermCodeNode.of(C72), TermCodeNode.of(C73)));
+
+    @Test
+    void toQuery() {
+        var translator = new Translator(MAPPING_CONTEXT, 4096, 10000, 100);
+
+        var queries = translator.toQuery(Criterion.of(Concept.of(C71))).block();
+
+        assertThat(queries).containsExactly(Query.of("Condition", QueryParams.of("code", C71)));
+    }
+
+    @Test
+    void toQuery_cached() {
+        var translator = new Translator(MAPPING_CONTEXT, 4096, 10000, 100);
+
+        var queries = translator.toQuery(Criterion.of(Concept.of(List.of(C71, C72)))).block();
+
+        assertThat(translator.toQuery(Criterion.of(Concept.of(List.of(C71, C72)))).block()).isSameAs(queries);
+    }
+
+    @Test
+    void toQuery_cachedRegardlessOfOrder() {
+        var translator = new Translator(MAPPING_CONTEXT, 4096, 10000, 100);
+
+        var queries = translator.toQuery(Criterion.of(Concept.of(List.of(C71, C72)))).block();
+
+        assertThat(translator.toQuery(Criterion.of(Concept.of(List.of(C72, C71)))).block()).isSameAs(queries);
+    }
+
+    @Test
+    void toQuery_differentCriteria() {
+        var translator = new Translator(MAPPING_CONTEXT, 4096, 10000, 100);
+
+        translator.toQuery(Criterion.of(Concept.of(C71))).block();
+        var queries = translator.toQuery(Criterion.of(Concept.of(C72))).block();
+
+        assertThat(queries).containsExactly(Query.of("Condition", QueryParams.of("code", C72)));
+    }
+
+    @Test
+    void toQuery_withoutCache() {
+        var translator = new Translator(MAPPING_CONTEXT, 4096, 10000, 0);
+
+        var queries = translator.toQuery(Criterion.of(Concept.of(C71))).block();
+
+        assertThat(translator.toQuery(Criterion.of(Concept.of(C71))).block()).isNotSameAs(queries).isEqualTo(queries);
+    }
+
+    @Test
+    void toQuery_failureIsNotCached() {
+        var translator = new Translator(MAPPING_CONTEXT, 4096, 10000, 100);
+
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(translator.toQuery(Criterion.of(Concept.of(C73))))
+                    .expectError(MappingNotFoundException.class)
+                    .verify();
+        }
+    }
+}